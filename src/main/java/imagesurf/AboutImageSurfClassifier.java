@@ -1,6 +1,7 @@
 package imagesurf;
 
 import imagesurf.classifier.ImageSurfClassifier;
+import imagesurf.classifier.ImageSurfClassifierFile;
 import imagesurf.util.UtilityKt;
 import net.imagej.ImageJ;
 import org.scijava.ItemIO;
@@ -9,7 +10,6 @@ import org.scijava.command.Command;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
-import util.UtilityJava;
 
 import java.io.File;
 
@@ -34,7 +34,7 @@ public class AboutImageSurfClassifier implements Command {
 	public void run() {
 		try
 		{
-			ImageSurfClassifier classifier = (ImageSurfClassifier) UtilityJava.deserializeObject(classifierFile, true);
+			ImageSurfClassifier classifier = ImageSurfClassifierFile.read(classifierFile);
 			ImageSurf = UtilityKt.INSTANCE.describeClassifier(classifier);
 		}
 		catch (Exception e)
@@ -20,10 +20,12 @@ package imagesurf;
 import java.io.File;
 
 import imagesurf.classifier.ImageSurfClassifier;
+import imagesurf.classifier.ImageSurfClassifierFile;
 import imagesurf.feature.SurfImage;
 import ij.ImagePlus;
 import ij.ImageStack;
 import imagesurf.segmenter.ImageSegmenter;
+import imagesurf.segmenter.SegmentationOutput;
 import imagesurf.segmenter.TiledImageSegmenter;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
@@ -40,7 +42,6 @@ import org.scijava.plugin.Plugin;
 import io.scif.services.DatasetIOService;
 import imagesurf.util.UtilityKt;
 import org.scijava.prefs.PrefService;
-import util.UtilityJava;
 
 @Plugin(type = Command.class, headless = true,
 	menuPath = "Plugins>Segmentation>ImageSURF>4a. Apply ImageSURF Classifier")
@@ -71,6 +72,12 @@ public class ApplyImageSurf implements Command{
 	@Parameter(label = "Input image", type = ItemIO.BOTH)
 	private ImagePlus image;
 
+	@Parameter(label = "Output", type = ItemIO.INPUT,
+			choices = {"Classes", "Class probabilities (8-bit)", "Class probabilities (16-bit)"},
+			description = "Classes replaces the image with the class of each pixel. Class probabilities replaces the " +
+					"image with one channel per class, holding the fraction of trees that voted for that class.")
+	private String outputType = SegmentationOutput.CLASSES.getDescription();
+
 	public static void main(final String... args) throws Exception {
 		// create the ImageJ application context with all available services
 		final ImageJ ij = net.imagej.Main.launch(args);
@@ -83,6 +90,10 @@ public class ApplyImageSurf implements Command{
 	}
 
 	public static ImageStack run(ImageSurfClassifier imageSurfClassifier, SurfImage image, StatusService statusService, int tileSize) throws Exception {
+		return run(imageSurfClassifier, image, statusService, tileSize, SegmentationOutput.CLASSES);
+	}
+
+	public static ImageStack run(ImageSurfClassifier imageSurfClassifier, SurfImage image, StatusService statusService, int tileSize, SegmentationOutput output) throws Exception {
 		if (imageSurfClassifier.getPixelType() != image.pixelType)
 			throw new Exception("Classifier pixel type (" +
 					imageSurfClassifier.getPixelType() + ") does not match image pixel type (" + image.pixelType + ")");
@@ -90,14 +101,18 @@ public class ApplyImageSurf implements Command{
 		if (imageSurfClassifier.getNumChannels() != image.numChannels)
 			throw new Exception("Classifier trained for "+imageSurfClassifier.getNumChannels()+" channels. Image has "+image.numChannels+" - cannot segment.");
 
-		final ImageSegmenter imageSegmenter = new TiledImageSegmenter(tileSize);
+		final ImageSegmenter imageSegmenter = new TiledImageSegmenter(tileSize, output);
 
 		return imageSegmenter.segmentImage(imageSurfClassifier, image, statusService);
 	}
 
 	public static ImageStack run(ImageSurfClassifier imageSurfClassifier, ImagePlus image, StatusService statusService, int tileSize) throws Exception {
+		return run(imageSurfClassifier, image, statusService, tileSize, SegmentationOutput.CLASSES);
+	}
+
+	public static ImageStack run(ImageSurfClassifier imageSurfClassifier, ImagePlus image, StatusService statusService, int tileSize, SegmentationOutput output) throws Exception {
 		final SurfImage surfImage = new SurfImage(image);
-		return run(imageSurfClassifier, surfImage, statusService, tileSize);
+		return run(imageSurfClassifier, surfImage, statusService, tileSize, output);
 	}
 
 	@Override
@@ -106,9 +121,15 @@ public class ApplyImageSurf implements Command{
 		try
 		{
 			final int tileSize = prefService.getInt(ImageSurfSettings.IMAGESURF_TILE_SIZE, ImageSurfSettings.DEFAULT_TILE_SIZE);
-			final ImageSurfClassifier imageSurfClassifier = (ImageSurfClassifier) UtilityJava.deserializeObject(classifierFile, true);
-			final ImageStack outputStack = run(imageSurfClassifier, image, statusService, tileSize);
-			image.setStack(outputStack);
+			final ImageSurfClassifier imageSurfClassifier = ImageSurfClassifierFile.read(classifierFile);
+			final SegmentationOutput output = SegmentationOutput.fromDescription(outputType);
+			final ImageStack outputStack = run(imageSurfClassifier, image, statusService, tileSize, output);
+			final int slicesPerPlane = output.slicesPerPlane(imageSurfClassifier.getRandomForest().getNumClasses());
+
+			if (slicesPerPlane > 1)
+				image.setStack(outputStack, slicesPerPlane, image.getNSlices(), image.getNFrames());
+			else
+				image.setStack(outputStack);
 		}
 		catch (Exception e)
 		{
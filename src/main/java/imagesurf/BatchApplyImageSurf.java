@@ -18,8 +18,10 @@
 package imagesurf;
 
 import imagesurf.classifier.ImageSurfClassifier;
+import imagesurf.classifier.ImageSurfClassifierFile;
 import imagesurf.classifier.RandomForest;
 import imagesurf.feature.SurfImage;
+import imagesurf.segmenter.SegmentationOutput;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
@@ -38,7 +40,6 @@ import org.scijava.plugin.Plugin;
 import org.scijava.prefs.PrefService;
 import org.scijava.widget.FileWidget;
 import imagesurf.util.UtilityKt;
-import util.UtilityJava;
 
 import java.io.File;
 import java.io.IOException;
@@ -87,6 +88,12 @@ public class BatchApplyImageSurf implements Command{
 			description = "Folder to save image segmentation output to. Segmentation output images are saved with the same name as input images. Any files with matching names WILL BE OVER-WRITTEN.")
 	private File imagesOutputPath;
 
+	@Parameter(label = "Output", type = ItemIO.INPUT,
+			choices = {"Classes", "Class probabilities (8-bit)", "Class probabilities (16-bit)"},
+			description = "Classes saves the class of each pixel. Class probabilities saves one channel per class, " +
+					"holding the fraction of trees that voted for that class.")
+	private String outputType = SegmentationOutput.CLASSES.getDescription();
+
 	public static void main(final String... args) throws Exception {
 		// create the ImageJ application context with all available services
 		final ImageJ ij = net.imagej.Main.launch(args);
@@ -99,15 +106,19 @@ public class BatchApplyImageSurf implements Command{
 	{
 		final int tileSize = prefService.getInt(ImageSurfSettings.IMAGESURF_TILE_SIZE, ImageSurfSettings.DEFAULT_TILE_SIZE);
 
-		batchApplyImageSurf(classifierFile, imagesOutputPath, imagesPath, imagesPattern, tileSize, progressListener, log, statusService);
+		batchApplyImageSurf(classifierFile, imagesOutputPath, imagesPath, imagesPattern, tileSize, progressListener, log, statusService, SegmentationOutput.fromDescription(outputType));
 	}
 
 	public static File[] batchApplyImageSurf(File classifierFile, File imagesOutputPath, File imagesPath, final String imagesPattern, int tileSize, ProgressListener progressListener, LogService log, StatusService statusService) {
+		return batchApplyImageSurf(classifierFile, imagesOutputPath, imagesPath, imagesPattern, tileSize, progressListener, log, statusService, SegmentationOutput.CLASSES);
+	}
+
+	public static File[] batchApplyImageSurf(File classifierFile, File imagesOutputPath, File imagesPath, final String imagesPattern, int tileSize, ProgressListener progressListener, LogService log, StatusService statusService, SegmentationOutput output) {
 
 		final ImageSurfClassifier imageSurfClassifier;
 		try
 		{
-			imageSurfClassifier = (ImageSurfClassifier) UtilityJava.deserializeObject(classifierFile, true);
+			imageSurfClassifier = ImageSurfClassifierFile.read(classifierFile);
 
 			final RandomForest rf = imageSurfClassifier.getRandomForest();
 			rf.setNumThreads(Prefs.getThreads());
@@ -165,15 +176,19 @@ public class BatchApplyImageSurf implements Command{
 				if (imageSurfClassifier.getNumChannels() != features.numChannels)
 					throw new Exception("Classifier trained for "+imageSurfClassifier.getNumChannels()+" channels. Image has "+features.numChannels+" - cannot segment.");
 
-				final ImageStack outputStack = ApplyImageSurf.run(imageSurfClassifier, features, statusService, tileSize);
+				final ImageStack outputStack = ApplyImageSurf.run(imageSurfClassifier, features, statusService, tileSize, output);
 				final ImagePlus outputImage = new ImagePlus(image.getTitle(), outputStack);
+				final int slicesPerPlane = output.slicesPerPlane(imageSurfClassifier.getRandomForest().getNumClasses());
+
+				if (slicesPerPlane > 1)
+					outputImage.setDimensions(slicesPerPlane, image.getNSlices(), image.getNFrames());
 
 				File imageOutputFile = new File(imagesOutputPath, imageFile.getName());
 				String imageOutputPath = imageOutputFile.getAbsolutePath();
 				String imageOutputPathLower = imageOutputPath.toLowerCase();
 				FileSaver fileSaver = new FileSaver(outputImage);
 
-				if (image.getNSlices() > 1)
+				if (image.getNSlices() > 1 || slicesPerPlane > 1)
 					fileSaver.saveAsTiffStack(imageOutputPath);
 				else if(imageOutputPathLower.endsWith(".tif") || imageOutputPathLower.endsWith(".tiff"))
 					new FileSaver(image).saveAsTiff(imageOutputPath);
@@ -0,0 +1,71 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf;
+
+import imagesurf.classifier.ImageSurfClassifierFile;
+import net.imagej.ImageJ;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+import java.io.File;
+
+/**
+ * Converts ImageSURF classifiers between the binary format and the Java serialization format used by earlier
+ * versions of ImageSURF.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>Segmentation>ImageSURF>Advanced>Convert ImageSURF Classifier",
+		headless = true)
+public class ConvertImageSurfClassifier implements Command {
+
+	@Parameter(label = "ImageSURF classifier", type = ItemIO.INPUT,
+			description = "ImageSURF classifier file to convert. Binary classifiers are converted to the format used by " +
+					"earlier versions of ImageSURF, and older classifiers are converted to the binary format.")
+	private File classifierFile;
+
+	@Parameter(label = "Converted classifier output path", type = ItemIO.INPUT, style = FileWidget.SAVE_STYLE)
+	private File outputFile;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run() {
+		try
+		{
+			ImageSurfClassifierFile.convert(classifierFile, outputFile);
+			log.info("Converted " + classifierFile.getAbsolutePath() + " to " + outputFile.getAbsolutePath());
+		}
+		catch (Exception e)
+		{
+			log.error(e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		// create the ImageJ application context with all available services
+		final ImageJ ij = net.imagej.Main.launch(args);
+
+		ij.command().run(ConvertImageSurfClassifier.class, true);
+	}
+}
@@ -58,9 +58,8 @@ public class ImageSurfImageFilterSelection implements Command
 	@Parameter(label = "Maximum", type = ItemIO.INPUT,	description = "The maximum pixel value in the near neighborhood of the target pixel.")
 	private boolean max = true;
 
-	@Parameter(label = "Median", type = ItemIO.INPUT,	description = "The median pixel value in the near neighborhood of the target pixel. " +
-			"WARNING: The median filter is computationally expensive and may substantially increase the processing time, especially when calculated with a large radius.")
-	private boolean median = false;
+	@Parameter(label = "Median", type = ItemIO.INPUT,	description = "The median pixel value in the near neighborhood of the target pixel.")
+	private boolean median = true;
 
 	@Parameter(label = "Standard deviation", type = ItemIO.INPUT,	description = "The standard deviation of pixel values in the near neighborhood of the target pixel.")
 	private boolean standardDeviation = true;
@@ -84,9 +83,8 @@ public class ImageSurfImageFilterSelection implements Command
 	@Parameter(label = "Difference from maximum", type = ItemIO.INPUT,	description = "Difference between the target pixel value and the maximum pixel value in the near neighborhood of the target pixel.")
 	private boolean differenceFromMax = true;
 
-	@Parameter(label = "Difference from median", type = ItemIO.INPUT,	description = "Difference between the target pixel value and the median pixel value in the near neighborhood of the target pixel. " +
-			"WARNING: The median filter is computationally expensive and may substantially increase the processing time, especially when calculated with a large radius.")
-	private boolean differenceFromMedian = false;
+	@Parameter(label = "Difference from median", type = ItemIO.INPUT,	description = "Difference between the target pixel value and the median pixel value in the near neighborhood of the target pixel.")
+	private boolean differenceFromMedian = true;
 
 	@Parameter(label = "Difference from Gaussian blur", type = ItemIO.INPUT,	description = "Difference between the" +
 			" target pixel value and the Gaussian filtered pixel value in the near neighborhood of the target pixel.")
@@ -180,7 +178,7 @@ public class ImageSurfImageFilterSelection implements Command
 			toExclude.add(Min.class);
 		if(!prefs.getBoolean(ImageSurfSettings.IMAGESURF_USE_MAX, true))
 			toExclude.add(Max.class);
-		if(!prefs.getBoolean(ImageSurfSettings.IMAGESURF_USE_MEDIAN, false))
+		if(!prefs.getBoolean(ImageSurfSettings.IMAGESURF_USE_MEDIAN, true))
 			toExclude.add(Median.class);
 		if(!prefs.getBoolean(ImageSurfSettings.IMAGESURF_USE_STANDARD_DEVIATION, true))
 			toExclude.add(StandardDeviation.class);
@@ -214,7 +212,7 @@ public class ImageSurfImageFilterSelection implements Command
 								&& classes[0].equals(Identity.class) && classes[1].equals(Max.class))
 							return false;
 
-						if(!prefs.getBoolean(ImageSurfSettings.IMAGESURF_USE_DIFFERENCE_FROM_MEDIAN, false)
+						if(!prefs.getBoolean(ImageSurfSettings.IMAGESURF_USE_DIFFERENCE_FROM_MEDIAN, true)
 								&& classes[0].equals(Identity.class) && classes[1].equals(Median.class))
 							return false;
 
@@ -17,7 +17,10 @@
 
 package imagesurf;
 
+import imagesurf.classifier.SplitCriterion;
+import imagesurf.classifier.SplitFinder;
 import imagesurf.feature.PixelType;
+import imagesurf.util.ExampleSampling;
 import net.imagej.ImageJ;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -38,6 +41,7 @@ public class ImageSurfSettings implements Command
 
 	public static final int DEFAULT_BAG_SIZE = 30;
 	public static final int DEFAULT_EXAMPLE_PORTION = 100;
+	public static final String DEFAULT_EXAMPLE_SAMPLING = ExampleSampling.UNIFORM.getDescription();
 	public static final int DEFAULT_TREE_DEPTH = 30;
 	public static final int DEFAULT_NUM_TREES = 100;
 	public static final int DEFAULT_NUM_ATTRIBUTES = 0;
@@ -45,9 +49,16 @@ public class ImageSurfSettings implements Command
 	public static final int DEFAULT_MAX_FEATURE_RADIUS = 35;
 	public static final int DEFAULT_MAX_FEATURES = PixelType.GRAY_8_BIT.getAllFeatureCalculators(DEFAULT_MIN_FEATURE_RADIUS, DEFAULT_MAX_FEATURE_RADIUS, 1).length;
 	public static final int DEFAULT_TILE_SIZE = 1000;
+	public static final boolean DEFAULT_QUANTISE_THRESHOLDS = true;
+	public static final String DEFAULT_SPLIT_FINDER = SplitFinder.DEFAULT.getDescription();
+	public static final String DEFAULT_SPLIT_CRITERION = SplitCriterion.ENTROPY.getDescription();
+	public static final boolean DEFAULT_OUT_OF_BAG_ESTIMATES = true;
+	public static final boolean DEFAULT_INCREMENTAL_TRAINING = false;
+	public static final int DEFAULT_RETRAINED_TREES = 25;
 
 	public static final String IMAGESURF_BAG_SIZE = "ImageSURF Bag Size";
 	public static final String IMAGESURF_EXAMPLE_PORTION = "ImageSURF Example Portion";
+	public static final String IMAGESURF_EXAMPLE_SAMPLING = "ImageSURF Example Sampling";
 	public static final String IMAGESURF_TREE_DEPTH = "ImageSURF Tree Depth";
 	public static final String IMAGESURF_NUM_TREES = "ImageSURF Num Trees";
 	public static final String IMAGESURF_NUM_ATTRIBUTES = "ImageSURF Num Attributes";
@@ -56,6 +67,12 @@ public class ImageSurfSettings implements Command
 	public static final String IMAGESURF_TILE_SIZE = "ImageSURF Tile Size";
 	public static final String IMAGESURF_MIN_FEATURE_RADIUS = "ImageSURF Min Feature Radius";
 	public static final String IMAGESURF_MAX_FEATURE_RADIUS = "ImageSURF Max Feature Radius";
+	public static final String IMAGESURF_QUANTISE_THRESHOLDS = "ImageSURF Quantise Thresholds";
+	public static final String IMAGESURF_SPLIT_FINDER = "ImageSURF Split Finder";
+	public static final String IMAGESURF_SPLIT_CRITERION = "ImageSURF Split Criterion";
+	public static final String IMAGESURF_OUT_OF_BAG_ESTIMATES = "ImageSURF Out-of-bag Estimates";
+	public static final String IMAGESURF_INCREMENTAL_TRAINING = "ImageSURF Incremental Training";
+	public static final String IMAGESURF_RETRAINED_TREES = "ImageSURF Retrained Trees";
 
 	public static final String IMAGESURF_USE_IDENTITY = "ImageSURF use identity";
 	public static final String IMAGESURF_USE_MEAN = "ImageSURF use mean";
@@ -110,11 +127,20 @@ public class ImageSurfSettings implements Command
 	@Parameter(label = "Training examples to consider (%)", type = ItemIO.INPUT,
 			style = NumberWidget.SCROLL_BAR_STYLE, min = "1", max = "100", initializer = "initialiseValues",
 			description = "The number of training examples to consider. If less than 100%, example pixels are selected " +
-					"randomly with replacement. Reducing the number of training examples will reduce computation time, " +
+					"randomly without replacement. Reducing the number of training examples will reduce computation time, " +
 					"and may be necessary to prevent 'out-of-memory errors' with large densely annotated training images " +
 					"sets.")
 	private int examplePortion = DEFAULT_EXAMPLE_PORTION;
 
+	@Parameter(label = "Example sampling", type = ItemIO.INPUT,
+			choices = {"Uniform", "Stratified", "Class balanced"},
+			initializer = "initialiseValues",
+			description = "How training examples are selected. Uniform selects examples regardless of class. Stratified " +
+					"selects the same portion of each class. Class balanced selects the same number of examples from " +
+					"each class, even at 100%, which reduces training time when one class, usually the background, is " +
+					"much larger than the others.")
+	private String exampleSampling = DEFAULT_EXAMPLE_SAMPLING;
+
 	@Parameter(label = "Maximum features", type = ItemIO.INPUT,
 			style = NumberWidget.SPINNER_STYLE, min = "0", callback = "onMaxFeaturesChanged",
 			initializer = "initialiseValues",
@@ -137,6 +163,53 @@ public class ImageSurfSettings implements Command
 			initializer = "initialiseValues")
 	private int tileSize;
 
+	@Parameter(label = "Integer split thresholds", type = ItemIO.INPUT,
+			initializer = "initialiseValues",
+			description = "Store the classifier's split thresholds as integers and compare them directly with the " +
+					"8 or 16-bit feature values. Classifications are unchanged, but the classifier uses less memory " +
+					"and segments images more quickly.")
+	private boolean quantiseThresholds = DEFAULT_QUANTISE_THRESHOLDS;
+
+	@Parameter(label = "Split search", type = ItemIO.INPUT,
+			choices = {"Histogram", "Presorted", "Sorted"},
+			initializer = "initialiseValues",
+			description = "How the best split of each feature is found while training. Histogram counts the training " +
+					"examples at each feature value and is much faster on large training sets. Sorted sorts the " +
+					"examples at every branch. Presorted sorts each feature once and reuses the order at deeper branches, " +
+					"using more memory. All find the same splits.")
+	private String splitFinder = DEFAULT_SPLIT_FINDER;
+
+	@Parameter(label = "Split criterion", type = ItemIO.INPUT,
+			choices = {"Entropy", "Gini"},
+			initializer = "initialiseValues",
+			description = "How candidate splits are scored while training. Entropy uses information gain. Gini uses " +
+					"Gini impurity, which is faster to compute and usually gives similar accuracy. The criterion is " +
+					"saved with the classifier.")
+	private String splitCriterion = DEFAULT_SPLIT_CRITERION;
+
+	@Parameter(label = "Out-of-bag estimates", type = ItemIO.INPUT,
+			initializer = "initialiseValues",
+			description = "Estimate the classifier's accuracy and feature importance while training, using the " +
+					"training examples each tree was not trained on. This replaces classifying all training examples " +
+					"again after training, and once per feature when selecting the most important features.")
+	private boolean outOfBagEstimates = DEFAULT_OUT_OF_BAG_ESTIMATES;
+
+	@Parameter(label = "Retrain existing classifier", type = ItemIO.INPUT,
+			initializer = "initialiseValues",
+			description = "If a classifier already exists at the output path, retrain it rather than training a new " +
+					"one. Some of its trees are replaced with trees trained on the current annotations and the rest " +
+					"are updated with the current annotations, which is much faster when a few annotations have been " +
+					"added. The classifier's features are kept, and a new classifier is trained if the annotations " +
+					"have a different number of classes.")
+	private boolean incrementalTraining = DEFAULT_INCREMENTAL_TRAINING;
+
+	@Parameter(label = "Trees replaced when retraining (%)", type = ItemIO.INPUT,
+			style = NumberWidget.SCROLL_BAR_STYLE, min = "0", max = "100", initializer = "initialiseValues",
+			description = "The percentage of trees replaced with newly trained trees when retraining an existing " +
+					"classifier. More replaced trees follow the current annotations more closely but take longer to " +
+					"train.")
+	private int retrainedTrees = DEFAULT_RETRAINED_TREES;
+
 	protected void initialiseValues()
 	{
 		numTrees = preferences.getInt(ImageSurfSettings.IMAGESURF_NUM_TREES, ImageSurfSettings.DEFAULT_NUM_TREES);
@@ -146,7 +219,14 @@ public class ImageSurfSettings implements Command
 		maxFeatures = preferences.getInt(ImageSurfSettings.IMAGESURF_MAX_FEATURES, ImageSurfSettings.DEFAULT_MAX_FEATURES);
 		randomSeedString= preferences.get(ImageSurfSettings.IMAGESURF_RANDOM_SEED, null);
 		examplePortion = preferences.getInt(ImageSurfSettings.IMAGESURF_EXAMPLE_PORTION, ImageSurfSettings.DEFAULT_EXAMPLE_PORTION);
+		exampleSampling = preferences.get(ImageSurfSettings.IMAGESURF_EXAMPLE_SAMPLING, ImageSurfSettings.DEFAULT_EXAMPLE_SAMPLING);
 		tileSize = preferences.getInt(ImageSurfSettings.IMAGESURF_TILE_SIZE, ImageSurfSettings.DEFAULT_TILE_SIZE);
+		quantiseThresholds = preferences.getBoolean(ImageSurfSettings.IMAGESURF_QUANTISE_THRESHOLDS, ImageSurfSettings.DEFAULT_QUANTISE_THRESHOLDS);
+		splitFinder = preferences.get(ImageSurfSettings.IMAGESURF_SPLIT_FINDER, ImageSurfSettings.DEFAULT_SPLIT_FINDER);
+		splitCriterion = preferences.get(ImageSurfSettings.IMAGESURF_SPLIT_CRITERION, ImageSurfSettings.DEFAULT_SPLIT_CRITERION);
+		outOfBagEstimates = preferences.getBoolean(ImageSurfSettings.IMAGESURF_OUT_OF_BAG_ESTIMATES, ImageSurfSettings.DEFAULT_OUT_OF_BAG_ESTIMATES);
+		incrementalTraining = preferences.getBoolean(ImageSurfSettings.IMAGESURF_INCREMENTAL_TRAINING, ImageSurfSettings.DEFAULT_INCREMENTAL_TRAINING);
+		retrainedTrees = preferences.getInt(ImageSurfSettings.IMAGESURF_RETRAINED_TREES, ImageSurfSettings.DEFAULT_RETRAINED_TREES);
 	}
 
 	@Override
@@ -154,12 +234,19 @@ public class ImageSurfSettings implements Command
 	{
 		preferences.put(IMAGESURF_BAG_SIZE, bagSize);
 		preferences.put(IMAGESURF_EXAMPLE_PORTION, examplePortion);
+		preferences.put(IMAGESURF_EXAMPLE_SAMPLING, exampleSampling);
 		preferences.put(IMAGESURF_TREE_DEPTH, treeDepth);
 		preferences.put(IMAGESURF_NUM_TREES, numTrees);
 		preferences.put(IMAGESURF_NUM_ATTRIBUTES, numAttributes);
 		preferences.put(IMAGESURF_RANDOM_SEED, randomSeedString == null ? "" : randomSeedString);
 		preferences.put(IMAGESURF_MAX_FEATURES, maxFeatures);
 		preferences.put(IMAGESURF_TILE_SIZE, tileSize);
+		preferences.put(IMAGESURF_QUANTISE_THRESHOLDS, quantiseThresholds);
+		preferences.put(IMAGESURF_SPLIT_FINDER, splitFinder);
+		preferences.put(IMAGESURF_SPLIT_CRITERION, splitCriterion);
+		preferences.put(IMAGESURF_OUT_OF_BAG_ESTIMATES, outOfBagEstimates);
+		preferences.put(IMAGESURF_INCREMENTAL_TRAINING, incrementalTraining);
+		preferences.put(IMAGESURF_RETRAINED_TREES, retrainedTrees);
 	}
 
 	public static void main(final String... args) throws Exception {
@@ -25,14 +25,23 @@ import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import imagesurf.classifier.ImageSurfClassifier;
+import imagesurf.classifier.ImageSurfClassifierFile;
+import imagesurf.classifier.OutOfBagEstimate;
 import imagesurf.classifier.RandomForest;
+import imagesurf.classifier.SplitCriterion;
+import imagesurf.classifier.SplitFinder;
+import imagesurf.classifier.TrainingRecord;
 import imagesurf.feature.FeatureReader;
 import imagesurf.feature.FeatureReaderFactory;
 import imagesurf.feature.PixelType;
 import imagesurf.feature.SurfImage;
 import imagesurf.feature.calculator.FeatureCalculator;
+import imagesurf.feature.calculator.histogram.SummedAreaTable;
+import imagesurf.feature.calculator.histogram.SummedAreaTableFeature;
 import imagesurf.feature.importance.FeatureImportanceCalculator;
+import imagesurf.feature.importance.OutOfBagFeatureImportanceCalculator;
 import imagesurf.feature.importance.ScrambleFeatureImportanceCalculator;
+import imagesurf.util.ExampleSampling;
 import imagesurf.util.ProgressListener;
 import imagesurf.util.Training;
 import imagesurf.util.UtilityKt;
@@ -54,6 +63,8 @@ import util.UtilityJava;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
@@ -188,20 +199,26 @@ public class TrainImageSurfMultiClass implements Command {
             pixelType = prototype.pixelType;
         }
 
-        final FeatureCalculator[] selectedFeatures = getSelectedFeatures(pixelType, numChannels);
+        final ImageSurfClassifier previousClassifier = getPreviousClassifier(pixelType, numChannels);
+        final FeatureCalculator[] selectedFeatures = previousClassifier != null
+                ? previousClassifier.getFeatures()
+                : getSelectedFeatures(pixelType, numChannels);
         ensureEnoughRamForFeatureImages(paths, numChannels, selectedFeatures);
 
         final Random random = getRandom();
 
         final FeatureReader reader;
+        final int[] classColors;
         try {
             final FeatureReaderFactory readerFactory = new FeatureReaderFactory(pixelType);
             int examplePortion = prefService.getInt(ImageSurfSettings.IMAGESURF_EXAMPLE_PORTION, ImageSurfSettings.DEFAULT_EXAMPLE_PORTION);
-            final Object[] trainingExamples = Training.INSTANCE.getTrainingExamples(paths,
+            ExampleSampling exampleSampling = ExampleSampling.fromDescription(prefService.get(ImageSurfSettings.IMAGESURF_EXAMPLE_SAMPLING, ImageSurfSettings.DEFAULT_EXAMPLE_SAMPLING));
+            final Training.TrainingData trainingData = Training.INSTANCE.getTrainingData(paths,
                     random, progressListener, examplePortion, saveCalculatedFeatures,
-                    pixelType, selectedFeatures);
+                    pixelType, selectedFeatures, exampleSampling);
 
-            reader = readerFactory.getReader(trainingExamples);
+            reader = readerFactory.getReader(trainingData.getExamples());
+            classColors = trainingData.getClassColors();
         } catch (Exception e) {
             throw new RuntimeException("Failed to get training examples", e);
         }
@@ -217,27 +234,53 @@ public class TrainImageSurfMultiClass implements Command {
                 .withProgressListener(randomForestProgressListener)
                 .withData(reader);
 
+        final RandomForest previousForest;
+        if (previousClassifier != null && hasSameClasses(previousClassifier, classColors)) {
+            previousForest = previousClassifier.getRandomForest();
+            builder.withPreviousForest(previousForest, prefService.getInt(ImageSurfSettings.IMAGESURF_RETRAINED_TREES, ImageSurfSettings.DEFAULT_RETRAINED_TREES));
+        } else {
+            previousForest = null;
+            if (previousClassifier != null)
+                log.info("Annotations have classes " + Arrays.toString(classColors) + " but the existing classifier has " +
+                        (previousClassifier.getClassColors() != null
+                                ? "classes " + Arrays.toString(previousClassifier.getClassColors())
+                                : previousClassifier.getRandomForest().getNumClasses() + " classes") +
+                        ". Training a new classifier with the same features.");
+        }
+
+        final boolean outOfBagEstimates = prefService.getBoolean(ImageSurfSettings.IMAGESURF_OUT_OF_BAG_ESTIMATES, ImageSurfSettings.DEFAULT_OUT_OF_BAG_ESTIMATES);
+
         final FeatureCalculator[] optimalFeatures;
         final RandomForest randomForest;
-        if (getMaxFeatures() < selectedFeatures.length && getMaxFeatures() > 0) {
-            FeatureImportanceCalculator featureImportanceCalculator = new ScrambleFeatureImportanceCalculator(random.nextLong());
-            optimalFeatures = featureImportanceCalculator.selectOptimalFeatures(getMaxFeatures(), reader, builder.build(), selectedFeatures, message -> {
+        if (previousClassifier == null && getMaxFeatures() < selectedFeatures.length && getMaxFeatures() > 0) {
+            final FeatureImportanceCalculator featureImportanceCalculator;
+            if (outOfBagEstimates) {
+                featureImportanceCalculator = new OutOfBagFeatureImportanceCalculator();
+            } else {
+                ScrambleFeatureImportanceCalculator scrambleFeatureImportanceCalculator = new ScrambleFeatureImportanceCalculator(random.nextLong());
+                scrambleFeatureImportanceCalculator.addProgressListener(randomForestProgressListener);
+                featureImportanceCalculator = scrambleFeatureImportanceCalculator;
+            }
+            optimalFeatures = featureImportanceCalculator.selectOptimalFeatures(getMaxFeatures(), reader, builder.withOutOfBagEstimates(outOfBagEstimates, true).build(), selectedFeatures, message -> {
                  log.info(message);
                  return null;
             });
 
             final FeatureReader optimisedFeaturesReader = Training.INSTANCE.getSelectedFeaturesReader(optimalFeatures, selectedFeatures, reader);
 
-            randomForest = builder.withData(optimisedFeaturesReader).build();
+            randomForest = builder.withData(optimisedFeaturesReader).withOutOfBagEstimates(outOfBagEstimates).build();
         } else {
             optimalFeatures = selectedFeatures;
-            randomForest = builder.build();
+            randomForest = builder.withOutOfBagEstimates(outOfBagEstimates).build();
         }
 
         randomForest.addProgressListener(randomForestProgressListener);
 
         try {
-            String verification = Training.INSTANCE.verifySegmentation(reader, numClasses, randomForest).describe();
+            final OutOfBagEstimate outOfBagEstimate = randomForest.getOutOfBagEstimate();
+            String verification = (outOfBagEstimate != null
+                    ? Training.INSTANCE.verifyOutOfBag(reader, numClasses, outOfBagEstimate)
+                    : Training.INSTANCE.verifySegmentation(reader, numClasses, randomForest)).describe();
             log.info(verification);
             ImageSURF = verification;
         } catch( Exception e) {
@@ -247,7 +290,12 @@ public class TrainImageSurfMultiClass implements Command {
 
         randomForest.removeProgressListener(randomForestProgressListener);
 
-        ImageSurfClassifier imageSurfClassifier = new ImageSurfClassifier(randomForest, optimalFeatures, pixelType, numChannels);
+        final List<TrainingRecord> lineage = new ArrayList<>();
+        if (previousForest != null)
+            lineage.addAll(previousClassifier.getLineage());
+        lineage.add(TrainingRecord.of(randomForest, reader.getNumInstances(), previousForest));
+
+        ImageSurfClassifier imageSurfClassifier = new ImageSurfClassifier(randomForest, optimalFeatures, pixelType, numChannels, lineage, classColors);
         writeClassifier(imageSurfClassifier);
 
         ImageSURF = "ImageSURF classifier successfully trained and saved to " + classifierOutputPath.getAbsolutePath()
@@ -279,6 +327,47 @@ public class TrainImageSurfMultiClass implements Command {
             );
     }
 
+    /**
+     * Whether a classifier was trained on the same classes as the annotations, with the same label colour for each
+     * class. Classifiers saved before class colours were recorded can only be compared by their number of classes.
+     */
+    private static boolean hasSameClasses(ImageSurfClassifier classifier, int[] classColors) {
+        final int[] previousColors = classifier.getClassColors();
+
+        return previousColors != null
+                ? Arrays.equals(previousColors, classColors)
+                : classifier.getRandomForest().getNumClasses() == classColors.length;
+    }
+
+    /**
+     * Reads the classifier at the output path to retrain, if retraining is enabled and the classifier was trained on
+     * images of the same type.
+     *
+     * @return the existing classifier, or null if a new classifier should be trained
+     */
+    private ImageSurfClassifier getPreviousClassifier(PixelType pixelType, int numChannels) {
+        if (!prefService.getBoolean(ImageSurfSettings.IMAGESURF_INCREMENTAL_TRAINING, ImageSurfSettings.DEFAULT_INCREMENTAL_TRAINING)
+                || !classifierOutputPath.isFile())
+            return null;
+
+        final ImageSurfClassifier previousClassifier;
+        try {
+            previousClassifier = ImageSurfClassifierFile.read(classifierOutputPath);
+        } catch (IOException | ClassNotFoundException e) {
+            log.warn("Failed to read existing classifier " + classifierOutputPath.getAbsolutePath() + " (" + e.getMessage() + "). Training a new classifier.");
+            return null;
+        }
+
+        if (previousClassifier.getPixelType() != pixelType || previousClassifier.getNumChannels() != numChannels) {
+            log.info("Existing classifier " + classifierOutputPath.getAbsolutePath() + " was trained on different " +
+                    "images. Training a new classifier.");
+            return null;
+        }
+
+        log.info("Retraining existing classifier " + classifierOutputPath.getAbsolutePath());
+        return previousClassifier;
+    }
+
     private Random getRandom() {
         String randomSeedString = prefService.get(ImageSurfSettings.IMAGESURF_RANDOM_SEED, null);
         final Random random = (randomSeedString == null || randomSeedString.isEmpty()) ? new Random() : new Random(randomSeedString.hashCode());
@@ -426,6 +515,9 @@ public class TrainImageSurfMultiClass implements Command {
         int treeDepth = prefService.getInt(ImageSurfSettings.IMAGESURF_TREE_DEPTH, ImageSurfSettings.DEFAULT_TREE_DEPTH);
         int numAttributes = prefService.getInt(ImageSurfSettings.IMAGESURF_NUM_ATTRIBUTES, ImageSurfSettings.DEFAULT_NUM_ATTRIBUTES);
         int bagSize = prefService.getInt(ImageSurfSettings.IMAGESURF_BAG_SIZE, ImageSurfSettings.DEFAULT_BAG_SIZE);
+        boolean quantiseThresholds = prefService.getBoolean(ImageSurfSettings.IMAGESURF_QUANTISE_THRESHOLDS, ImageSurfSettings.DEFAULT_QUANTISE_THRESHOLDS);
+        SplitFinder splitFinder = SplitFinder.fromDescription(prefService.get(ImageSurfSettings.IMAGESURF_SPLIT_FINDER, ImageSurfSettings.DEFAULT_SPLIT_FINDER));
+        SplitCriterion splitCriterion = SplitCriterion.fromDescription(prefService.get(ImageSurfSettings.IMAGESURF_SPLIT_CRITERION, ImageSurfSettings.DEFAULT_SPLIT_CRITERION));
 
         if (numAttributes <= 0) {
             numAttributes = (int) (UtilityJava.log2(numFeatures - 1) + 1);
@@ -439,6 +531,9 @@ public class TrainImageSurfMultiClass implements Command {
                 .withNumAttributes(numAttributes)
                 .withBagSize(bagSize)
                 .withRandomSeed(random.nextInt())
+                .withQuantisation(quantiseThresholds)
+                .withSplitFinder(splitFinder)
+                .withSplitCriterion(splitCriterion)
                 .onNumThreads(Prefs.getThreads());
 
     }
@@ -453,7 +548,7 @@ public class TrainImageSurfMultiClass implements Command {
 
         while (!writeSuccessful) {
             try {
-                UtilityJava.serializeObject(imageSurfClassifier, classifierOutputPath, true);
+                ImageSurfClassifierFile.writeSerialized(imageSurfClassifier, classifierOutputPath);
                 writeSuccessful = true;
                 log.trace("Classifier saved.");
             } catch (IOException e) {
@@ -486,7 +581,12 @@ public class TrainImageSurfMultiClass implements Command {
 
         final long ramAvailable = Runtime.getRuntime().maxMemory();
         final long threads = Prefs.getThreads();
-        final long estimatedRamRequired = (featureFilesSize.orElse(0l)/numChannels) * (featureCalculators.length+threads);
+        // While features are calculated, each channel of the image has a summed-area table if any feature uses one
+        final long summedAreaTablesRam = Arrays.stream(featureCalculators).anyMatch(f -> f instanceof SummedAreaTableFeature)
+                ? featureFilesSize.orElse(0l) * SummedAreaTable.BYTES_PER_PIXEL
+                : 0;
+        final long estimatedRamRequired = (featureFilesSize.orElse(0l)/numChannels) * (featureCalculators.length+threads) +
+                summedAreaTablesRam;
 
         if(estimatedRamRequired > ramAvailable) {
             final String errorMessage = String.format("Not enough memory available to calculate features. " +
@@ -22,7 +22,10 @@ import imagesurf.feature.calculator.FeatureCalculator;
 import imagesurf.feature.PixelType;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class ImageSurfClassifier implements Serializable
 {
@@ -33,12 +36,42 @@ public class ImageSurfClassifier implements Serializable
 	private final RandomForest randomForest;
 	private final PixelType pixelType;
 
+	/**
+	 * Each round of training that produced this classifier, oldest first. Null for classifiers saved before lineage
+	 * was recorded.
+	 */
+	private final ArrayList<TrainingRecord> lineage;
+
+	/**
+	 * The label colour of each class, in class order. Null if the colours are not known, as for classifiers saved
+	 * before they were recorded.
+	 */
+	private final int[] classColors;
+
 	public ImageSurfClassifier(RandomForest randomForest, FeatureCalculator[] features, PixelType pixelType, int numChannels)
 	{
+		this(randomForest, features, pixelType, numChannels, Collections.emptyList());
+	}
+
+	public ImageSurfClassifier(RandomForest randomForest, FeatureCalculator[] features, PixelType pixelType, int numChannels,
+							   List<TrainingRecord> lineage)
+	{
+		this(randomForest, features, pixelType, numChannels, lineage, null);
+	}
+
+	public ImageSurfClassifier(RandomForest randomForest, FeatureCalculator[] features, PixelType pixelType, int numChannels,
+							   List<TrainingRecord> lineage, int[] classColors)
+	{
+		if (classColors != null && classColors.length != randomForest.getNumClasses())
+			throw new IllegalArgumentException("Classifier has " + randomForest.getNumClasses() + " classes but " +
+					classColors.length + " class colours");
+
 		this.randomForest = randomForest;
 		this.features = Arrays.stream(features).toArray(FeatureCalculator[]::new);
 		this.pixelType = pixelType;
 		this.numChannels = numChannels;
+		this.lineage = new ArrayList<>(lineage);
+		this.classColors = classColors == null ? null : classColors.clone();
 	}
 
 	public PixelType getPixelType()
@@ -60,4 +93,17 @@ public class ImageSurfClassifier implements Serializable
 	{
 		return randomForest;
 	}
+
+	public List<TrainingRecord> getLineage()
+	{
+		return lineage == null ? Collections.emptyList() : Collections.unmodifiableList(lineage);
+	}
+
+	/**
+	 * @return the label colour of each class, in class order, or null if the colours are not known
+	 */
+	public int[] getClassColors()
+	{
+		return classColors == null ? null : classColors.clone();
+	}
 }
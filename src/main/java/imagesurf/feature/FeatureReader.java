@@ -29,6 +29,10 @@ public interface FeatureReader
 	int getClassValue(final int instanceIndex);
 	double getValue(final int instanceIndex, final int attributeIndex);
 
+	/**
+	 * Sorts instance indices by the value of an attribute, keeping equal values in their input order. Readers of
+	 * bounded integer values override this with a linear-time counting or radix sort.
+	 */
 	default int[] getSortedIndices(int attributeIndex, int[] instanceIndices)
 	{
 		int[] sortedIndices = Arrays.copyOf(instanceIndices, instanceIndices.length);
@@ -38,6 +42,18 @@ public interface FeatureReader
 		return sortedIndices;
 	}
 
+	/**
+	 * Sorts instanceIndices from (inclusive) to to (exclusive) by the value of an attribute as
+	 * {@link #getSortedIndices(int, int[])} does, writing them to sorted starting at sortedFrom. Readers that override
+	 * this sort without allocating.
+	 */
+	default void sortIndices(int attributeIndex, int[] instanceIndices, int from, int to, int[] sorted, int sortedFrom)
+	{
+		int[] sortedIndices = getSortedIndices(attributeIndex, Arrays.copyOfRange(instanceIndices, from, to));
+
+		System.arraycopy(sortedIndices, 0, sorted, sortedFrom, sortedIndices.length);
+	}
+
 	default short[] getClasses()
 	{
 		final int numInstances = getNumInstances();
@@ -88,6 +104,16 @@ public interface FeatureReader
 				return featureReader.getValue(instanceIndex, indicesArray[attributeIndex]);
 			}
 
+			@Override
+			public int[] getSortedIndices(int attributeIndex, int[] instanceIndices) {
+				return featureReader.getSortedIndices(indicesArray[attributeIndex], instanceIndices);
+			}
+
+			@Override
+			public void sortIndices(int attributeIndex, int[] instanceIndices, int from, int to, int[] sorted, int sortedFrom) {
+				featureReader.sortIndices(indicesArray[attributeIndex], instanceIndices, from, to, sorted, sortedFrom);
+			}
+
 			@Override
 			public int getNumInstances() {
 				return featureReader.getNumInstances();
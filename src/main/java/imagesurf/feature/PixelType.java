@@ -18,6 +18,7 @@
 package imagesurf.feature;
 
 import imagesurf.feature.calculator.*;
+import imagesurf.feature.calculator.histogram.Histogram;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
@@ -40,6 +41,22 @@ public enum PixelType {
 		}
 	}
 
+	/**
+	 * How neighbourhood histograms of this pixel type keep their non-empty bins in order, unless a caller chooses
+	 * otherwise.
+	 */
+	public Histogram.Index getHistogramIndex()
+	{
+		switch (this)
+		{
+			case GRAY_8_BIT:
+			case GRAY_16_BIT:
+				return Histogram.Index.BITMAP;
+			default:
+				throw new IllegalArgumentException("Pixel type not yet implemented: "+this);
+		}
+	}
+
 	@NotNull
 	public FeatureCalculator[] getAllFeatureCalculators(int minRadius, int maxRadius, int numMergedChannels) {
 		FeatureCalculator[] baseCalculators = getAllFeatureCalculators(minRadius, maxRadius);
@@ -25,6 +25,8 @@ import imagesurf.feature.calculator.FeatureCalculator;
 import imagesurf.feature.calculator.Identity;
 import imagesurf.feature.calculator.histogram.MultipleFeatureCalculator;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
+import imagesurf.feature.calculator.histogram.SummedAreaTable;
+import imagesurf.feature.calculator.histogram.SummedAreaTableFeature;
 import imagesurf.reader.ByteReader;
 import imagesurf.reader.ShortReader;
 import imagesurf.util.ImageSurfEnvironment;
@@ -624,6 +626,10 @@ public class SurfImage implements Serializable, ProgressNotifier
 		if(featuresToCalculate.length == 0)
 			return false;
 
+		// Features of the same channel share one copy of its pixels and one summed-area table
+		final Map<Integer, Object> channelPixels = new ConcurrentHashMap<>();
+		final Map<Integer, SummedAreaTable> channelTables = new ConcurrentHashMap<>();
+
 		final List<FeatureCalculator> allFeatures = Arrays.stream(features).collect(Collectors.toList());
 		final List<FeatureCalculator> remainingFeatureCalculators = new Vector<FeatureCalculator>(Arrays.asList(featuresToCalculate));
 		while (!remainingFeatureCalculators.isEmpty())
@@ -650,13 +656,15 @@ public class SurfImage implements Serializable, ProgressNotifier
 
 			remainingFeatureCalculators.removeAll(toProcess);
 
+			//Histogram based features of every radius for the same channel are calculated in one traversal
 			List<MultipleFeatureCalculator> multiCalculators = toProcess.stream()
 					.filter( f -> f instanceof NeighbourhoodHistogramCalculator)
 					.map ( f -> (NeighbourhoodHistogramCalculator) f)
-					.collect(Collectors.groupingBy(FeatureCalculator::getRadius, Collectors.groupingBy(FeatureCalculator::getTags)))
+					.filter(NeighbourhoodHistogramCalculator::isHistogramBased)
+					.collect(Collectors.groupingBy(FeatureCalculator::getTags))
 					.values()
 					.stream()
-					.flatMap( e -> e.values().stream().map(MultipleFeatureCalculator::new))
+					.map(MultipleFeatureCalculator::new)
 					.collect(Collectors.toList());
 
 			toProcess.removeAll(multiCalculators.stream()
@@ -676,10 +684,18 @@ public class SurfImage implements Serializable, ProgressNotifier
 						long featureStart = System.currentTimeMillis();
 
 						final int featureMergedChannelIndex = getFeatureMergedChannelIndex(featureCalculator);
-						Object imagePixels = getMergedChannelPixels(featureMergedChannelIndex, z, t);
+						Object imagePixels = channelPixels.computeIfAbsent(featureMergedChannelIndex,
+								channelIndex -> getMergedChannelPixels(channelIndex, z, t));
 
 						//Feature image is added to cache upon completion
-						featureCalculator.calculate(imagePixels, width, height, featureCache);
+						if (featureCalculator instanceof SummedAreaTableFeature) {
+							final SummedAreaTable table = channelTables.computeIfAbsent(featureMergedChannelIndex,
+									channelIndex -> SummedAreaTable.of(imagePixels, width, height));
+
+							((SummedAreaTableFeature) featureCalculator).calculate(table, featureCache);
+						} else {
+							featureCalculator.calculate(imagePixels, width, height, featureCache);
+						}
 
 						long computationTime = System.currentTimeMillis() - featureStart;
 						recordComputationTime(featureCalculator, computationTime, pixelsPerChannel*numChannels);
@@ -20,11 +20,19 @@ package imagesurf.feature.calculator;
 import imagesurf.feature.calculator.histogram.Histogram;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
 import imagesurf.feature.calculator.histogram.PixelReader;
+import imagesurf.feature.calculator.histogram.SummedAreaTable;
+import imagesurf.feature.calculator.histogram.SummedAreaTableFeature;
 
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.Map;
 
-public class Mean extends NeighbourhoodHistogramCalculator implements Serializable
+/**
+ * The mean of each pixel's neighbourhood, calculated from a {@link SummedAreaTable} rather than neighbourhood
+ * histograms. The histogram calculator is kept for use in a
+ * {@link imagesurf.feature.calculator.histogram.MultipleFeatureCalculator}.
+ */
+public class Mean extends NeighbourhoodHistogramCalculator implements SummedAreaTableFeature, Serializable
 {
 	static final long serialVersionUID = 42L;
 
@@ -45,11 +53,54 @@ public class Mean extends NeighbourhoodHistogramCalculator implements Serializab
 		return "Mean";
 	}
 
+	@Override
+	public byte[][] calculate(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated)
+	{
+		final byte[][] result = (byte[][]) calculate(SummedAreaTable.of(pixels, width, height));
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public short[][] calculate(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated)
+	{
+		final short[][] result = (short[][]) calculate(SummedAreaTable.of(pixels, width, height));
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public Object calculate(SummedAreaTable table, Map<FeatureCalculator, Object> calculated)
+	{
+		final Object result = calculate(table);
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	private Object calculate(SummedAreaTable table)
+	{
+		return table.calculateImages(getRadius(), Mean::mean);
+	}
+
+	@Override
+	public boolean isHistogramBased()
+	{
+		return false;
+	}
+
 	@Override
 	protected Calculator getCalculator(PixelReader reader) {
 		return pw -> {
-			final int numPixels = pw.getNumPixels();
-			int sum = 0;
+			long sum = 0;
 
 			final int numEntries = pw.getNumUniqueValues();
 			final Iterator<Histogram.Bin> it = pw.getHistogramIterator();
@@ -57,10 +108,15 @@ public class Mean extends NeighbourhoodHistogramCalculator implements Serializab
 			for(int i = 0; i < numEntries; i++)
 			{
 				final Histogram.Bin b = it.next();
-				sum += b.getCount() * b.value;
+				sum += (long) b.getCount() * b.value;
 			}
 
-			return new int[] {sum/numPixels};
+			return new int[] {mean(pw.getNumPixels(), sum, 0)};
 		};
 	}
+
+	private static int mean(int numPixels, long sum, long sumOfSquares)
+	{
+		return (int) (sum / numPixels);
+	}
 }
@@ -18,12 +18,19 @@
 package imagesurf.feature.calculator;
 
 import imagesurf.feature.calculator.histogram.Histogram;
+import imagesurf.feature.calculator.histogram.MedianFilter;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
 import imagesurf.feature.calculator.histogram.PixelReader;
 
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.Map;
 
+/**
+ * The median of each pixel's neighbourhood, calculated with a {@link MedianFilter} rather than neighbourhood
+ * histograms. The histogram calculator is kept for use in a
+ * {@link imagesurf.feature.calculator.histogram.MultipleFeatureCalculator}.
+ */
 public class Median extends NeighbourhoodHistogramCalculator implements Serializable
 {
 	static final long serialVersionUID = 42L;
@@ -33,6 +40,24 @@ public class Median extends NeighbourhoodHistogramCalculator implements Serializ
 		super(radius);
 	}
 
+	@Override
+	public byte[][] calculate(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated)
+	{
+		return calculateWithFilter(pixels, width, height, calculated, MedianFilter::median);
+	}
+
+	@Override
+	public short[][] calculate(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated)
+	{
+		return calculateWithFilter(pixels, width, height, calculated, MedianFilter::median);
+	}
+
+	@Override
+	public boolean isHistogramBased()
+	{
+		return false;
+	}
+
 	@Override
 	protected Calculator getCalculator(final PixelReader reader) {
 
@@ -17,11 +17,18 @@
 
 package imagesurf.feature.calculator;
 
+import imagesurf.feature.calculator.histogram.ExtremaFilter;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
 import imagesurf.feature.calculator.histogram.PixelReader;
 
 import java.io.Serializable;
+import java.util.Map;
 
+/**
+ * The minimum of each pixel's neighbourhood, calculated with an {@link ExtremaFilter} rather than neighbourhood
+ * histograms. The histogram calculator is kept for use in a
+ * {@link imagesurf.feature.calculator.histogram.MultipleFeatureCalculator}.
+ */
 public class Min extends NeighbourhoodHistogramCalculator implements Serializable
 {
 	static final long serialVersionUID = 42L;
@@ -43,6 +50,24 @@ public class Min extends NeighbourhoodHistogramCalculator implements Serializabl
 		return "Min";
 	}
 
+	@Override
+	public byte[][] calculate(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated)
+	{
+		return calculateWithFilter(pixels, width, height, calculated, ExtremaFilter::min);
+	}
+
+	@Override
+	public short[][] calculate(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated)
+	{
+		return calculateWithFilter(pixels, width, height, calculated, ExtremaFilter::min);
+	}
+
+	@Override
+	public boolean isHistogramBased()
+	{
+		return false;
+	}
+
 	@Override
 	protected Calculator getCalculator(PixelReader reader) {
 		return pw -> new int[] { pw.getHistogramMin().value };
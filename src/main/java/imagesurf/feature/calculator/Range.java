@@ -17,11 +17,18 @@
 
 package imagesurf.feature.calculator;
 
+import imagesurf.feature.calculator.histogram.ExtremaFilter;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
 import imagesurf.feature.calculator.histogram.PixelReader;
 
 import java.io.Serializable;
+import java.util.Map;
 
+/**
+ * The difference between the maximum and minimum of each pixel's neighbourhood. The {@link Min} and {@link Max} of the
+ * same neighbourhood are taken from the calculated features when they are there, and otherwise calculated with an
+ * {@link ExtremaFilter}.
+ */
 public class Range extends NeighbourhoodHistogramCalculator implements Serializable
 {
 	static final long serialVersionUID = 42L;
@@ -43,6 +50,60 @@ public class Range extends NeighbourhoodHistogramCalculator implements Serializa
 		return "Range";
 	}
 
+	@Override
+	public byte[][] calculate(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated)
+	{
+		final byte[][] cachedMin = calculated == null ? null : calculated.get(withTags(new Min(getRadius())));
+		final byte[][] cachedMax = calculated == null ? null : calculated.get(withTags(new Max(getRadius())));
+
+		final byte[] min = cachedMin == null ? ExtremaFilter.min(pixels, width, height, getRadius()) : cachedMin[0];
+		final byte[] max = cachedMax == null ? ExtremaFilter.max(pixels, width, height, getRadius()) : cachedMax[0];
+
+		final byte[] range = new byte[pixels.length];
+		for (int i = 0; i < range.length; i++)
+			range[i] = (byte) ((max[i] & 0xff) - (min[i] & 0xff));
+
+		final byte[][] result = new byte[][] {range};
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public short[][] calculate(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated)
+	{
+		final short[][] cachedMin = calculated == null ? null : calculated.get(withTags(new Min(getRadius())));
+		final short[][] cachedMax = calculated == null ? null : calculated.get(withTags(new Max(getRadius())));
+
+		final short[] min = cachedMin == null ? ExtremaFilter.min(pixels, width, height, getRadius()) : cachedMin[0];
+		final short[] max = cachedMax == null ? ExtremaFilter.max(pixels, width, height, getRadius()) : cachedMax[0];
+
+		final short[] range = new short[pixels.length];
+		for (int i = 0; i < range.length; i++)
+			range[i] = (short) ((max[i] & 0xffff) - (min[i] & 0xffff));
+
+		final short[][] result = new short[][] {range};
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public boolean isHistogramBased()
+	{
+		return false;
+	}
+
+	private FeatureCalculator withTags(FeatureCalculator feature)
+	{
+		tags.forEach(feature::setTag);
+		return feature;
+	}
+
 	@Override
 	protected Calculator getCalculator(PixelReader reader) {
 		return pw -> {
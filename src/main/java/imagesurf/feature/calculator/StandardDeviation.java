@@ -20,11 +20,19 @@ package imagesurf.feature.calculator;
 import imagesurf.feature.calculator.histogram.Histogram;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
 import imagesurf.feature.calculator.histogram.PixelReader;
+import imagesurf.feature.calculator.histogram.SummedAreaTable;
+import imagesurf.feature.calculator.histogram.SummedAreaTableFeature;
 
 import java.io.Serializable;
 import java.util.Iterator;
+import java.util.Map;
 
-public class StandardDeviation extends NeighbourhoodHistogramCalculator implements Serializable
+/**
+ * Twice the standard deviation of each pixel's neighbourhood, calculated from a {@link SummedAreaTable} rather than
+ * neighbourhood histograms. The histogram calculator is kept for use in a
+ * {@link imagesurf.feature.calculator.histogram.MultipleFeatureCalculator}.
+ */
+public class StandardDeviation extends NeighbourhoodHistogramCalculator implements SummedAreaTableFeature, Serializable
 {
 	static final long serialVersionUID = 42L;
 
@@ -45,14 +53,60 @@ public class StandardDeviation extends NeighbourhoodHistogramCalculator implemen
 		return "Standard Deviation";
 	}
 
+	@Override
+	public byte[][] calculate(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated)
+	{
+		final byte[][] result = (byte[][]) calculate(SummedAreaTable.of(pixels, width, height));
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public short[][] calculate(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated)
+	{
+		final short[][] result = (short[][]) calculate(SummedAreaTable.of(pixels, width, height));
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public Object calculate(SummedAreaTable table, Map<FeatureCalculator, Object> calculated)
+	{
+		final Object result = calculate(table);
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	private Object calculate(SummedAreaTable table)
+	{
+		final int maxValue = table.maxValue();
+
+		return table.calculateImages(getRadius(),
+				(numPixels, sum, sumOfSquares) -> standardDeviation(numPixels, sum, sumOfSquares, maxValue));
+	}
+
+	@Override
+	public boolean isHistogramBased()
+	{
+		return false;
+	}
+
 	@Override
 	protected Calculator getCalculator(PixelReader reader) {
 		final int maxValue = reader.maxValue();
 
 		return pw -> {
-			final int numPixels = pw.getNumPixels();
-			double sum = 0;
-			double sumSquared = 0;
+			long sum = 0;
+			long sumSquared = 0;
 
 			final int numEntries = pw.getNumUniqueValues();
 			final Iterator<Histogram.Bin> it = pw.getHistogramIterator();
@@ -60,20 +114,26 @@ public class StandardDeviation extends NeighbourhoodHistogramCalculator implemen
 			for(int i = 0; i < numEntries; i++)
 			{
 				final Histogram.Bin b = it.next();
-				final int count = b.getCount();
-				final double value = b.value;
+				final long count = b.getCount();
+				final long value = b.value;
 
 				sum += (count * value);
 
 				sumSquared += (value * value * count);
 			}
 
-			final double mean = sum/numPixels;
-			final double squaredMean = sumSquared/numPixels;
+			return new int[] {standardDeviation(pw.getNumPixels(), sum, sumSquared, maxValue)};
+		};
+	}
+
+	// The sums are exact, so the result is the same whether they come from a histogram or a summed-area table
+	private static int standardDeviation(int numPixels, long sum, long sumSquared, int maxValue)
+	{
+		final double mean = (double) sum/numPixels;
+		final double squaredMean = (double) sumSquared/numPixels;
 
-			int stdDev = (int) Math.round(Math.sqrt(squaredMean - (mean * mean)));
+		int stdDev = (int) Math.round(Math.sqrt(squaredMean - (mean * mean)));
 
-			return new int[] {Math.min(stdDev * 2, maxValue)};
-		};
+		return Math.min(stdDev * 2, maxValue);
 	}
 }
@@ -0,0 +1,204 @@
+package imagesurf.feature.calculator.histogram;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A set of values from 0 to a fixed maximum, kept as a bitmap of 64-bit words with a summary bitmap of the non-empty
+ * words.
+ *
+ * Adding and removing a value changes at most one word of each level, and the lowest or highest value at or beyond a
+ * position is found with a bit scan of one word, a scan of the summary and a bit scan of the word it leads to. The
+ * summary of 65536 values is 16 words. Nothing is allocated after construction except iterators.
+ */
+class BitmapValueSet implements SortedValueSet {
+
+    private final int numValues;
+
+    // Bit (v % 64) of word (v / 64) is set when v is in the set
+    private final long[] words;
+    // Bit (w % 64) of summary word (w / 64) is set when word w is not empty
+    private final long[] summary;
+
+    private int size = 0;
+
+    BitmapValueSet(int numValues) {
+        this.numValues = numValues;
+        this.words = new long[(numValues + 63) >>> 6];
+        this.summary = new long[(words.length + 63) >>> 6];
+    }
+
+    @Override
+    public void add(int value) {
+        final int word = value >>> 6;
+        final long bit = 1L << value;
+
+        if ((words[word] & bit) != 0)
+            return;
+
+        if (words[word] == 0)
+            summary[word >>> 6] |= 1L << word;
+
+        words[word] |= bit;
+        size++;
+    }
+
+    @Override
+    public void remove(int value) {
+        final int word = value >>> 6;
+        final long bit = 1L << value;
+
+        if ((words[word] & bit) == 0)
+            throw new NoSuchElementException("Value " + value + " is not in the set");
+
+        words[word] &= ~bit;
+
+        if (words[word] == 0)
+            summary[word >>> 6] &= ~(1L << word);
+
+        size--;
+    }
+
+    @Override
+    public void clear() {
+        for (int s = 0; s < summary.length; s++) {
+            for (long bits = summary[s]; bits != 0; bits &= bits - 1)
+                words[(s << 6) + Long.numberOfTrailingZeros(bits)] = 0;
+
+            summary[s] = 0;
+        }
+
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int firstValue() {
+        final int first = ceiling(0);
+        if (first < 0)
+            throw new NoSuchElementException();
+
+        return first;
+    }
+
+    @Override
+    public int lastValue() {
+        final int last = floor(numValues - 1);
+        if (last < 0)
+            throw new NoSuchElementException();
+
+        return last;
+    }
+
+    /**
+     * The lowest value in the set that is at least the given value, or -1 if there is none.
+     */
+    int ceiling(int from) {
+        if (from >= numValues)
+            return -1;
+
+        final int word = from >>> 6;
+        final long bits = words[word] & (-1L << from);
+        if (bits != 0)
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+
+        final int nextWord = nextWord(word + 1);
+        return nextWord < 0 ? -1 : (nextWord << 6) + Long.numberOfTrailingZeros(words[nextWord]);
+    }
+
+    /**
+     * The highest value in the set that is at most the given value, or -1 if there is none.
+     */
+    int floor(int from) {
+        if (from < 0)
+            return -1;
+
+        final int word = from >>> 6;
+        final long bits = words[word] & (-1L >>> (63 - (from & 63)));
+        if (bits != 0)
+            return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+
+        final int previousWord = previousWord(word - 1);
+        return previousWord < 0 ? -1 : (previousWord << 6) + 63 - Long.numberOfLeadingZeros(words[previousWord]);
+    }
+
+    private int nextWord(int from) {
+        int s = from >>> 6;
+        if (s >= summary.length)
+            return -1;
+
+        long bits = summary[s] & (-1L << from);
+        while (bits == 0) {
+            if (++s == summary.length)
+                return -1;
+
+            bits = summary[s];
+        }
+
+        return (s << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    private int previousWord(int from) {
+        if (from < 0)
+            return -1;
+
+        int s = from >>> 6;
+        long bits = summary[s] & (-1L >>> (63 - (from & 63)));
+        while (bits == 0) {
+            if (--s < 0)
+                return -1;
+
+            bits = summary[s];
+        }
+
+        return (s << 6) + 63 - Long.numberOfLeadingZeros(bits);
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt ascending() {
+        return new PrimitiveIterator.OfInt() {
+            int value = ceiling(0);
+
+            @Override
+            public boolean hasNext() {
+                return value >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (value < 0)
+                    throw new NoSuchElementException();
+
+                final int current = value;
+                value = ceiling(current + 1);
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt descending() {
+        return new PrimitiveIterator.OfInt() {
+            int value = floor(numValues - 1);
+
+            @Override
+            public boolean hasNext() {
+                return value >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (value < 0)
+                    throw new NoSuchElementException();
+
+                final int current = value;
+                value = floor(current - 1);
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,130 @@
+package imagesurf.feature.calculator.histogram;
+
+import java.util.Arrays;
+
+/**
+ * Minimum and maximum filters over the same circular neighbourhoods as {@link NeighbourhoodHistogramCalculator},
+ * calculated without histograms.
+ *
+ * The mask is decomposed into rectangles, one for each distinct row segment, spanning the rows of the mask that contain
+ * that segment. The minimum over the mask is the minimum over its rectangles, and the minimum over a rectangle is a
+ * running minimum along each image row followed by a running minimum down each column of the result. Running minima
+ * are calculated with the van Herk/Gil-Werman algorithm, which takes three comparisons per pixel whatever the length
+ * of the segment, so the cost per pixel depends only on the number of rectangles and not on the number of pixels or
+ * distinct values in the neighbourhood. Maxima are minima of the inverted image.
+ *
+ * Pixels outside the image are ignored, as they are by {@link PixelWindow}, so the results are identical to those
+ * calculated from the neighbourhood histograms.
+ */
+public class ExtremaFilter {
+
+    private static final int EMPTY = Integer.MAX_VALUE;
+
+    public static byte[] min(byte[] pixels, int width, int height, int radius) {
+        return toBytes(min(toInts(pixels, false), width, height, radius), false);
+    }
+
+    public static byte[] max(byte[] pixels, int width, int height, int radius) {
+        return toBytes(min(toInts(pixels, true), width, height, radius), true);
+    }
+
+    public static short[] min(short[] pixels, int width, int height, int radius) {
+        return toShorts(min(toInts(pixels, false), width, height, radius), false);
+    }
+
+    public static short[] max(short[] pixels, int width, int height, int radius) {
+        return toShorts(min(toInts(pixels, true), width, height, radius), true);
+    }
+
+    private static int[] min(int[] values, int width, int height, int radius) {
+        final int[] result = new int[values.length];
+        Arrays.fill(result, EMPTY);
+
+        final int[] rowMinima = new int[values.length];
+
+        Mask.Rectangle previous = null;
+        for (Mask.Rectangle rectangle : Mask.get(radius).coveringRectangles()) {
+            if (previous == null || !rectangle.sameColumns(previous)) {
+                Arrays.fill(rowMinima, EMPTY);
+                NeighbourhoodHistogramCalculator.inParallel(height, y -> runningMin(values, rowMinima, y * width, 1, width,
+                        rectangle.left, rectangle.width));
+            }
+
+            NeighbourhoodHistogramCalculator.inParallel(width, x -> runningMin(rowMinima, result, x, width, height, rectangle.top, rectangle.height));
+            previous = rectangle;
+        }
+
+        return result;
+    }
+
+    /**
+     * Lowers each element of a line of the destination to the minimum of a segment of the same line of the source.
+     * Element i of the line is lowered to the minimum of source elements i + offset to i + offset + length - 1, ignoring
+     * elements outside the line.
+     *
+     * @param start the index of the first element of the line in both arrays
+     * @param stride the distance between consecutive elements of the line
+     * @param n the number of elements in the line
+     */
+    static void runningMin(int[] source, int[] destination, int start, int stride, int n, int offset, int length) {
+        // The line padded with empty elements so that the segment of element i starts at padded element i, divided into
+        // blocks of the segment length. A segment spans at most two blocks, so its minimum is the minimum of the suffix
+        // of one block and the prefix of the next.
+        final int paddedLength = n + length - 1;
+        final int[] prefixMinima = new int[paddedLength];
+        final int[] suffixMinima = new int[paddedLength];
+
+        for (int j = 0; j < paddedLength; j++) {
+            final int value = padded(source, start, stride, n, j + offset);
+            prefixMinima[j] = j % length == 0 ? value : Math.min(prefixMinima[j - 1], value);
+        }
+
+        for (int j = paddedLength - 1; j >= 0; j--) {
+            final int value = padded(source, start, stride, n, j + offset);
+            suffixMinima[j] = j % length == length - 1 || j == paddedLength - 1 ?
+                    value : Math.min(suffixMinima[j + 1], value);
+        }
+
+        for (int i = 0; i < n; i++) {
+            final int index = start + i * stride;
+            destination[index] = Math.min(destination[index],
+                    Math.min(suffixMinima[i], prefixMinima[i + length - 1]));
+        }
+    }
+
+    private static int padded(int[] source, int start, int stride, int n, int i) {
+        return i >= 0 && i < n ? source[start + i * stride] : EMPTY;
+    }
+
+    private static int[] toInts(byte[] pixels, boolean invert) {
+        final int[] values = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            values[i] = invert ? 0xff - (pixels[i] & 0xff) : pixels[i] & 0xff;
+
+        return values;
+    }
+
+    private static int[] toInts(short[] pixels, boolean invert) {
+        final int[] values = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            values[i] = invert ? 0xffff - (pixels[i] & 0xffff) : pixels[i] & 0xffff;
+
+        return values;
+    }
+
+    private static byte[] toBytes(int[] values, boolean invert) {
+        final byte[] pixels = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            pixels[i] = (byte) (invert ? 0xff - values[i] : values[i]);
+
+        return pixels;
+    }
+
+    private static short[] toShorts(int[] values, boolean invert) {
+        final short[] pixels = new short[values.length];
+        for (int i = 0; i < values.length; i++)
+            pixels[i] = (short) (invert ? 0xffff - values[i] : values[i]);
+
+        return pixels;
+    }
+}
@@ -6,19 +6,44 @@ import java.util.*;
 
 public class Histogram {
 
+    /**
+     * How the non-empty bins are kept in order. The skip list allocates nodes as bins become non-empty and draws
+     * levels from a shared random generator, while the bitmap only sets and clears bits.
+     */
+    public enum Index {
+        SKIP_LIST, BITMAP;
+
+        SortedValueSet create(int numValues) {
+            switch (this) {
+                case SKIP_LIST:
+                    return new SkipList();
+                case BITMAP:
+                    return new BitmapValueSet(numValues);
+                default:
+                    throw new IllegalArgumentException("Histogram index not yet implemented: " + this);
+            }
+        }
+    }
+
     private final Bin[] bins;
 
     private final Bin[] denseBins;
-    private final SkipList included;
+    private final Index index;
+    private final SortedValueSet included;
 
     private int numPixels = 0;
 
     Histogram(PixelReader reader) {
+        this(reader, reader.histogramIndex());
+    }
+
+    Histogram(PixelReader reader, Index index) {
         final int[] values = reader.uniqueValues();
 
         denseBins = new Bin[reader.numValues()];
         bins = new Bin[values.length];
-        included = new SkipList(values.length);
+        this.index = index;
+        included = index.create(denseBins.length);
 
         int j = 0;
         for(int i : values) {
@@ -40,17 +65,19 @@ public class Histogram {
         denseBins = new Bin[histogram.denseBins.length];
 
         bins = new Bin[histogram.bins.length];
-        included = new SkipList();
-
+        index = histogram.index;
+        included = index.create(denseBins.length);
 
         for(int i = 0; i< bins.length; i++) {
             Bin b = new Bin(histogram.bins[i]);
             bins[i] = b;
             denseBins[b.value] = b;
 
-            if(b.value > 0)
+            if(b.count > 0)
                 included.add(b.value);
         }
+
+        numPixels = histogram.numPixels;
     }
 
     int getNumPixels() {
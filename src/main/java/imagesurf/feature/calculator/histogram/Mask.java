@@ -1,6 +1,8 @@
 package imagesurf.feature.calculator.histogram;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 
 class Mask {
@@ -22,6 +24,107 @@ class Mask {
         }
     }
 
+    /**
+     * A rectangle of the mask, relative to the pixel at the centre of the neighbourhood.
+     */
+    static class Rectangle {
+        final int left;
+        final int width;
+        final int top;
+        final int height;
+
+        Rectangle(int left, int width, int top, int height) {
+            this.left = left;
+            this.width = width;
+            this.top = top;
+            this.height = height;
+        }
+
+        boolean sameColumns(Rectangle other) {
+            return left == other.left && width == other.width;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Rectangle)) return false;
+            Rectangle that = (Rectangle) o;
+            return sameColumns(that) && top == that.top && height == that.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((left * 31 + width) * 31 + top) * 31 + height;
+        }
+    }
+
+    /**
+     * Decomposes the mask into rectangles, possibly overlapping, whose union is the mask. Each distinct row segment
+     * gives one rectangle for each run of consecutive rows that contain the segment and include a row made up of exactly
+     * that segment. Rectangles sharing columns are adjacent in the returned list.
+     */
+    List<Rectangle> coveringRectangles() {
+        final int radius = rows.length / 2;
+        final List<Rectangle> rectangles = new ArrayList<>();
+
+        for (MaskRow segment : rows) {
+            if (segment.width == 0)
+                continue;
+
+            int runStart = -1;
+            boolean runHasSegment = false;
+
+            for (int i = 0; i <= rows.length; i++) {
+                final boolean contains = i < rows.length && rows[i].width > 0 &&
+                        rows[i].offset <= segment.offset &&
+                        rows[i].offset + rows[i].width >= segment.offset + segment.width;
+
+                if (contains) {
+                    if (runStart < 0)
+                        runStart = i;
+
+                    runHasSegment |= rows[i].offset == segment.offset && rows[i].width == segment.width;
+                } else if (runStart >= 0) {
+                    final Rectangle rectangle = new Rectangle(segment.offset - radius, segment.width,
+                            runStart - radius, i - runStart);
+
+                    if (runHasSegment && !rectangles.contains(rectangle))
+                        rectangles.add(rectangle);
+
+                    runStart = -1;
+                    runHasSegment = false;
+                }
+            }
+        }
+
+        rectangles.sort((a, b) -> a.left != b.left ? Integer.compare(a.left, b.left) : Integer.compare(a.width, b.width));
+
+        return rectangles;
+    }
+
+    /**
+     * Decomposes the mask into disjoint rectangles whose union is the mask, one for each run of consecutive rows made
+     * up of the same segment.
+     */
+    List<Rectangle> disjointRectangles() {
+        final int radius = rows.length / 2;
+        final List<Rectangle> rectangles = new ArrayList<>();
+
+        int runStart = 0;
+        for (int i = 1; i <= rows.length; i++) {
+            if (i < rows.length && rows[i].offset == rows[runStart].offset && rows[i].width == rows[runStart].width)
+                continue;
+
+            if (rows[runStart].width > 0)
+                rectangles.add(new Rectangle(rows[runStart].offset - radius, rows[runStart].width,
+                        runStart - radius, i - runStart));
+
+            runStart = i;
+        }
+
+        return rectangles;
+    }
+
     static Mask get(final int radius) {
         final boolean[][] mask = getCircleMask(radius);
 
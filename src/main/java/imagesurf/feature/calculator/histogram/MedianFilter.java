@@ -0,0 +1,188 @@
+package imagesurf.feature.calculator.histogram;
+
+import java.util.Arrays;
+
+/**
+ * Median filter over the same circular neighbourhoods as {@link NeighbourhoodHistogramCalculator}, calculated from a
+ * two-level histogram rather than by walking a sorted histogram for every pixel.
+ *
+ * Pixel values are replaced by their rank among the distinct values of the image, and the histogram of ranks in the
+ * neighbourhood is kept at two levels: a coarse histogram of blocks of consecutive ranks and a fine histogram of the
+ * ranks themselves, with about as many blocks as ranks in a block. The histogram slides along each row as it does in
+ * {@link PixelWindow}, and the median is found by walking the coarse histogram to the block that contains it and then
+ * the fine histogram within that block. Both updates and lookups are plain array accesses, and finding the median takes
+ * at most 32 steps for 8-bit images and 512 steps for 16-bit images, however many distinct values the neighbourhood
+ * holds.
+ *
+ * Pixels outside the image are ignored, and the median is the lowest value at which the cumulative count reaches half
+ * the number of pixels, so the results are identical to those calculated from the neighbourhood histograms.
+ */
+public class MedianFilter {
+
+    private static final int STRIP_HEIGHT = 32;
+
+    public static byte[] median(byte[] pixels, int width, int height, int radius) {
+        final int[] values = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            values[i] = pixels[i] & 0xff;
+
+        final int[] result = median(values, 256, width, height, radius);
+
+        final byte[] out = new byte[result.length];
+        for (int i = 0; i < result.length; i++)
+            out[i] = (byte) result[i];
+
+        return out;
+    }
+
+    public static short[] median(short[] pixels, int width, int height, int radius) {
+        final int[] values = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++)
+            values[i] = pixels[i] & 0xffff;
+
+        final int[] result = median(values, 65536, width, height, radius);
+
+        final short[] out = new short[result.length];
+        for (int i = 0; i < result.length; i++)
+            out[i] = (short) result[i];
+
+        return out;
+    }
+
+    /**
+     * Replaces the values with their ranks in place, filters the ranks and returns the median values.
+     */
+    private static int[] median(int[] values, int numValues, int width, int height, int radius) {
+        final boolean[] present = new boolean[numValues];
+        for (int value : values)
+            present[value] = true;
+
+        final int[] rankToValue = new int[numValues];
+        final int[] valueToRank = new int[numValues];
+        int numRanks = 0;
+        for (int value = 0; value < numValues; value++) {
+            if (present[value]) {
+                valueToRank[value] = numRanks;
+                rankToValue[numRanks++] = value;
+            }
+        }
+
+        for (int i = 0; i < values.length; i++)
+            values[i] = valueToRank[values[i]];
+
+        final Layout layout = new Layout(numRanks);
+        final int[] result = new int[values.length];
+        final Mask mask = Mask.get(radius);
+
+        final int numStrips = (height + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+
+        NeighbourhoodHistogramCalculator.inParallel(numStrips, strip -> filterStrip(values, result, width, height,
+                radius, mask, layout, strip * STRIP_HEIGHT, Math.min(height, (strip + 1) * STRIP_HEIGHT)));
+
+        for (int i = 0; i < result.length; i++)
+            result[i] = rankToValue[result[i]];
+
+        return result;
+    }
+
+    /**
+     * The layout of a two-level histogram of ranks.
+     */
+    private static class Layout {
+        final int fineBits;
+        final int blockSize;
+        final int numBlocks;
+        final int numBins;
+
+        Layout(int numRanks) {
+            final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, numRanks - 1));
+            fineBits = (bits + 1) / 2;
+            blockSize = 1 << fineBits;
+            numBlocks = (numRanks + blockSize - 1) >> fineBits;
+            numBins = numBlocks << fineBits;
+        }
+
+        /**
+         * The lowest rank at which the cumulative count reaches the target.
+         */
+        int find(int[] coarse, int[] fine, int target) {
+            int counted = 0;
+            int block = 0;
+            while (counted + coarse[block] < target)
+                counted += coarse[block++];
+
+            int rank = block << fineBits;
+            while ((counted += fine[rank]) < target)
+                rank++;
+
+            return rank;
+        }
+    }
+
+    /**
+     * The number of pixels at or below the median of a neighbourhood. A neighbourhood of a single pixel has a target
+     * of zero, which the lowest non-empty rank is taken to reach.
+     */
+    private static int target(int numPixels) {
+        return Math.max(1, numPixels / 2);
+    }
+
+    /**
+     * Filters the rows from y0 to y1 - 1, sliding a two-level histogram along each row.
+     */
+    private static void filterStrip(int[] ranks, int[] result, int width, int height, int radius, Mask mask,
+                                    Layout layout, int y0, int y1) {
+        final Mask.MaskRow[] rows = mask.rows;
+        final int fineBits = layout.fineBits;
+
+        final int[] coarse = new int[layout.numBlocks];
+        final int[] fine = new int[layout.numBins];
+
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(coarse, 0);
+            Arrays.fill(fine, 0);
+            int numPixels = 0;
+
+            for (int i = 0; i < rows.length; i++) {
+                final int currentY = y + i - radius;
+                if (currentY < 0 || currentY >= height)
+                    continue;
+
+                final int end = Math.min(width, rows[i].offset - radius + rows[i].width);
+                for (int x = Math.max(0, rows[i].offset - radius); x < end; x++) {
+                    final int rank = ranks[currentY * width + x];
+                    coarse[rank >> fineBits]++;
+                    fine[rank]++;
+                    numPixels++;
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                result[y * width + x] = layout.find(coarse, fine, target(numPixels));
+
+                for (int i = 0; i < rows.length; i++) {
+                    final int currentY = y + i - radius;
+                    if (currentY < 0 || currentY >= height)
+                        continue;
+
+                    final int oldX = x - radius + rows[i].offset;
+                    final int newX = oldX + rows[i].width;
+
+                    if (oldX >= 0 && oldX < width) {
+                        final int rank = ranks[currentY * width + oldX];
+                        coarse[rank >> fineBits]--;
+                        fine[rank]--;
+                        numPixels--;
+                    }
+
+                    if (newX >= 0 && newX < width) {
+                        final int rank = ranks[currentY * width + newX];
+                        coarse[rank >> fineBits]++;
+                        fine[rank]++;
+                        numPixels++;
+                    }
+                }
+            }
+        }
+    }
+}
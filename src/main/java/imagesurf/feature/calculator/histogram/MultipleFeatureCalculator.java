@@ -22,8 +22,14 @@ import imagesurf.feature.calculator.FeatureCalculator;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+/**
+ * Histogram based features with the same tags, calculated in one traversal of the image. Features may have different
+ * radii, in which case a window for each radius moves along each row. The results of each feature are cached under the
+ * feature as well as under this calculator.
+ */
 public class MultipleFeatureCalculator extends NeighbourhoodHistogramCalculator implements Serializable
 {
 	static final long serialVersionUID = 42L;
@@ -35,7 +41,7 @@ public class MultipleFeatureCalculator extends NeighbourhoodHistogramCalculator
 	{
 		this(Arrays.copyOf(features, features.length),
 				Arrays.stream(features).mapToInt(NeighbourhoodHistogramCalculator::getNumImagesReturned).sum(),
-				findRadius(features) );
+				maxRadius(features) );
 	}
 
 	public MultipleFeatureCalculator(Collection<NeighbourhoodHistogramCalculator> features)
@@ -65,17 +71,47 @@ public class MultipleFeatureCalculator extends NeighbourhoodHistogramCalculator
 		return features;
 	}
 	
-	private static int findRadius(NeighbourhoodHistogramCalculator[] features) {
-		final int[] radii = Arrays.stream(features).mapToInt(NeighbourhoodHistogramCalculator::getRadius).distinct().toArray();
-		
-		if(radii.length != 1)
-			throw new IllegalArgumentException("Features must have the same radius for multiple calculation");
-		
-		return radii[0];
+	private static int maxRadius(NeighbourhoodHistogramCalculator[] features) {
+		return Arrays.stream(features).mapToInt(NeighbourhoodHistogramCalculator::getRadius).max()
+				.orElseThrow(() -> new IllegalArgumentException("Features array must contain at least 1 calculator"));
+	}
+
+	@Override
+	public byte[][] calculate(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated)
+	{
+		final byte[][] result = calculateMultiple(pixels, features, width, height, calculated);
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	public short[][] calculate(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated)
+	{
+		final short[][] result = calculateMultiple(pixels, features, width, height, calculated);
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	@Override
+	protected void calculate(PixelReader reader, PixelWriter writer, int width, int height, int nBins) {
+		calculateMultiple(reader, features, writer, width, height);
 	}
 
+	/**
+	 * A calculator reading every feature from one window, for use as a component of another calculation. Features
+	 * of differing radius need a window each, which only {@link #calculate(PixelReader, PixelWriter, int, int, int)}
+	 * provides.
+	 */
 	@Override
 	protected Calculator getCalculator(final PixelReader reader) {
+		if(Arrays.stream(features).anyMatch(f -> f.getRadius() != getRadius()))
+			throw new UnsupportedOperationException("Features with differing radius cannot share a single window");
 
 		return new Calculator() {
 
@@ -103,6 +139,12 @@ public class MultipleFeatureCalculator extends NeighbourhoodHistogramCalculator
 		return "Multiple ["+ Arrays.stream(features).map(FeatureCalculator::getName).collect(Collectors.joining(", "))+"]";
 	}
 
+	@Override
+	public String getDescription()
+	{
+		return "Multiple ["+ Arrays.stream(features).map(FeatureCalculator::getDescription).collect(Collectors.joining(", "))+"]";
+	}
+
 	@Override
 	public int getNumImagesReturned() {
 		return numImagesReturned;
@@ -133,4 +175,16 @@ public class MultipleFeatureCalculator extends NeighbourhoodHistogramCalculator
 	{
 		return new MultipleFeatureCalculator(features, numImagesReturned, getRadius());
 	}
-}
\ No newline at end of file
+
+	@Override
+	public boolean equals(Object o)
+	{
+		return super.equals(o) && Arrays.equals(features, ((MultipleFeatureCalculator) o).features);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31 * super.hashCode() + Arrays.hashCode(features);
+	}
+}
@@ -17,6 +17,7 @@
 
 package imagesurf.feature.calculator.histogram;
 
+import imagesurf.feature.PixelType;
 import imagesurf.feature.calculator.FeatureCalculator;
 import imagesurf.util.ImageSurfEnvironment;
 import org.apache.commons.pool2.BasePooledObjectFactory;
@@ -31,6 +32,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
 
 abstract public class NeighbourhoodHistogramCalculator implements FeatureCalculator, Serializable
@@ -64,6 +66,48 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 
 	abstract protected Calculator getCalculator(final PixelReader reader);
 
+	protected interface ByteFilter {
+		byte[] filter(byte[] pixels, int width, int height, int radius);
+	}
+
+	protected interface ShortFilter {
+		short[] filter(short[] pixels, int width, int height, int radius);
+	}
+
+	/**
+	 * Calculates the feature with a dedicated filter rather than neighbourhood histograms, adding the result to
+	 * calculated if it is not null.
+	 */
+	protected byte[][] calculateWithFilter(byte[] pixels, int width, int height, Map<FeatureCalculator, byte[][]> calculated, ByteFilter filter)
+	{
+		final byte[][] result = new byte[][] {filter.filter(pixels, width, height, radius)};
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	protected short[][] calculateWithFilter(short[] pixels, int width, int height, Map<FeatureCalculator, short[][]> calculated, ShortFilter filter)
+	{
+		final short[][] result = new short[][] {filter.filter(pixels, width, height, radius)};
+
+		if(calculated != null)
+			calculated.put(this, result);
+
+		return result;
+	}
+
+	/**
+	 * Whether the feature is calculated from the histogram of each neighbourhood, so that it can share a pass over the
+	 * image with other histogram based features in a {@link MultipleFeatureCalculator}. Features that override
+	 * calculate with a dedicated filter return false.
+	 */
+	public boolean isHistogramBased()
+	{
+		return true;
+	}
+
 	@Override
 	public FeatureCalculator[] getDependencies()
 	{
@@ -83,26 +127,38 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 	protected void calculate(final PixelReader reader, final PixelWriter writer, final int width, final int height, int nBins) {
 		calculateMultiple(reader,
 				new NeighbourhoodHistogramCalculator[] { this },
-				new PixelWriter[] { writer },
+				writer,
 				width,
 				height
 		);
 	}
 
-	private static void calculateMultiple(final PixelReader reader,
-										  final NeighbourhoodHistogramCalculator[] features,
-										  final PixelWriter[] writers,
-										  final int width,
-										  final int height) {
-
-		final int radius = features[0].radius;
-		final Mask mask = Mask.get(radius);
-		final int maskOffset = -radius;
+	/**
+	 * Calculates the features, writing each row of the images of every feature in feature order.
+	 */
+	static void calculateMultiple(final PixelReader reader,
+								  final NeighbourhoodHistogramCalculator[] features,
+								  final PixelWriter writer,
+								  final int width,
+								  final int height) {
+
+		// Features of every radius are calculated in one traversal, with a window for each distinct radius moving
+		// along the row together so that the rows they read are shared
+		final int[] radii = Arrays.stream(features).mapToInt(f -> f.radius).distinct().sorted().toArray();
+		final Mask[] masks = Arrays.stream(radii).mapToObj(Mask::get).toArray(Mask[]::new);
+		final int[] windowIndices = Arrays.stream(features).mapToInt(f -> Arrays.binarySearch(radii, f.radius)).toArray();
+		final int numWindows = radii.length;
+
+		final int[] outputOffsets = new int[features.length + 1];
+		for (int i = 0; i < features.length; i++)
+			outputOffsets[i + 1] = outputOffsets[i] + features[i].getNumImagesReturned();
 
 		final ExecutorService threadPool = ImageSurfEnvironment.getFeatureExecutor();
 
 		final Histogram histogramPrototype = new Histogram(reader);
-		final HistogramPool histogramPool= new HistogramPool(ImageSurfEnvironment.getNumThreads(), histogramPrototype);
+		// Each row borrows the histograms for all of its windows as one set, so a task never waits on the pool while
+		// holding some of them
+		final HistogramPool histogramPool= new HistogramPool(ImageSurfEnvironment.getNumThreads(), numWindows, histogramPrototype);
 
 		try {
 			threadPool.submit(() ->
@@ -110,9 +166,9 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 							.parallel()
 							.forEach(y -> {
 
-								final Histogram histogram;
+								final Histogram[] histograms;
 								try {
-									histogram = histogramPool.borrowObject();
+									histograms = histogramPool.borrowObject();
 								} catch (Exception e) {
 									throw new RuntimeException(e);
 								}
@@ -122,26 +178,28 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 										.toArray(Calculator[]::new);
 								final int nCalculators = calculators.length;
 
-								PixelWindow pixelWindow = PixelWindow.get(reader, width, height, mask, maskOffset, y, histogram);
-								final double[][][] rowOutput = Arrays.stream(features)
-										.map( (f) -> new double[f.getNumImagesReturned()][width])
-										.toArray(double[][][]::new);
+								final PixelWindow[] pixelWindows = new PixelWindow[numWindows];
+								for (int w = 0; w < numWindows; w++)
+									pixelWindows[w] = PixelWindow.get(reader, width, height, masks[w], -radii[w], y, histograms[w]);
+
+								final double[][] rowOutput = new double[outputOffsets[nCalculators]][width];
 
 								for (int x = 0; x < width; x++) {
 									for (int c = 0; c < nCalculators; c++) {
-										final int[] values = calculators[c].calculate(pixelWindow);
+										final int[] values = calculators[c].calculate(pixelWindows[windowIndices[c]]);
 										for(int v = 0; v < values.length; v++)
-											rowOutput[c][v][x] = values[v];
+											rowOutput[outputOffsets[c] + v][x] = values[v];
 									}
-									pixelWindow.moveWindow();
+
+									for (PixelWindow pixelWindow : pixelWindows)
+										pixelWindow.moveWindow();
 								}
 
-								for (int c = 0; c < nCalculators; c++)
-									synchronized (writers[c]) {
-										writers[c].writeRow(y, rowOutput[c]);
-									}
+								synchronized (writer) {
+									writer.writeRow(y, rowOutput);
+								}
 
-								histogramPool.returnObject(histogram);
+								histogramPool.returnObject(histograms);
 							})
 			).get();
 		} catch (InterruptedException | ExecutionException e) {
@@ -149,18 +207,35 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 		};
 	}
 
-	private static class HistogramPool extends GenericObjectPool<Histogram> {
+	/**
+	 * Runs a task for each index from 0 to n - 1 in parallel on the feature executor.
+	 */
+	static void inParallel(final int n, final IntConsumer task) {
+		try {
+			ImageSurfEnvironment.getFeatureExecutor().submit(() ->
+					IntStream.range(0, n).parallel().forEach(task)
+			).get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static class HistogramPool extends GenericObjectPool<Histogram[]> {
 
-		HistogramPool( int size, Histogram prototype) {
-			super(new BasePooledObjectFactory<Histogram>() {
+		HistogramPool( int size, int numWindows, Histogram prototype) {
+			super(new BasePooledObjectFactory<Histogram[]>() {
 				@Override
-				public Histogram create() throws Exception {
-					return prototype.copy();
+				public Histogram[] create() throws Exception {
+					final Histogram[] histograms = new Histogram[numWindows];
+					for (int w = 0; w < numWindows; w++)
+						histograms[w] = prototype.copy();
+
+					return histograms;
 				}
 
 				@Override
-				public PooledObject<Histogram> wrap(Histogram histogram) {
-					return new DefaultPooledObject<Histogram>(histogram);
+				public PooledObject<Histogram[]> wrap(Histogram[] histograms) {
+					return new DefaultPooledObject<Histogram[]>(histograms);
 				}
 			}, config(size));
 
@@ -171,8 +246,8 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 			}
 		}
 
-		static GenericObjectPoolConfig<Histogram> config(int size) {
-			final GenericObjectPoolConfig<Histogram> config = new GenericObjectPoolConfig<>();
+		static GenericObjectPoolConfig<Histogram[]> config(int size) {
+			final GenericObjectPoolConfig<Histogram[]> config = new GenericObjectPoolConfig<>();
 			config.setMaxIdle(size);
 			config.setMaxTotal(size);
 
@@ -185,24 +260,26 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 											 int width,
 											 int height,
 											 Map<FeatureCalculator, byte[][]> calculated) {
+		return calculateMultiple(pixels, features, width, height, calculated, PixelType.GRAY_8_BIT.getHistogramIndex());
+	}
+
+	/**
+	 * Calculates the features with histograms that keep their non-empty bins in the given index.
+	 */
+	public static byte[][] calculateMultiple(byte[] pixels,
+											 NeighbourhoodHistogramCalculator[] features,
+											 int width,
+											 int height,
+											 Map<FeatureCalculator, byte[][]> calculated,
+											 Histogram.Index index) {
 		if(features.length < 1)
 			throw new RuntimeException("Features array must contain at least 1 calculator");
 
-		if(Arrays.stream(features).mapToInt( f -> f.radius).distinct().count() != 1)
-			throw new RuntimeException("Cannot calculate multiple features with differing radius");
-
-		final PixelReader reader = bytePixelReader(pixels, width, height);
+		final PixelReader reader = bytePixelReader(pixels, width, height, index);
 
 		final byte[][][] results = Arrays.stream(features)
 				.map( (f) -> new byte[f.getNumImagesReturned()][width * height])
 				.toArray(byte[][][]::new);
-		final PixelWriter[] writers = Arrays.stream(results)
-				.map((r) -> bytePixelWriter(width, r)).toArray(PixelWriter[]::new);
-
-		calculateMultiple(reader, features, writers, width, height);
-
-		for(int i = 0; i < features.length; i++)
-			calculated.put(features[i], results[i]);
 
 		final int numOutImages = Arrays.stream(results).mapToInt( b -> b.length).sum();
 		final byte[][] out = new byte[numOutImages][];
@@ -211,7 +288,13 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 			for(byte[] b : bytes)
 				out[c++] = b;
 
-			return out;
+		calculateMultiple(reader, features, bytePixelWriter(width, out), width, height);
+
+		if(calculated != null)
+			for(int i = 0; i < features.length; i++)
+				calculated.put(features[i], results[i]);
+
+		return out;
 	}
 
 	public static short[][] calculateMultiple(short[] pixels,
@@ -219,24 +302,26 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 											  int width,
 											  int height,
 											  Map<FeatureCalculator, short[][]> calculated) {
+		return calculateMultiple(pixels, features, width, height, calculated, PixelType.GRAY_16_BIT.getHistogramIndex());
+	}
+
+	/**
+	 * Calculates the features with histograms that keep their non-empty bins in the given index.
+	 */
+	public static short[][] calculateMultiple(short[] pixels,
+											  NeighbourhoodHistogramCalculator[] features,
+											  int width,
+											  int height,
+											  Map<FeatureCalculator, short[][]> calculated,
+											  Histogram.Index index) {
 		if(features.length < 1)
 			throw new RuntimeException("Features array must contain at least 1 calculator");
 
-		if(Arrays.stream(features).mapToInt( f -> f.radius).distinct().count() != 1)
-			throw new RuntimeException("Cannot calculate multiple features with differing radius");
-
-		final PixelReader reader = shortPixelReader(pixels, width, height);
+		final PixelReader reader = shortPixelReader(pixels, width, height, index);
 
 		final short[][][] results = Arrays.stream(features)
 				.map( (f) -> new short[f.getNumImagesReturned()][width * height])
 				.toArray(short[][][]::new);
-		final PixelWriter[] writers = Arrays.stream(results)
-				.map((r) -> shortPixelWriter(width, r)).toArray(PixelWriter[]::new);
-
-		calculateMultiple(reader, features, writers, width, height);
-
-		for(int i = 0; i < features.length; i++)
-			calculated.put(features[i], results[i]);
 
 		final int numOutImages = Arrays.stream(results).mapToInt( s -> s.length).sum();
 		final short[][] out = new short[numOutImages][];
@@ -245,6 +330,12 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 			for(short[] s : shorts)
 				out[c++] = s;
 
+		calculateMultiple(reader, features, shortPixelWriter(width, out), width, height);
+
+		if(calculated != null)
+			for(int i = 0; i < features.length; i++)
+				calculated.put(features[i], results[i]);
+
 		return out;
 	}
 
@@ -262,7 +353,7 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 	}
 
 	@NotNull
-	private static PixelReader bytePixelReader(byte[] pixels, int width, int height) {
+	private static PixelReader bytePixelReader(byte[] pixels, int width, int height, Histogram.Index histogramIndex) {
 		return new PixelReader() {
 			@Override
 			public int get(int index) {
@@ -283,6 +374,11 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 			public int maxValue() {
 				return 255;
 			}
+
+			@Override
+			public Histogram.Index histogramIndex() {
+				return histogramIndex;
+			}
 		};
 	}
 
@@ -300,7 +396,7 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 	}
 
 	@NotNull
-	private static PixelReader shortPixelReader(short[] pixels, int width, int height) {
+	private static PixelReader shortPixelReader(short[] pixels, int width, int height, Histogram.Index histogramIndex) {
 		return new PixelReader() {
 				@Override
 				public int get(int index) {
@@ -321,6 +417,11 @@ abstract public class NeighbourhoodHistogramCalculator implements FeatureCalcula
 			public int maxValue() {
 				return 65535;
 			}
+
+			@Override
+			public Histogram.Index histogramIndex() {
+				return histogramIndex;
+			}
 		};
 	}
 
@@ -12,6 +12,13 @@ public interface PixelReader {
         return 1 << numBits();
     }
 
+    /**
+     * How histograms of these pixels keep their non-empty bins in order.
+     */
+    default Histogram.Index histogramIndex() {
+        return Histogram.Index.BITMAP;
+    }
+
     default int[] uniqueValues() {
        final int[] counts = new int[numPixels()];
        final int[] unique = new int[numPixels()];
@@ -19,7 +19,7 @@ import java.util.PrimitiveIterator;
  *
  * @author SylvanasSun <sylvanas.sun@gmail.com>
  */
-class SkipList {
+class SkipList implements SortedValueSet {
 
     static final int HEAD_VALUE = Integer.MIN_VALUE;
 
@@ -194,7 +194,8 @@ class SkipList {
         return node;
     }
 
-    PrimitiveIterator.OfInt ascending() {
+    @Override
+    public PrimitiveIterator.OfInt ascending() {
         return new PrimitiveIterator.OfInt() {
             Node node = first();
             int currentValue = 0;
@@ -213,7 +214,8 @@ class SkipList {
         };
     }
 
-    PrimitiveIterator.OfInt descending() {
+    @Override
+    public PrimitiveIterator.OfInt descending() {
         return new PrimitiveIterator.OfInt() {
             Node node = last();
             int currentValue = 0;
@@ -0,0 +1,28 @@
+package imagesurf.feature.calculator.histogram;
+
+import java.util.PrimitiveIterator;
+
+/**
+ * The set of non-empty bins of a {@link Histogram}, kept in order so that the lowest and highest values can be found
+ * and the values iterated in either direction.
+ */
+interface SortedValueSet {
+    void add(int value);
+
+    /**
+     * @throws java.util.NoSuchElementException if the value is not in the set
+     */
+    void remove(int value);
+
+    void clear();
+
+    int size();
+
+    int firstValue();
+
+    int lastValue();
+
+    PrimitiveIterator.OfInt ascending();
+
+    PrimitiveIterator.OfInt descending();
+}
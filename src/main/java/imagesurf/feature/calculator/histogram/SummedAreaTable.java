@@ -0,0 +1,148 @@
+package imagesurf.feature.calculator.histogram;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Summed-area tables of the values and squared values of an image, for statistics calculated from the number of
+ * pixels, sum and sum of squares of the same circular neighbourhoods as {@link NeighbourhoodHistogramCalculator}.
+ *
+ * The mask is decomposed into disjoint rectangles, one for each run of mask rows made up of the same segment, and the
+ * sums over each rectangle are read from the tables with four lookups. The cost per pixel depends only on the number
+ * of rectangles and not on the number of distinct values in the neighbourhood. Pixels outside the image are ignored,
+ * as they are by {@link PixelWindow}, and the sums are exact, so statistics match those calculated from the
+ * neighbourhood histograms.
+ *
+ * Tables are not cached. {@link imagesurf.feature.SurfImage} builds one for each channel and passes it to every
+ * {@link SummedAreaTableFeature} of that channel.
+ */
+public class SummedAreaTable {
+
+    /**
+     * The memory the tables take for each pixel.
+     */
+    public static final int BYTES_PER_PIXEL = 2 * Long.BYTES;
+
+    public interface Statistic {
+        int calculate(int numPixels, long sum, long sumOfSquares);
+    }
+
+    private final int width;
+    private final int height;
+    private final boolean shortPixels;
+
+    // Sums of the pixels above and to the left of each position, with a leading row and column of zeros
+    private final long[] sums;
+    private final long[] sumsOfSquares;
+
+    private SummedAreaTable(int width, int height, boolean shortPixels, IntUnaryOperator values) {
+        this.width = width;
+        this.height = height;
+        this.shortPixels = shortPixels;
+
+        final int tableWidth = width + 1;
+        this.sums = new long[tableWidth * (height + 1)];
+        this.sumsOfSquares = new long[sums.length];
+
+        for (int y = 0; y < height; y++) {
+            long rowSum = 0;
+            long rowSumOfSquares = 0;
+
+            for (int x = 0; x < width; x++) {
+                final long value = values.applyAsInt(y * width + x);
+                rowSum += value;
+                rowSumOfSquares += value * value;
+
+                final int index = (y + 1) * tableWidth + x + 1;
+                sums[index] = sums[index - tableWidth] + rowSum;
+                sumsOfSquares[index] = sumsOfSquares[index - tableWidth] + rowSumOfSquares;
+            }
+        }
+    }
+
+    public static SummedAreaTable of(byte[] pixels, int width, int height) {
+        return new SummedAreaTable(width, height, false, i -> pixels[i] & 0xff);
+    }
+
+    public static SummedAreaTable of(short[] pixels, int width, int height) {
+        return new SummedAreaTable(width, height, true, i -> pixels[i] & 0xffff);
+    }
+
+    public static SummedAreaTable of(Object pixels, int width, int height) {
+        if (pixels instanceof byte[])
+            return of((byte[]) pixels, width, height);
+        else if (pixels instanceof short[])
+            return of((short[]) pixels, width, height);
+
+        throw new IllegalArgumentException("Pixels must be an array of short or byte");
+    }
+
+    /**
+     * The maximum value of the pixels the tables were calculated from.
+     */
+    public int maxValue() {
+        return shortPixels ? 65535 : 255;
+    }
+
+    /**
+     * Calculates a statistic of the neighbourhood of each pixel as a feature image of the same type as the pixels the
+     * tables were calculated from: byte[][] for 8-bit pixels and short[][] for 16-bit pixels.
+     */
+    public Object calculateImages(int radius, Statistic statistic) {
+        final int[] values = calculate(radius, statistic);
+
+        if (shortPixels) {
+            final short[] result = new short[values.length];
+            for (int i = 0; i < values.length; i++)
+                result[i] = (short) values[i];
+
+            return new short[][] {result};
+        }
+
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = (byte) values[i];
+
+        return new byte[][] {result};
+    }
+
+    /**
+     * Calculates a statistic of the neighbourhood of each pixel.
+     */
+    public int[] calculate(int radius, Statistic statistic) {
+        final Mask.Rectangle[] rectangles = Mask.get(radius).disjointRectangles().toArray(new Mask.Rectangle[0]);
+        final int tableWidth = width + 1;
+        final int[] result = new int[width * height];
+
+        NeighbourhoodHistogramCalculator.inParallel(height, y -> {
+            for (int x = 0; x < width; x++) {
+                int numPixels = 0;
+                long sum = 0;
+                long sumOfSquares = 0;
+
+                for (Mask.Rectangle rectangle : rectangles) {
+                    final int top = Math.max(0, y + rectangle.top);
+                    final int bottom = Math.min(height, y + rectangle.top + rectangle.height);
+                    final int left = Math.max(0, x + rectangle.left);
+                    final int right = Math.min(width, x + rectangle.left + rectangle.width);
+
+                    if (top >= bottom || left >= right)
+                        continue;
+
+                    final int topLeft = top * tableWidth + left;
+                    final int topRight = top * tableWidth + right;
+                    final int bottomLeft = bottom * tableWidth + left;
+                    final int bottomRight = bottom * tableWidth + right;
+
+                    numPixels += (bottom - top) * (right - left);
+                    sum += sums[bottomRight] - sums[bottomLeft] - sums[topRight] + sums[topLeft];
+                    sumOfSquares += sumsOfSquares[bottomRight] - sumsOfSquares[bottomLeft] -
+                            sumsOfSquares[topRight] + sumsOfSquares[topLeft];
+                }
+
+                result[y * width + x] = statistic.calculate(numPixels, sum, sumOfSquares);
+            }
+        });
+
+        return result;
+    }
+}
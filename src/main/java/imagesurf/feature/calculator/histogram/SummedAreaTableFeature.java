@@ -0,0 +1,19 @@
+package imagesurf.feature.calculator.histogram;
+
+import imagesurf.feature.calculator.FeatureCalculator;
+
+import java.util.Map;
+
+/**
+ * A feature calculated from the {@link SummedAreaTable} of its channel, so that features of every radius calculated
+ * from the same channel can share one table.
+ */
+public interface SummedAreaTableFeature extends FeatureCalculator {
+
+    /**
+     * Calculates the feature from the tables of its channel and adds it to the calculated features.
+     *
+     * @return the feature images, byte[][] or short[][] as the pixels the tables were calculated from
+     */
+    Object calculate(SummedAreaTable table, Map<FeatureCalculator, Object> calculated);
+}
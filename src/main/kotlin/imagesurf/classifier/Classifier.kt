@@ -9,4 +9,12 @@ interface Classifier {
     fun distributionForInstances(data: FeatureReader): Array<DoubleArray>
 
     fun classForInstances(data: FeatureReader, instanceIndices: IntArray = IntStream.range(0, data.numInstances).toArray()): IntArray
+
+    /**
+     * Classifies the instances from (inclusive) to to (exclusive), writing each instance's class to out at its
+     * instance index.
+     */
+    fun classForBlock(data: FeatureReader, from: Int, to: Int, out: IntArray) {
+        classForInstances(data, IntStream.range(from, to).toArray()).copyInto(out, from)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,272 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+import imagesurf.feature.FeatureReader
+
+/**
+ * A [RandomTree] compiled into parallel primitive arrays for inference.
+ *
+ * Node 0 is the root. A node with a negative split attribute is a leaf, and a leaf with a negative distribution
+ * offset had no training instances and does not contribute to the forest's vote.
+ */
+internal class FlatTree(
+        val splitAttributes: IntArray,
+        val splitPoints: DoubleArray,
+        val leftChildren: IntArray,
+        val rightChildren: IntArray,
+        val distributionOffsets: IntArray,
+        val distributions: DoubleArray,
+        val numClasses: Int
+) {
+
+    val numNodes: Int
+        get() = splitAttributes.size
+
+    /**
+     * Finds the leaf node reached by an instance.
+     *
+     * @return the index of the leaf node
+     */
+    fun leafFor(data: FeatureReader, instanceIndex: Int): Int {
+        var node = 0
+        var attribute = splitAttributes[node]
+
+        while (attribute >= 0) {
+            node = if (data.getValue(instanceIndex, attribute) < splitPoints[node])
+                leftChildren[node]
+            else
+                rightChildren[node]
+
+            attribute = splitAttributes[node]
+        }
+
+        return node
+    }
+
+    /**
+     * Finds the leaf reached by an instance from a node, reading the value of one attribute from another instance.
+     *
+     * @return the index of the leaf node
+     */
+    fun leafFor(data: FeatureReader, instanceIndex: Int, fromNode: Int,
+                permutedAttribute: Int, permutedInstanceIndex: Int): Int {
+        var node = fromNode
+        var attribute = splitAttributes[node]
+
+        while (attribute >= 0) {
+            val valueIndex = if (attribute == permutedAttribute) permutedInstanceIndex else instanceIndex
+
+            node = if (data.getValue(valueIndex, attribute) < splitPoints[node])
+                leftChildren[node]
+            else
+                rightChildren[node]
+
+            attribute = splitAttributes[node]
+        }
+
+        return node
+    }
+
+    /**
+     * Finds the nodes whose subtrees split on an attribute.
+     *
+     * @return whether each node or one of its descendants splits on the attribute
+     */
+    fun splitsBelow(attribute: Int): BooleanArray {
+        val splits = BooleanArray(numNodes)
+
+        // Children always follow their parents, so visiting nodes in reverse sees children first
+        for (node in numNodes - 1 downTo 0)
+            splits[node] = splitAttributes[node] == attribute || splitAttributes[node] >= 0 &&
+                    (splits[leftChildren[node]] || splits[rightChildren[node]])
+
+        return splits
+    }
+
+    /**
+     * Adds the class distribution of the leaf reached by an instance to sums.
+     */
+    fun addDistribution(data: FeatureReader, instanceIndex: Int, sums: DoubleArray) {
+        val offset = distributionOffsets[leafFor(data, instanceIndex)]
+
+        if (offset >= 0)
+            for (c in 0 until numClasses)
+                sums[c] += distributions[offset + c]
+    }
+
+    /**
+     * Adds the class distributions of the leaves reached by a block of instances to sums. The instances are pushed
+     * through the tree together one level at a time, keeping a compacted list of those that have not yet reached a
+     * leaf.
+     *
+     * @param from the index of the first instance in the block
+     * @param positions the positions in the block, relative to from, of the instances to evaluate
+     * @param sums class sums for the block, numClasses values per position
+     */
+    fun addDistributions(data: FeatureReader, from: Int, positions: IntArray, numPositions: Int,
+                         workspace: BlockWorkspace, sums: DoubleArray) {
+        val nodes = workspace.nodes
+        val active = workspace.active
+        var numActive = workspace.start(positions, numPositions, splitAttributes[0] >= 0)
+
+        while (numActive > 0) {
+            var numStillActive = 0
+
+            for (i in 0 until numActive) {
+                val position = active[i]
+                val node = nodes[position]
+
+                val child = if (data.getValue(from + position, splitAttributes[node]) < splitPoints[node])
+                    leftChildren[node]
+                else
+                    rightChildren[node]
+
+                nodes[position] = child
+
+                if (splitAttributes[child] >= 0)
+                    active[numStillActive++] = position
+            }
+
+            numActive = numStillActive
+        }
+
+        for (i in 0 until numPositions) {
+            val position = positions[i]
+            val offset = distributionOffsets[nodes[position]]
+
+            if (offset >= 0) {
+                val sumsOffset = position * numClasses
+                for (c in 0 until numClasses)
+                    sums[sumsOffset + c] += distributions[offset + c]
+            }
+        }
+    }
+
+    /**
+     * Copies this tree with the class distribution of each leaf replaced by the normalised class counts of a bag of
+     * instances reaching it, keeping the splits. Leaves reached by none of the instances keep their distribution.
+     *
+     * @param bagCounts the number of times each instance is in the bag, indexed by instance
+     */
+    fun refit(data: FeatureReader, bagCounts: IntArray): FlatTree {
+        val counts = DoubleArray(distributions.size)
+        val reached = BooleanArray(numNodes)
+
+        for (instanceIndex in bagCounts.indices) {
+            if (bagCounts[instanceIndex] == 0)
+                continue
+
+            val leaf = leafFor(data, instanceIndex)
+            val offset = distributionOffsets[leaf]
+
+            if (offset >= 0) {
+                counts[offset + data.getClassValue(instanceIndex)] += bagCounts[instanceIndex].toDouble()
+                reached[leaf] = true
+            }
+        }
+
+        val refitted = distributions.clone()
+
+        for (node in 0 until numNodes) {
+            if (!reached[node])
+                continue
+
+            val offset = distributionOffsets[node]
+            var total = 0.0
+
+            for (c in 0 until numClasses)
+                total += counts[offset + c]
+
+            for (c in 0 until numClasses)
+                refitted[offset + c] = counts[offset + c] / total
+        }
+
+        return FlatTree(splitAttributes, splitPoints, leftChildren, rightChildren, distributionOffsets, refitted,
+                numClasses)
+    }
+
+    /**
+     * A hash of the tree's nodes and distributions.
+     */
+    fun contentHash(): Int = listOf(
+            splitAttributes.contentHashCode(),
+            splitPoints.contentHashCode(),
+            leftChildren.contentHashCode(),
+            rightChildren.contentHashCode(),
+            distributionOffsets.contentHashCode(),
+            distributions.contentHashCode()
+    ).fold(numClasses) { hash, arrayHash -> 31 * hash + arrayHash }
+
+    /**
+     * The largest vote this tree can give any class for a single instance.
+     */
+    fun maxVote(): Double = distributions.fold(0.0) { max, vote -> maxOf(max, vote) }
+
+    /**
+     * Scratch space for [addDistributions], sized for one block and reused across trees.
+     */
+    internal class BlockWorkspace(blockSize: Int, numClasses: Int) {
+        val nodes = IntArray(blockSize)
+        val active = IntArray(blockSize)
+        val positions = IntArray(blockSize)
+        val sums = DoubleArray(blockSize * numClasses)
+
+        /**
+         * Places the instances at the given positions at the root of a tree.
+         *
+         * @return the number of instances that still need to descend the tree
+         */
+        fun start(positions: IntArray, numPositions: Int, rootIsSplit: Boolean): Int {
+            for (i in 0 until numPositions)
+                nodes[positions[i]] = 0
+
+            if (!rootIsSplit)
+                return 0
+
+            System.arraycopy(positions, 0, active, 0, numPositions)
+            return numPositions
+        }
+    }
+
+    /**
+     * The next free node and distribution offset while a tree is being flattened.
+     */
+    internal class Cursor {
+        var nextNode = 0
+        var nextDistributionOffset = 0
+    }
+
+    companion object {
+
+        fun flatten(tree: RandomTree, numClasses: Int): FlatTree {
+            val numNodes = tree.numNodes()
+            val numLeafDistributions = tree.numLeafDistributions()
+
+            return FlatTree(
+                    splitAttributes = IntArray(numNodes),
+                    splitPoints = DoubleArray(numNodes),
+                    leftChildren = IntArray(numNodes) { -1 },
+                    rightChildren = IntArray(numNodes) { -1 },
+                    distributionOffsets = IntArray(numNodes) { -1 },
+                    distributions = DoubleArray(numLeafDistributions * numClasses),
+                    numClasses = numClasses
+            ).also { tree.flattenInto(it, Cursor()) }
+        }
+    }
+}
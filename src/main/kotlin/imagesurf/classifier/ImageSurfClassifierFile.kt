@@ -0,0 +1,329 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+import imagesurf.feature.PixelType
+import imagesurf.feature.calculator.FeatureCalculator
+import util.UtilityJava
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Reads and writes ImageSURF classifiers.
+ *
+ * Classifiers can be written in a versioned binary format holding the classifier settings, the serialized feature
+ * calculators and the flattened node arrays of each tree. The tree arrays are read straight into the flat trees used
+ * for classification, so the node objects of the trees are never built for segmentation. The whole file is read when
+ * the classifier is loaded and the file is closed, so it can be replaced while the classifier is in use. Classifiers
+ * are written to a temporary file that is then moved over the destination, so a failed write leaves any previous
+ * classifier in place.
+ *
+ * Java serialization stays the default format for saving classifiers, so that releases without a reader for the
+ * binary format can open them. Both formats are read.
+ *
+ * Layout, big-endian:
+ *
+ *     int     magic ("ISRF")
+ *     int     format version
+ *     int     pixel type bits (8 or 16)
+ *     int     number of channels
+ *     int     number of classes, trees, minimum instances, attributes per split, maximum depth
+ *     double  bag size percent
+ *     int     quantisation pixel type bits, or 0 if not quantised
+ *     int     split criterion ordinal
+ *     int     length of the serialized feature calculators, then that many bytes
+ *     int     number of training records, then per record: int random seed, int number of examples,
+ *             int number of trees, int number of retained trees, long parent fingerprint, long fingerprint,
+ *             long timestamp
+ *     int     number of class colours, 0 if not known, then int colour of each class
+ *     per tree: int number of nodes, int number of distribution values, long offset of the tree's arrays
+ *     padding to a multiple of 8 bytes
+ *     per tree, at its offset: double split points, double distributions, int split attributes, int left children,
+ *         int right children, int distribution offsets, padding to a multiple of 8 bytes
+ */
+object ImageSurfClassifierFile {
+
+    const val EXTENSION = ".imagesurf"
+    const val VERSION = 1
+
+    private const val MAGIC = 0x49535246
+    private const val NO_QUANTISATION = 0
+    private const val GZIP_MAGIC = 0x1f8b
+    private const val TRAINING_RECORD_SIZE = 4 * 4 + 8 * 3
+
+    /**
+     * Writes a classifier with Java serialization, the default format for saved classifiers.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun writeSerialized(classifier: ImageSurfClassifier, file: File) = replace(file) { temp ->
+        UtilityJava.serializeObject(classifier, temp, true)
+    }
+
+    /**
+     * Writes a classifier in the binary format.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun write(classifier: ImageSurfClassifier, file: File) = replace(file) { temp ->
+        val randomForest = classifier.randomForest
+        val flatTrees = randomForest.getFlatTrees()
+        val features = serializeFeatures(classifier.features)
+
+        val lineage = classifier.lineage
+        val classColors = classifier.classColors ?: IntArray(0)
+
+        val headerSize = 4L * 2 + 4 * 2 + 4 * 5 + 8 + 4 + 4 + 4 + features.size + 4 + lineage.size * TRAINING_RECORD_SIZE +
+                4 + classColors.size * 4 + flatTrees.size * (4 + 4 + 8)
+        var offset = align(headerSize)
+        val treeOffsets = flatTrees.map { tree -> offset.also { offset += align(treeSize(tree)) } }
+
+        DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+            output.writeInt(bits(classifier.pixelType))
+            output.writeInt(classifier.numChannels)
+            output.writeInt(randomForest.numClasses)
+            output.writeInt(randomForest.numTrees)
+            output.writeInt(randomForest.minInstances)
+            output.writeInt(randomForest.numAttributes)
+            output.writeInt(randomForest.maxDepth)
+            output.writeDouble(randomForest.bagSizePercent)
+            output.writeInt(randomForest.quantisation?.let { bits(it) } ?: NO_QUANTISATION)
+            output.writeInt(randomForest.splitCriterion.ordinal)
+            output.writeInt(features.size)
+            output.write(features)
+
+            output.writeInt(lineage.size)
+            lineage.forEach { record ->
+                output.writeInt(record.randomSeed)
+                output.writeInt(record.numExamples)
+                output.writeInt(record.numTrees)
+                output.writeInt(record.numRetainedTrees)
+                output.writeLong(record.parentFingerprint)
+                output.writeLong(record.fingerprint)
+                output.writeLong(record.timestamp)
+            }
+
+            output.writeInt(classColors.size)
+            classColors.forEach { output.writeInt(it) }
+
+            flatTrees.forEachIndexed { index, tree ->
+                output.writeInt(tree.numNodes)
+                output.writeInt(tree.distributions.size)
+                output.writeLong(treeOffsets[index])
+            }
+
+            pad(output, headerSize)
+
+            flatTrees.forEach { tree ->
+                tree.splitPoints.forEach { output.writeDouble(it) }
+                tree.distributions.forEach { output.writeDouble(it) }
+                tree.splitAttributes.forEach { output.writeInt(it) }
+                tree.leftChildren.forEach { output.writeInt(it) }
+                tree.rightChildren.forEach { output.writeInt(it) }
+                tree.distributionOffsets.forEach { output.writeInt(it) }
+                pad(output, treeSize(tree))
+            }
+        }
+    }
+
+    /**
+     * Reads a classifier in either the binary format or the Java serialization format used by earlier versions.
+     */
+    @JvmStatic
+    @Throws(IOException::class, ClassNotFoundException::class)
+    fun read(file: File): ImageSurfClassifier {
+        val header = DataInputStream(FileInputStream(file)).use { it.readInt() }
+
+        return when {
+            header == MAGIC -> readBinary(file)
+            header ushr 16 == GZIP_MAGIC -> UtilityJava.deserializeObject(file, true) as ImageSurfClassifier
+            else -> UtilityJava.deserializeObject(file, false) as ImageSurfClassifier
+        }
+    }
+
+    /**
+     * Whether a file is in the binary format.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun isBinary(file: File): Boolean =
+            file.length() >= 4 && DataInputStream(FileInputStream(file)).use { it.readInt() } == MAGIC
+
+    /**
+     * Converts a classifier file between formats: binary files are written with Java serialization and serialized
+     * files in the binary format.
+     */
+    @JvmStatic
+    @Throws(IOException::class, ClassNotFoundException::class)
+    fun convert(input: File, output: File) {
+        val classifier = read(input)
+
+        if (isBinary(input))
+            writeSerialized(classifier, output)
+        else
+            write(classifier, output)
+    }
+
+    @Throws(IOException::class, ClassNotFoundException::class)
+    private fun readBinary(file: File): ImageSurfClassifier = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+        val input = DataInputStream(BufferedInputStream(Channels.newInputStream(channel)))
+
+        input.readInt() // magic
+
+        val version = input.readInt()
+        if (version != VERSION)
+            throw IOException("Unsupported classifier file version $version, expected version $VERSION")
+
+        val pixelType = pixelType(input.readInt())
+        val numChannels = input.readInt()
+        val numClasses = input.readInt()
+        val numTrees = input.readInt()
+        val minInstances = input.readInt()
+        val numAttributes = input.readInt()
+        val maxDepth = input.readInt()
+        val bagSizePercent = input.readDouble()
+        val quantisation = input.readInt().let { if (it == NO_QUANTISATION) null else pixelType(it) }
+        val splitCriterion = splitCriterion(input.readInt())
+
+        val features = ByteArray(input.readInt()).also { input.readFully(it) }.let { deserializeFeatures(it) }
+
+        val lineage = List(input.readInt()) {
+            TrainingRecord(
+                    randomSeed = input.readInt(),
+                    numExamples = input.readInt(),
+                    numTrees = input.readInt(),
+                    numRetainedTrees = input.readInt(),
+                    parentFingerprint = input.readLong(),
+                    fingerprint = input.readLong(),
+                    timestamp = input.readLong()
+            )
+        }
+
+        val classColors = IntArray(input.readInt()) { input.readInt() }.takeIf { it.isNotEmpty() }
+
+        val numNodes = IntArray(numTrees)
+        val numDistributionValues = IntArray(numTrees)
+        val treeOffsets = LongArray(numTrees)
+
+        for (t in 0 until numTrees) {
+            numNodes[t] = input.readInt()
+            numDistributionValues[t] = input.readInt()
+            treeOffsets[t] = input.readLong()
+        }
+
+        // Trees are read with positional reads, which do not depend on how far the header stream has buffered
+        val flatTrees = Array(numTrees) { t ->
+            readTree(channel, treeOffsets[t], numNodes[t], numDistributionValues[t], numClasses)
+        }
+
+        val randomForest = RandomForest.fromFlatTrees(minInstances, numAttributes, maxDepth, numTrees, numClasses,
+                bagSizePercent, quantisation, splitCriterion, flatTrees)
+
+        ImageSurfClassifier(randomForest, features, pixelType, numChannels, lineage, classColors)
+    }
+
+    private fun readTree(channel: FileChannel, offset: Long, numNodes: Int, numDistributionValues: Int, numClasses: Int): FlatTree {
+        val tree = ByteBuffer.allocate(Math.toIntExact(8L * (numNodes + numDistributionValues) + 4L * 4 * numNodes))
+
+        while (tree.hasRemaining())
+            if (channel.read(tree, offset + tree.position()) < 0)
+                throw EOFException("Classifier file ends within a tree")
+
+        tree.flip()
+
+        val splitPoints = DoubleArray(numNodes)
+        val distributions = DoubleArray(numDistributionValues)
+        tree.asDoubleBuffer().apply { get(splitPoints) }.get(distributions)
+
+        val splitAttributes = IntArray(numNodes)
+        val leftChildren = IntArray(numNodes)
+        val rightChildren = IntArray(numNodes)
+        val distributionOffsets = IntArray(numNodes)
+        tree.position((numNodes + numDistributionValues) * 8)
+        tree.slice().asIntBuffer().apply {
+            get(splitAttributes)
+            get(leftChildren)
+            get(rightChildren)
+            get(distributionOffsets)
+        }
+
+        return FlatTree(splitAttributes, splitPoints, leftChildren, rightChildren, distributionOffsets,
+                distributions, numClasses)
+    }
+
+    private fun serializeFeatures(features: Array<FeatureCalculator>): ByteArray =
+            ByteArrayOutputStream().also { bytes ->
+                ObjectOutputStream(bytes).use { it.writeObject(features) }
+            }.toByteArray()
+
+    /**
+     * Writes a file by writing a temporary file in the same directory and moving it over the file.
+     */
+    private fun replace(file: File, write: (temp: File) -> Unit) {
+        val target = file.absoluteFile.toPath()
+        val temp = Files.createTempFile(target.parent, target.fileName.toString(), ".tmp")
+
+        try {
+            write(temp.toFile())
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: AtomicMoveNotSupportedException) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING)
+            }
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun deserializeFeatures(bytes: ByteArray): Array<FeatureCalculator> =
+            ObjectInputStream(ByteArrayInputStream(bytes)).use { it.readObject() as Array<FeatureCalculator> }
+
+    private fun treeSize(tree: FlatTree): Long =
+            8L * (tree.numNodes + tree.distributions.size) + 4L * 4 * tree.numNodes
+
+    private fun align(size: Long): Long = (size + 7) / 8 * 8
+
+    private fun pad(output: DataOutputStream, size: Long) {
+        for (i in size until align(size))
+            output.writeByte(0)
+    }
+
+    private fun bits(pixelType: PixelType): Int = when (pixelType) {
+        PixelType.GRAY_8_BIT -> 8
+        PixelType.GRAY_16_BIT -> 16
+    }
+
+    private fun splitCriterion(ordinal: Int): SplitCriterion =
+            SplitCriterion.values().getOrNull(ordinal) ?: throw IOException("Unsupported split criterion: $ordinal")
+
+    private fun pixelType(bits: Int): PixelType = when (bits) {
+        8 -> PixelType.GRAY_8_BIT
+        16 -> PixelType.GRAY_16_BIT
+        else -> throw IOException("Unsupported pixel type: $bits bits")
+    }
+}
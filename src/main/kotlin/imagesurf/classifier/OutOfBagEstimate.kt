@@ -0,0 +1,166 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+import imagesurf.feature.FeatureReader
+import util.UtilityJava
+import java.util.*
+
+/**
+ * Accuracy and feature importance of a forest estimated while it was built, by classifying each training instance
+ * with only the trees whose bags did not include it.
+ */
+class OutOfBagEstimate(
+        /**
+         * The class of each instance voted by the trees it was out of bag for, or -1 if it was in every tree's bag.
+         */
+        val classes: IntArray,
+
+        /**
+         * The fraction of instances with an out-of-bag class that were classified correctly, or NaN if there are none.
+         */
+        val accuracy: Double,
+
+        /**
+         * The mean over trees of the decrease in out-of-bag accuracy when each attribute's values are permuted among
+         * the tree's out-of-bag instances, or null if importance was not estimated. NaN for the class attribute.
+         */
+        val featureImportance: DoubleArray?
+)
+
+/**
+ * Collects out-of-bag votes and permutation importance from each tree as it is built.
+ */
+internal class OutOfBagAccumulator(
+        private val data: FeatureReader,
+        private val instanceIndices: IntArray,
+        private val numClasses: Int,
+        private val numTrees: Int,
+        private val estimateImportance: Boolean
+) {
+    private val votes = DoubleArray(data.numInstances * numClasses)
+    private val voted = BooleanArray(data.numInstances)
+    private val importanceSums = DoubleArray(data.numFeatures)
+
+    /**
+     * Adds the out-of-bag votes of a newly built tree. Safe to call from the threads building trees.
+     *
+     * @param bagCounts the number of times each instance is in the tree's bag
+     * @param random    source of the permutations used for importance
+     */
+    fun addTree(tree: RandomTree, bagCounts: IntArray, random: Random) {
+        val outOfBag = instanceIndices.filter { bagCounts[it] == 0 }.toIntArray()
+
+        if (outOfBag.isEmpty())
+            return
+
+        val distributions = Array(outOfBag.size) { tree.distributionForInstance(data, outOfBag[it]) }
+        val treeImportance = if (estimateImportance) permutationImportance(tree, outOfBag, distributions, random) else null
+
+        synchronized(this) {
+            for (k in outOfBag.indices) {
+                val distribution = distributions[k] ?: continue
+                val offset = outOfBag[k] * numClasses
+
+                for (c in 0 until numClasses)
+                    votes[offset + c] += distribution[c]
+
+                voted[outOfBag[k]] = true
+            }
+
+            treeImportance?.forEachIndexed { attribute, importance -> importanceSums[attribute] += importance }
+        }
+    }
+
+    fun estimate(): OutOfBagEstimate {
+        val classes = IntArray(data.numInstances) { -1 }
+        var numVoted = 0
+        var numCorrect = 0
+
+        for (i in instanceIndices) {
+            if (!voted[i])
+                continue
+
+            val offset = i * numClasses
+            var maxClass = 0
+            for (c in 1 until numClasses)
+                if (votes[offset + c] > votes[offset + maxClass])
+                    maxClass = c
+
+            classes[i] = maxClass
+            numVoted++
+            if (maxClass == data.getClassValue(i))
+                numCorrect++
+        }
+
+        val featureImportance = if (!estimateImportance) null else
+            DoubleArray(data.numFeatures) { attribute ->
+                if (attribute == data.classIndex) java.lang.Double.NaN else importanceSums[attribute] / numTrees
+            }
+
+        return OutOfBagEstimate(
+                classes = classes,
+                accuracy = if (numVoted == 0) java.lang.Double.NaN else numCorrect.toDouble() / numVoted,
+                featureImportance = featureImportance
+        )
+    }
+
+    /**
+     * The decrease in the tree's out-of-bag accuracy when each attribute it splits on is permuted. Attributes the tree
+     * does not split on cannot change its votes and are left at zero.
+     */
+    private fun permutationImportance(tree: RandomTree, outOfBag: IntArray, distributions: Array<DoubleArray?>,
+                                      random: Random): DoubleArray {
+        val importance = DoubleArray(data.numFeatures)
+        val splitAttributes = BooleanArray(data.numFeatures).also { tree.markSplitAttributes(it) }
+
+        val correct = outOfBag.indices.count { vote(distributions[it]) == data.getClassValue(outOfBag[it]) }
+        val permuted = outOfBag.copyOf()
+
+        for (attribute in splitAttributes.indices) {
+            if (!splitAttributes[attribute])
+                continue
+
+            UtilityJava.shuffleArray(permuted, random)
+
+            val permutedCorrect = outOfBag.indices.count {
+                vote(tree.distributionForInstance(data, outOfBag[it], attribute, permuted[it])) ==
+                        data.getClassValue(outOfBag[it])
+            }
+
+            importance[attribute] = (correct - permutedCorrect).toDouble() / outOfBag.size
+        }
+
+        return importance
+    }
+
+    /**
+     * The class a single tree votes for, or -1 if the instance reached an empty leaf.
+     */
+    private fun vote(distribution: DoubleArray?): Int {
+        if (distribution == null)
+            return -1
+
+        var maxClass = 0
+        for (c in 1 until numClasses)
+            if (distribution[c] > distribution[maxClass])
+                maxClass = c
+
+        return maxClass
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+import imagesurf.feature.PixelType
+import imagesurf.reader.ByteReader
+import imagesurf.reader.ShortReader
+
+/**
+ * A [FlatTree] with its split points quantised to integer thresholds on the raw values of a [ByteReader] or
+ * [ShortReader] column, so that instances are classified without widening feature values to doubles.
+ *
+ * Nodes are stored in pre-order, so the left child of a split node is always the next node and only right children
+ * are stored. Split attributes are narrowed to shorts; thresholds are bytes for 8-bit models and shorts for 16-bit
+ * models, both read as unsigned. An instance goes left when its masked raw value is less than the node's threshold,
+ * which gives exactly the same decisions as comparing [FeatureReader.getValue] with the original split point.
+ */
+internal class QuantisedTree private constructor(
+        val splitAttributes: ShortArray,
+        private val byteThresholds: ByteArray?,
+        private val shortThresholds: ShortArray?,
+        val rightChildren: IntArray,
+        val distributionOffsets: IntArray,
+        val distributions: DoubleArray,
+        val numClasses: Int
+) {
+
+    fun leafFor(columns: Array<ByteArray>, instanceIndex: Int): Int {
+        val thresholds = byteThresholds!!
+        var node = 0
+        var attribute = splitAttributes[node].toInt()
+
+        while (attribute >= 0) {
+            node = if ((columns[attribute][instanceIndex].toInt() and 0xff) < (thresholds[node].toInt() and 0xff))
+                node + 1
+            else
+                rightChildren[node]
+
+            attribute = splitAttributes[node].toInt()
+        }
+
+        return node
+    }
+
+    fun leafFor(columns: Array<ShortArray>, instanceIndex: Int): Int {
+        val thresholds = shortThresholds!!
+        var node = 0
+        var attribute = splitAttributes[node].toInt()
+
+        while (attribute >= 0) {
+            node = if ((columns[attribute][instanceIndex].toInt() and ShortReader.BIT_MASK) < (thresholds[node].toInt() and 0xffff))
+                node + 1
+            else
+                rightChildren[node]
+
+            attribute = splitAttributes[node].toInt()
+        }
+
+        return node
+    }
+
+    fun addDistribution(columns: Array<ByteArray>, instanceIndex: Int, sums: DoubleArray) =
+            addLeafDistribution(leafFor(columns, instanceIndex), sums, 0)
+
+    fun addDistribution(columns: Array<ShortArray>, instanceIndex: Int, sums: DoubleArray) =
+            addLeafDistribution(leafFor(columns, instanceIndex), sums, 0)
+
+    /**
+     * Block equivalent of [addDistribution]; see [FlatTree.addDistributions].
+     */
+    fun addDistributions(columns: Array<ByteArray>, from: Int, positions: IntArray, numPositions: Int,
+                         workspace: FlatTree.BlockWorkspace, sums: DoubleArray) {
+        val thresholds = byteThresholds!!
+        val nodes = workspace.nodes
+        val active = workspace.active
+        var numActive = workspace.start(positions, numPositions, splitAttributes[0] >= 0)
+
+        while (numActive > 0) {
+            var numStillActive = 0
+
+            for (i in 0 until numActive) {
+                val position = active[i]
+                val node = nodes[position]
+                val column = columns[splitAttributes[node].toInt()]
+
+                val child = if ((column[from + position].toInt() and 0xff) < (thresholds[node].toInt() and 0xff))
+                    node + 1
+                else
+                    rightChildren[node]
+
+                nodes[position] = child
+
+                if (splitAttributes[child] >= 0)
+                    active[numStillActive++] = position
+            }
+
+            numActive = numStillActive
+        }
+
+        for (i in 0 until numPositions) {
+            val position = positions[i]
+            addLeafDistribution(nodes[position], sums, position * numClasses)
+        }
+    }
+
+    /**
+     * Block equivalent of [addDistribution]; see [FlatTree.addDistributions].
+     */
+    fun addDistributions(columns: Array<ShortArray>, from: Int, positions: IntArray, numPositions: Int,
+                         workspace: FlatTree.BlockWorkspace, sums: DoubleArray) {
+        val thresholds = shortThresholds!!
+        val nodes = workspace.nodes
+        val active = workspace.active
+        var numActive = workspace.start(positions, numPositions, splitAttributes[0] >= 0)
+
+        while (numActive > 0) {
+            var numStillActive = 0
+
+            for (i in 0 until numActive) {
+                val position = active[i]
+                val node = nodes[position]
+                val column = columns[splitAttributes[node].toInt()]
+
+                val child = if ((column[from + position].toInt() and ShortReader.BIT_MASK) < (thresholds[node].toInt() and 0xffff))
+                    node + 1
+                else
+                    rightChildren[node]
+
+                nodes[position] = child
+
+                if (splitAttributes[child] >= 0)
+                    active[numStillActive++] = position
+            }
+
+            numActive = numStillActive
+        }
+
+        for (i in 0 until numPositions) {
+            val position = positions[i]
+            addLeafDistribution(nodes[position], sums, position * numClasses)
+        }
+    }
+
+    private fun addLeafDistribution(leaf: Int, sums: DoubleArray, sumsOffset: Int) {
+        val offset = distributionOffsets[leaf]
+
+        if (offset >= 0)
+            for (c in 0 until numClasses)
+                sums[sumsOffset + c] += distributions[offset + c]
+    }
+
+    companion object {
+
+        /**
+         * Quantises a flattened tree for data of the given pixel type.
+         *
+         * @return the quantised tree, or null if the tree cannot be represented with narrowed attributes and
+         * thresholds
+         */
+        fun quantise(tree: FlatTree, pixelType: PixelType): QuantisedTree? {
+            val numNodes = tree.numNodes
+            val splitAttributes = ShortArray(numNodes)
+            val byteThresholds = if (pixelType == PixelType.GRAY_8_BIT) ByteArray(numNodes) else null
+            val shortThresholds = if (pixelType == PixelType.GRAY_16_BIT) ShortArray(numNodes) else null
+
+            for (node in 0 until numNodes) {
+                val attribute = tree.splitAttributes[node]
+
+                if (attribute > Short.MAX_VALUE)
+                    return null
+
+                splitAttributes[node] = if (attribute < 0) -1 else attribute.toShort()
+
+                if (attribute < 0)
+                    continue
+
+                if (tree.leftChildren[node] != node + 1)
+                    return null
+
+                when (pixelType) {
+                    PixelType.GRAY_8_BIT -> {
+                        val threshold = ByteReader.quantiseSplitPoint(tree.splitPoints[node])
+                        if (threshold > 0xff)
+                            return null
+                        byteThresholds!![node] = threshold.toByte()
+                    }
+                    PixelType.GRAY_16_BIT -> {
+                        val threshold = ShortReader.quantiseSplitPoint(tree.splitPoints[node])
+                        if (threshold > 0xffff)
+                            return null
+                        shortThresholds!![node] = threshold.toShort()
+                    }
+                }
+            }
+
+            return QuantisedTree(splitAttributes, byteThresholds, shortThresholds, tree.rightChildren,
+                    tree.distributionOffsets, tree.distributions, tree.numClasses)
+        }
+    }
+}
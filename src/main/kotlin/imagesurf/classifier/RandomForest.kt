@@ -18,13 +18,20 @@
 package imagesurf.classifier
 
 import imagesurf.feature.FeatureReader
+import imagesurf.feature.PixelType
+import imagesurf.reader.ByteReader
+import imagesurf.reader.ShortReader
 import imagesurf.util.*
 import util.UtilityJava
 
+import java.io.IOException
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
 import java.io.Serializable
 import java.util.*
 import java.util.concurrent.*
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.stream.IntStream
 import kotlin.math.floor
 import kotlin.math.min
@@ -32,20 +39,112 @@ import kotlin.math.min
 class RandomForest private constructor(
         val minInstances: Int,
         val numAttributes: Int,
-        randomSeed: Int,
+        /**
+         * The seed the forest was trained with, or 0 for forests read from the binary format.
+         */
+        val randomSeed: Int,
         val maxDepth: Int,
         val numTrees: Int,
         val numClasses: Int,
         val bagSizePercent: Double,
-        numThreads: Int
+        numThreads: Int,
+        /**
+         * The pixel type whose raw feature values split points are quantised for, or null if classification always
+         * compares feature values as doubles.
+         */
+        val quantisation: PixelType?,
+        splitFinder: SplitFinder,
+        splitCriterion: SplitCriterion
 ) : Serializable, Classifier, ProgressNotifier by BasicProgressNotifier() {
 
     private val random: Random = Random(randomSeed.toLong())
+
+    /**
+     * The trees in node-object form. Null for forests read from the binary format until [getTree] rebuilds them.
+     */
     private val trees: Array<RandomTree?> = arrayOfNulls(numTrees)
 
+    /**
+     * The trees compiled into primitive arrays. Used for all classification, rebuilt after training and on
+     * deserialization.
+     */
+    @Transient
+    private var flatTrees: Array<FlatTree> = emptyArray()
+
+    /**
+     * The flattened trees with integer thresholds, used instead of [flatTrees] when classifying raw data of the
+     * [quantisation] pixel type. Empty if the forest is not quantised or a tree could not be quantised.
+     */
+    @Transient
+    private var quantisedTrees: Array<QuantisedTree> = emptyArray()
+
+    /**
+     * The most votes that trees from each index onwards can add to any class for a single instance. Has numTrees + 1
+     * entries, the last being zero.
+     */
+    @Transient
+    private var remainingVotes: DoubleArray = DoubleArray(0)
+
+    /**
+     * The first tree index at which the leading class could already be decided, so [earlyExit] only starts checking
+     * from there.
+     */
+    @Transient
+    private var firstDecidableTree: Int = 0
+
+    /**
+     * When set, [classForInstances], [classForBlock] and [classForAllInstances] stop evaluating trees for an
+     * instance once the leading class can no longer be overtaken by the remaining trees. Classes are identical to a
+     * full evaluation; the number of skipped tree evaluations is reported to progress listeners.
+     */
+    @Transient
+    var earlyExit: Boolean = false
+
+    /**
+     * How trees find split points while the forest is being built. Not kept once training is complete.
+     */
+    @Transient
+    internal var splitFinder: SplitFinder = splitFinder
+
+    /**
+     * The number of distinct instances from which a node builds its subtrees as parallel tasks. Not kept once training
+     * is complete.
+     */
+    @Transient
+    internal var parallelThreshold: Int = DEFAULT_PARALLEL_THRESHOLD
+
+    /**
+     * The number of nodes that built their subtrees as parallel tasks while the forest was built.
+     */
+    @Transient
+    internal var numParallelNodes = AtomicInteger()
+
+    /**
+     * How the trees scored candidate splits. Saved with the forest so that it can be retrained or compared with the
+     * same criterion; forests saved before the criterion was selectable used [SplitCriterion.ENTROPY].
+     */
+    var splitCriterion: SplitCriterion = splitCriterion
+        private set
+
+    /**
+     * Out-of-bag accuracy, and feature importance if requested, estimated while the forest was built; null if not
+     * requested with [Builder.withOutOfBagEstimates]. Not kept when the forest is saved.
+     */
+    @Transient
+    var outOfBagEstimate: OutOfBagEstimate? = null
+        private set
+
     var numThreads: Int = numThreads
         get() = if (field <= 0) Runtime.getRuntime().availableProcessors() else field
 
+    /**
+     * The number of trees kept from the forest this one was retrained from with [Builder.withPreviousForest]. These
+     * are the first trees; the rest were trained on the new data. Not kept when the forest is saved.
+     */
+    @Transient
+    var numRetainedTrees: Int = 0
+        private set
+
     class Builder {
         private var minNum = 1
         private var numAttributes = 0
@@ -54,6 +153,14 @@ class RandomForest private constructor(
         private var numTrees = NOT_SET
         private var bagSizePercent = 100.0
         private var numThreads = NOT_SET
+        private var quantise = false
+        private var splitFinder = SplitFinder.DEFAULT
+        private var splitCriterion = SplitCriterion.ENTROPY
+        private var outOfBagEstimates = false
+        private var outOfBagImportance = false
+        private var previousForest: RandomForest? = null
+        private var retrainedPercent = 100
+        private var parallelThreshold = DEFAULT_PARALLEL_THRESHOLD
 
         private var data: FeatureReader? = null
         private var instanceIndices: IntArray? = null
@@ -95,6 +202,62 @@ class RandomForest private constructor(
             return this
         }
 
+        /**
+         * Quantise split points to integer thresholds on the raw 8 or 16-bit training data, so that data of the same
+         * type is classified with integer comparisons. Classifications are unchanged.
+         */
+        fun withQuantisation(quantise: Boolean): Builder {
+            this.quantise = quantise
+            return this
+        }
+
+        /**
+         * How trees find the best split point of each attribute. Defaults to [SplitFinder.DEFAULT].
+         */
+        fun withSplitFinder(splitFinder: SplitFinder): Builder {
+            this.splitFinder = splitFinder
+            return this
+        }
+
+        /**
+         * How trees score candidate splits. Defaults to [SplitCriterion.ENTROPY].
+         */
+        fun withSplitCriterion(splitCriterion: SplitCriterion): Builder {
+            this.splitCriterion = splitCriterion
+            return this
+        }
+
+        /**
+         * Estimate accuracy on each tree's out-of-bag instances while building, and optionally permutation feature
+         * importance, available from [outOfBagEstimate].
+         */
+        @JvmOverloads
+        fun withOutOfBagEstimates(estimate: Boolean, estimateImportance: Boolean = false): Builder {
+            this.outOfBagEstimates = estimate
+            this.outOfBagImportance = estimate && estimateImportance
+            return this
+        }
+
+        /**
+         * Retrain a previously built forest rather than building every tree: the given percentage of trees are
+         * replaced with trees trained on the data, and the leaves of the rest are refitted to a bag of the data while
+         * keeping their splits. The data must have the same features and classes as the previous forest's data.
+         */
+        fun withPreviousForest(previousForest: RandomForest, retrainedPercent: Int): Builder {
+            this.previousForest = previousForest
+            this.retrainedPercent = retrainedPercent
+            return this
+        }
+
+        /**
+         * The number of distinct instances from which a node builds its subtrees as parallel tasks, lowered in tests
+         * so that small data sets are built in parallel.
+         */
+        internal fun withParallelThreshold(parallelThreshold: Int): Builder {
+            this.parallelThreshold = parallelThreshold
+            return this
+        }
+
         @JvmOverloads
         fun withData(data: FeatureReader, instanceIndices: IntArray = IntStream.range(0, data.numInstances).toArray()): Builder {
             this.data = data
@@ -115,6 +278,18 @@ class RandomForest private constructor(
             if (data == null)
                 throw IllegalArgumentException("Data must be set before building")
 
+            previousForest?.let { previous ->
+                if (previous.numClasses != data!!.numClasses)
+                    throw IllegalArgumentException("Previous forest has ${previous.numClasses} classes but the data has " +
+                            "${data!!.numClasses}")
+
+                if (previous.getFlatTrees().any { tree -> tree.splitAttributes.any { it >= data!!.numFeatures } })
+                    throw IllegalArgumentException("Previous forest splits on features the data does not have")
+            }
+
+            val numRetrained = if (previousForest == null) numTrees else
+                Math.ceil(numTrees * retrainedPercent.coerceIn(0, 100) / 100.0).toInt()
+
             return RandomForest(
                     minInstances = minNum,
                     numAttributes = when {
@@ -127,11 +302,25 @@ class RandomForest private constructor(
                     numTrees = numTrees,
                     numClasses = data!!.numClasses,
                     bagSizePercent = bagSizePercent,
-                    numThreads = numThreads
+                    numThreads = numThreads,
+                    quantisation = if (!quantise) null else when (data) {
+                        is ByteReader -> PixelType.GRAY_8_BIT
+                        is ShortReader -> PixelType.GRAY_16_BIT
+                        else -> throw IllegalArgumentException("Quantisation requires 8 or 16-bit feature data")
+                    },
+                    splitFinder = splitFinder,
+                    splitCriterion = splitCriterion
             )
                 .also {
+                    it.parallelThreshold = parallelThreshold
                     it.addProgressListeners(progressListeners)
-                    it.buildClassifier(data!!, instanceIndices!!)
+                    val retained = previousForest?.let { previous -> it.retainTrees(previous, numTrees - numRetrained) }
+                            ?: emptyArray()
+                    val numTrained = numTrees - retained.size
+                    it.buildClassifier(data!!, instanceIndices!!, retained,
+                            if (outOfBagEstimates && numTrained > 0) OutOfBagAccumulator(data!!, instanceIndices!!,
+                                    data!!.numClasses, numTrained, outOfBagImportance) else null)
+                    it.flattenTrees()
                     it.removeProgressListeners(progressListeners)
                 }
 
@@ -142,16 +331,53 @@ class RandomForest private constructor(
         }
     }
 
-    private fun buildClassifier(data: FeatureReader, instanceIndices: IntArray) {
+    /**
+     * Chooses up to numRetained trees of a previous forest at random, keeping their order in that forest.
+     */
+    private fun retainTrees(previous: RandomForest, numRetained: Int): Array<FlatTree> {
+        val previousTrees = previous.getFlatTrees()
+
+        if (numRetained <= 0)
+            return emptyArray()
+
+        return previousTrees.indices
+                .shuffled(random)
+                .take(numRetained)
+                .sorted()
+                .map { previousTrees[it] }
+                .toTypedArray()
+    }
+
+    /**
+     * Builds the trees as tasks on the training executor with a parallelism of [numThreads]. Trees split their larger nodes into further tasks, so idle threads help build the
+     * remaining trees rather than waiting for them at the end of training.
+     *
+     * Retained trees from a previous forest become the first trees, with their leaves refitted to a bag drawn as for
+     * a new tree; only the remaining trees are built and added to the out-of-bag estimate.
+     */
+    private fun buildClassifier(data: FeatureReader, instanceIndices: IntArray, retained: Array<FlatTree>,
+                                outOfBag: OutOfBagAccumulator?) {
 
         val bagSize = floor(instanceIndices.size * (bagSizePercent / 100)).toInt()
 
-        val executorPool = Executors.newFixedThreadPool(numThreads)
+        //TODO remove dependency on ImageSurfEnvironment and pass executors around
+        val executorPool = ImageSurfEnvironment.getTrainingExecutor(numThreads)
 
         val futures = ArrayList<Future<*>>()
         val treesBuilt = AtomicInteger(0)
 
-        for (i in 0 until numTrees) {
+        for (i in retained.indices) {
+            val trainingSetRandomSeed = random.nextLong()
+
+            futures.add(executorPool.submit {
+                val bagCounts = getBagCounts(bagSize, trainingSetRandomSeed, instanceIndices, data.numInstances)
+                trees[i] = RandomTree.unflatten(this, retained[i].refit(data, bagCounts))
+            })
+        }
+
+        numRetainedTrees = retained.size
+
+        for (i in retained.size until numTrees) {
             trees[i] = RandomTree(this)
             val currentClassifier = trees[i]
 
@@ -160,11 +386,12 @@ class RandomForest private constructor(
 
             futures.add(executorPool.submit {
                 val startTime = System.currentTimeMillis()
-                val trainingSet = getTrainingSet(bagSize, trainingSetRandomSeed, instanceIndices)
+                val bagCounts = getBagCounts(bagSize, trainingSetRandomSeed, instanceIndices, data.numInstances)
 
                 try {
-                    currentClassifier!!.buildTree(data, trainingSet, treeRandomSeed)
-                    onProgress(treesBuilt.getAndAdd(1), numTrees, "Built tree " + i + " in " + (System.currentTimeMillis() - startTime) + "ms")
+                    currentClassifier!!.buildTree(data, bagCounts, treeRandomSeed)
+                    outOfBag?.addTree(currentClassifier, bagCounts, Random(trainingSetRandomSeed xor treeRandomSeed))
+                    onProgress(treesBuilt.getAndAdd(1), numTrees - retained.size, "Built tree " + i + " in " + (System.currentTimeMillis() - startTime) + "ms")
                 } catch (e: Exception) {
                     throw RuntimeException("Failed to build tree " + i + " in " + (System.currentTimeMillis() - startTime) + "ms.", e)
                 }
@@ -184,26 +411,187 @@ class RandomForest private constructor(
             e.printStackTrace()
             throw RuntimeException(e)
         } finally {
-            executorPool.shutdown()
+            // Trees not yet started are skipped if another failed, as the shared pool is not shut down
+            futures.forEach { it.cancel(true) }
         }
 
+        outOfBagEstimate = outOfBag?.estimate()
     }
 
-    private fun getTrainingSet(bagSize: Int, randomSeed: Long, instanceIndices: IntArray): IntArray =
-        Random(randomSeed).let{
-            generateSequence { it.nextInt(instanceIndices.size) }
-        }.take(bagSize).toList().toIntArray()
+    private fun flattenTrees() {
+        flatTrees = Array(numTrees) { FlatTree.flatten(trees[it]!!, numClasses) }
+        prepareFlatTrees()
+    }
+
+    /**
+     * Derives the quantised trees and early-exit bounds from [flatTrees].
+     */
+    private fun prepareFlatTrees() {
+        quantisedTrees = quantisation
+                ?.let { pixelType -> flatTrees.map { QuantisedTree.quantise(it, pixelType) } }
+                ?.takeIf { it.all { tree -> tree != null } }
+                ?.map { it!! }
+                ?.toTypedArray()
+                ?: emptyArray()
+
+        remainingVotes = DoubleArray(numTrees + 1)
+        for (t in numTrees - 1 downTo 0)
+            remainingVotes[t] = remainingVotes[t + 1] + flatTrees[t].maxVote()
+
+        firstDecidableTree = (0..numTrees).firstOrNull { remainingVotes[0] - remainingVotes[it] > remainingVotes[it] } ?: numTrees
+    }
+
+    private fun addDistribution(data: FeatureReader, instanceIndex: Int, sums: DoubleArray,
+                                fromTree: Int = 0, toTree: Int = numTrees) {
+        when {
+            quantisedTrees.isEmpty() ->
+                for (t in fromTree until toTree) flatTrees[t].addDistribution(data, instanceIndex, sums)
+            quantisation == PixelType.GRAY_8_BIT && data is ByteReader -> data.columns.let {
+                for (t in fromTree until toTree) quantisedTrees[t].addDistribution(it, instanceIndex, sums)
+            }
+            quantisation == PixelType.GRAY_16_BIT && data is ShortReader -> data.columns.let {
+                for (t in fromTree until toTree) quantisedTrees[t].addDistribution(it, instanceIndex, sums)
+            }
+            else -> for (t in fromTree until toTree) flatTrees[t].addDistribution(data, instanceIndex, sums)
+        }
+    }
+
+    private fun addDistributions(data: FeatureReader, fromTree: Int, toTree: Int, from: Int, positions: IntArray,
+                                 numPositions: Int, workspace: FlatTree.BlockWorkspace, sums: DoubleArray) {
+        when {
+            quantisedTrees.isEmpty() -> for (t in fromTree until toTree)
+                flatTrees[t].addDistributions(data, from, positions, numPositions, workspace, sums)
+            quantisation == PixelType.GRAY_8_BIT && data is ByteReader -> data.columns.let {
+                for (t in fromTree until toTree)
+                    quantisedTrees[t].addDistributions(it, from, positions, numPositions, workspace, sums)
+            }
+            quantisation == PixelType.GRAY_16_BIT && data is ShortReader -> data.columns.let {
+                for (t in fromTree until toTree)
+                    quantisedTrees[t].addDistributions(it, from, positions, numPositions, workspace, sums)
+            }
+            else -> for (t in fromTree until toTree)
+                flatTrees[t].addDistributions(data, from, positions, numPositions, workspace, sums)
+        }
+    }
+
+    /**
+     * Adds the votes of the trees for an instance to sums, stopping early if [earlyExit] is set and the leading
+     * class has been decided.
+     *
+     * @return the number of trees evaluated
+     */
+    private fun addVotes(data: FeatureReader, instanceIndex: Int, sums: DoubleArray): Int {
+        if (!earlyExit) {
+            addDistribution(data, instanceIndex, sums)
+            return numTrees
+        }
+
+        addDistribution(data, instanceIndex, sums, 0, firstDecidableTree)
+
+        for (t in firstDecidableTree until numTrees) {
+            if (isDecided(sums, 0, remainingVotes[t]))
+                return t
+
+            addDistribution(data, instanceIndex, sums, t, t + 1)
+        }
+
+        return numTrees
+    }
+
+    /**
+     * Whether the leading class in the numClasses sums starting at offset leads every other class by more than
+     * remainingVotes, so that no further votes can change the result.
+     */
+    private fun isDecided(sums: DoubleArray, offset: Int, remainingVotes: Double): Boolean {
+        var first = sums[offset]
+        var second = Double.NEGATIVE_INFINITY
+
+        for (c in 1 until numClasses) {
+            val sum = sums[offset + c]
+
+            if (sum > first) {
+                second = first
+                first = sum
+            } else if (sum > second) {
+                second = sum
+            }
+        }
+
+        return first - second > remainingVotes + VOTE_TOLERANCE
+    }
+
+    private fun reportSkippedTrees(skipped: Long, numInstances: Int) {
+        if (earlyExit)
+            onProgress(100, 100, "Skipped $skipped of ${numInstances.toLong() * numTrees} tree evaluations")
+    }
+
+    @Throws(IOException::class, ClassNotFoundException::class)
+    private fun readObject(input: ObjectInputStream) {
+        input.defaultReadObject()
+        splitFinder = SplitFinder.DEFAULT
+        parallelThreshold = DEFAULT_PARALLEL_THRESHOLD
+        numParallelNodes = AtomicInteger()
+
+        @Suppress("SENSELESS_COMPARISON")
+        if (splitCriterion == null)
+            splitCriterion = SplitCriterion.ENTROPY
+        flattenTrees()
+    }
+
+    @Throws(IOException::class)
+    private fun writeObject(output: ObjectOutputStream) {
+        for (i in 0 until numTrees)
+            getTree(i)
+
+        output.defaultWriteObject()
+    }
+
+    /**
+     * Gets a tree in its node-object form, rebuilding it from the flat tree if the forest was read from the binary
+     * format. Classification uses the flattened trees; this is exposed for comparison and inspection.
+     */
+    fun getTree(index: Int): RandomTree {
+        trees[index]?.let { return it }
+
+        synchronized(trees) {
+            return trees[index] ?: RandomTree.unflatten(this, flatTrees[index]).also { trees[index] = it }
+        }
+    }
+
+    /**
+     * A hash of the splits and leaf distributions of every tree, identifying a trained forest in the lineage of a
+     * retrained classifier.
+     */
+    fun fingerprint(): Long = getFlatTrees().fold(1L) { hash, tree -> 31 * hash + tree.contentHash() }
+
+    /**
+     * Gets the flattened trees, for writing in the binary format.
+     */
+    internal fun getFlatTrees(): Array<FlatTree> {
+        return flatTrees
+    }
+
+    /**
+     * Draws a bootstrap sample of bagSize instances with replacement.
+     *
+     * @return the number of times each instance was drawn, indexed by instance
+     */
+    private fun getBagCounts(bagSize: Int, randomSeed: Long, instanceIndices: IntArray, numInstances: Int): IntArray {
+        val random = Random(randomSeed)
+        val bagCounts = IntArray(numInstances)
+
+        for (i in 0 until bagSize)
+            bagCounts[instanceIndices[random.nextInt(instanceIndices.size)]]++
+
+        return bagCounts
+    }
 
 
     override fun distributionForInstance(data: FeatureReader, instanceIndex: Int): DoubleArray {
         val sums = DoubleArray(this@RandomForest.numClasses)
 
-        for (i in 0 until this@RandomForest.numTrees) {
-            val newProbs = trees[i]!!.distributionForInstance(data, instanceIndex)
-            if (null != newProbs)
-                for (j in newProbs.indices)
-                    sums[j] += newProbs[j]
-        }
+        addDistribution(data, instanceIndex, sums)
+
         return if (UtilityJava.eq(UtilityJava.sum(sums), 0.0)) {
             sums
         } else {
@@ -212,101 +600,257 @@ class RandomForest private constructor(
         }
     }
 
-    @Throws(InterruptedException::class)
+    @Throws(InterruptedException::class, ExecutionException::class)
     override fun distributionForInstances(data: FeatureReader): Array<DoubleArray> {
         val numInstances = data.numInstances
         val distributions = arrayOfNulls<DoubleArray>(numInstances)
 
-        val progressPoint = numInstances / 100
-        val progress = AtomicInteger(0)
+        forEachChunk(numInstances) { from, to ->
+            for (index in from until to) {
+                val sums = DoubleArray(numClasses)
 
-        //TODO remove dependency on ImageSurfEnvironment and pass executors around
-        val e = ImageSurfEnvironment.getSegmentationExecutor()
-
-        val batchSize = numInstances / numThreads
-
-        e.submit { (0 until numThreads).toList()
-            .stream()
-            .parallel()
-            .forEach { threadIndex ->
-                IntRange(batchSize * threadIndex, min(batchSize * threadIndex + batchSize, numInstances - 1)).forEach { index ->
-                    if (index % progressPoint == 0 || (index + 1) % batchSize == 0) {
-                        val currentProgress = progress.getAndIncrement()
-                        onProgress(currentProgress, 100, "Segmented $currentProgress%")
-                    }
-                    val result: DoubleArray
-                    val sums = DoubleArray(this@RandomForest.numClasses)
-
-                    for (i in 0 until this@RandomForest.numTrees) {
-                        val newProbs = trees[i]!!.distributionForInstance(data, index)
-                        if (null != newProbs)
-                            for (j in newProbs.indices)
-                                sums[j] += newProbs[j]
-                    }
-                    if (UtilityJava.eq(UtilityJava.sum(sums), 0.0)) {
-                        result = sums
-                    } else {
-                        UtilityJava.normalize(sums)
-                        result = sums
-                    }
-                    distributions[index] = result
+                addDistribution(data, index, sums)
 
-                }
+                if (!UtilityJava.eq(UtilityJava.sum(sums), 0.0))
+                    UtilityJava.normalize(sums)
+
+                distributions[index] = sums
             }
-        }.get()
+        }
 
-        return distributions.filterNotNull().toTypedArray()
+        return distributions.requireNoNulls()
     }
 
-    @Throws(InterruptedException::class)
+    @Throws(InterruptedException::class, ExecutionException::class)
     override fun classForInstances(data: FeatureReader, instanceIndices: IntArray): IntArray {
         val numInstances = instanceIndices.size
         val classes = IntArray(numInstances)
-        val progressPoint = numInstances / 100
+        val skipped = AtomicLong(0)
+
+        forEachChunk(numInstances) { from, to ->
+            val sums = DoubleArray(numClasses)
+            var chunkSkipped = 0L
+
+            for (index in from until to) {
+                sums.fill(0.0)
+
+                chunkSkipped += numTrees - addVotes(data, instanceIndices[index], sums)
+
+                var maxClass = 0
+
+                for (c in 1 until sums.size)
+                    if (sums[c] > sums[maxClass])
+                        maxClass = c
+
+                classes[index] = maxClass
+            }
+
+            skipped.addAndGet(chunkSkipped)
+        }
+
+        reportSkippedTrees(skipped.get(), numInstances)
+
+        return classes
+    }
+
+    /**
+     * Classifies every instance in data, splitting the instances into blocks that are classified in parallel with
+     * [classForBlock]. Used when segmenting whole planes.
+     */
+    @Throws(InterruptedException::class, ExecutionException::class)
+    fun classForAllInstances(data: FeatureReader): IntArray {
+        val numInstances = data.numInstances
+        val classes = IntArray(numInstances)
+        val skipped = AtomicLong(0)
+
+        forEachChunk(numInstances) { from, to ->
+            skipped.addAndGet(classifyBlocks(data, from, to, classes))
+        }
+
+        reportSkippedTrees(skipped.get(), numInstances)
+
+        return classes
+    }
+
+    /**
+     * Writes the class probabilities of every instance in data to per-class planes, scaled to the full range of each
+     * plane's pixel type. Probabilities are the normalised votes given by [distributionForInstance]; nothing is
+     * allocated per instance.
+     *
+     * @param planes a ByteArray or ShortArray for each class, with an entry for each instance
+     */
+    @Throws(InterruptedException::class, ExecutionException::class)
+    fun probabilitiesForAllInstances(data: FeatureReader, planes: List<Any>) {
+        if (planes.size != numClasses)
+            throw IllegalArgumentException("Expected $numClasses probability planes but got ${planes.size}")
 
-        //TODO make sure progress is working properly
-        val progress = AtomicInteger(0)
+        val bytePlanes = planes.filterIsInstance<ByteArray>()
+        val shortPlanes = planes.filterIsInstance<ShortArray>()
+
+        if (bytePlanes.size != numClasses && shortPlanes.size != numClasses)
+            throw IllegalArgumentException("Probability planes must be all 8-bit or all 16-bit")
+
+        val numInstances = data.numInstances
+
+        forEachChunk(numInstances) { from, to ->
+            val workspace = FlatTree.BlockWorkspace(to - from, numClasses)
+            val positions = workspace.positions
+            val sums = workspace.sums
+
+            for (position in 0 until to - from)
+                positions[position] = position
+
+            addDistributions(data, 0, numTrees, from, positions, to - from, workspace, sums)
+
+            for (position in 0 until to - from) {
+                val offset = position * numClasses
+                var total = 0.0
+
+                for (c in 0 until numClasses)
+                    total += sums[offset + c]
+
+                for (c in 0 until numClasses) {
+                    val probability = if (UtilityJava.eq(total, 0.0)) 0.0 else sums[offset + c] / total
+
+                    if (bytePlanes.size == numClasses)
+                        bytePlanes[c][from + position] = (probability * 0xff + 0.5).toInt().toByte()
+                    else
+                        shortPlanes[c][from + position] = (probability * 0xffff + 0.5).toInt().toShort()
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits numInstances into chunks of [BLOCK_SIZE] instances and processes them on the segmentation executor with
+     * a work-stealing [ChunkScheduler], reporting progress as chunks complete.
+     */
+    @Throws(InterruptedException::class, ExecutionException::class)
+    private fun forEachChunk(numInstances: Int, processChunk: (from: Int, to: Int) -> Unit) {
+        val onChunkDone = { done: Int, numChunks: Int -> onProgress(done, numChunks, "Segmented ${done * 100 / numChunks}%") }
 
         //TODO remove dependency on ImageSurfEnvironment and pass executors around
-        val e = ImageSurfEnvironment.getSegmentationExecutor()
+        ChunkScheduler(ImageSurfEnvironment.getSegmentationExecutor(numThreads), BLOCK_SIZE)
+                .forEachChunk(numInstances, onChunkDone, processChunk)
+    }
+
+    override fun classForBlock(data: FeatureReader, from: Int, to: Int, out: IntArray) {
+        classifyBlocks(data, from, to, out)
+    }
 
-        val batchSize = numInstances / numThreads
+    /**
+     * @return the number of tree evaluations skipped by [earlyExit]
+     */
+    private fun classifyBlocks(data: FeatureReader, from: Int, to: Int, out: IntArray): Long {
+        var skipped = 0L
+        val workspace = FlatTree.BlockWorkspace(min(BLOCK_SIZE, to - from), numClasses)
+
+        var blockStart = from
+        while (blockStart < to) {
+            val blockEnd = min(blockStart + BLOCK_SIZE, to)
+            skipped += classifyBlock(data, blockStart, blockEnd, workspace, out)
+            blockStart = blockEnd
+        }
+
+        return skipped
+    }
 
-        e.submit { (0 until numThreads).toList()
-            .stream()
-            .parallel()
-            .forEach { threadIndex ->
-                IntRange(batchSize * threadIndex, min(batchSize * threadIndex + batchSize, numInstances - 1)).forEach { index ->
-                    if (index % progressPoint == 0 || (index + 1) % batchSize == 0) {
-                        val currentProgress = progress.getAndIncrement()
-                        onProgress(currentProgress, 100, "Segmented $currentProgress%")
-                    }
+    /**
+     * @return the number of tree evaluations skipped by [earlyExit]
+     */
+    private fun classifyBlock(data: FeatureReader, from: Int, to: Int, workspace: FlatTree.BlockWorkspace, out: IntArray): Long {
+        val blockSize = to - from
+        val sums = workspace.sums
+        val positions = workspace.positions
+        var skipped = 0L
 
-                    val sums = DoubleArray(this@RandomForest.numClasses)
+        sums.fill(0.0, 0, blockSize * numClasses)
 
-                    for (i in 0 until this@RandomForest.numTrees) {
-                        val newProbs = trees[i]!!.distributionForInstance(data, instanceIndices[index])
-                        if (null != newProbs)
-                            for (j in newProbs.indices)
-                                sums[j] += newProbs[j]
-                    }
+        for (position in 0 until blockSize)
+            positions[position] = position
+
+        if (!earlyExit) {
+            addDistributions(data, 0, numTrees, from, positions, blockSize, workspace, sums)
+        } else {
+            var numUndecided = blockSize
 
-                    var maxClass = 0
+            addDistributions(data, 0, firstDecidableTree, from, positions, numUndecided, workspace, sums)
 
-                    for (c in 1 until sums.size)
-                        if (sums[c] > sums[maxClass])
-                            maxClass = c
+            for (t in firstDecidableTree until numTrees) {
+                val numChecked = numUndecided
+                numUndecided = 0
 
-                    classes[index] = maxClass
+                for (i in 0 until numChecked) {
+                    val position = positions[i]
+                    if (!isDecided(sums, position * numClasses, remainingVotes[t]))
+                        positions[numUndecided++] = position
                 }
+
+                skipped += (numChecked - numUndecided).toLong() * (numTrees - t)
+
+                if (numUndecided == 0)
+                    break
+
+                addDistributions(data, t, t + 1, from, positions, numUndecided, workspace, sums)
             }
-        }.get()
+        }
 
-        return classes
+        for (position in 0 until blockSize) {
+            val offset = position * numClasses
+            var maxClass = 0
+
+            for (c in 1 until numClasses)
+                if (sums[offset + c] > sums[offset + maxClass])
+                    maxClass = c
+
+            out[from + position] = maxClass
+        }
+
+        return skipped
     }
 
     companion object {
         internal const val serialVersionUID = 43L
+
+        /**
+         * The number of distinct instances from which a node builds its subtrees as parallel tasks.
+         */
+        internal const val DEFAULT_PARALLEL_THRESHOLD = 8192
+
+        /**
+         * Creates a forest from trees read from flat arrays. The thread count is left unset, as each caller applying the
+         * forest sets its own.
+         */
+        internal fun fromFlatTrees(minInstances: Int, numAttributes: Int, maxDepth: Int, numTrees: Int, numClasses: Int,
+                                   bagSizePercent: Double, quantisation: PixelType?,
+                                   splitCriterion: SplitCriterion, flatTrees: Array<FlatTree>): RandomForest =
+                RandomForest(
+                        minInstances = minInstances,
+                        numAttributes = numAttributes,
+                        randomSeed = 0,
+                        maxDepth = maxDepth,
+                        numTrees = numTrees,
+                        numClasses = numClasses,
+                        bagSizePercent = bagSizePercent,
+                        numThreads = 0,
+                        quantisation = quantisation,
+                        splitFinder = SplitFinder.DEFAULT,
+                        splitCriterion = splitCriterion
+                ).also {
+                    it.flatTrees = flatTrees
+                    it.prepareFlatTrees()
+                }
+
+        /**
+         * Number of instances pushed through each tree together by [classForBlock], and the chunk size used to
+         * schedule classification across threads.
+         */
+        private const val BLOCK_SIZE = 4096
+
+        /**
+         * Margin for rounding error in accumulated votes when deciding a class early.
+         */
+        private const val VOTE_TOLERANCE = 1e-9
     }
 }
 
@@ -18,10 +18,12 @@
 package imagesurf.classifier
 
 import imagesurf.feature.FeatureReader
+import imagesurf.reader.BinnedFeatureReader
 import imagesurf.util.UtilityKt
 import util.UtilityJava
 import java.io.Serializable
 import java.util.*
+import java.util.concurrent.ForkJoinTask
 
 class RandomTree(val randomForest: RandomForest) : Serializable {
 
@@ -71,12 +73,120 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
         return current.normalisedClassDistribution
     }
 
-    fun buildTree(data: FeatureReader, instanceIndices: IntArray, randomSeed: Long) {
+    /**
+     * Computes class distribution of an instance with the value of one attribute taken from another instance, as
+     * when that attribute's values are permuted.
+     *
+     * @return the computed class distribution
+     */
+    internal fun distributionForInstance(data: FeatureReader, instanceIndex: Int,
+                                         permutedAttribute: Int, permutedInstanceIndex: Int): DoubleArray? {
+
+        var current: RandomTree = this
+
+        while (current.splitAttribute > -1) {
+            val valueIndex = if (current.splitAttribute == permutedAttribute) permutedInstanceIndex else instanceIndex
+            val splitDirection = if (data.getValue(valueIndex, current.splitAttribute) < current.splitPoint)
+                SPLIT_LEFT
+            else
+                SPLIT_RIGHT
+
+            current = current.children[splitDirection]!!
+        }
+
+        return current.normalisedClassDistribution
+    }
+
+    /**
+     * Marks the attributes this subtree splits on.
+     */
+    internal fun markSplitAttributes(splitAttributes: BooleanArray) {
+        if (splitAttribute > -1) {
+            splitAttributes[splitAttribute] = true
+            children[SPLIT_LEFT]!!.markSplitAttributes(splitAttributes)
+            children[SPLIT_RIGHT]!!.markSplitAttributes(splitAttributes)
+        }
+    }
+
+    /**
+     * Counts the nodes in this subtree, including this node.
+     */
+    internal fun numNodes(): Int =
+            if (splitAttribute > -1)
+                1 + children[SPLIT_LEFT]!!.numNodes() + children[SPLIT_RIGHT]!!.numNodes()
+            else
+                1
+
+    /**
+     * Counts the leaves in this subtree that hold a class distribution.
+     */
+    internal fun numLeafDistributions(): Int =
+            if (splitAttribute > -1)
+                children[SPLIT_LEFT]!!.numLeafDistributions() + children[SPLIT_RIGHT]!!.numLeafDistributions()
+            else if (normalisedClassDistribution != null)
+                1
+            else
+                0
+
+    /**
+     * Writes this subtree into a flat tree in pre-order.
+     *
+     * @return the index of this node in the flat tree
+     */
+    internal fun flattenInto(flat: FlatTree, cursor: FlatTree.Cursor): Int {
+        val index = cursor.nextNode++
+
+        flat.splitAttributes[index] = splitAttribute
+
+        if (splitAttribute > -1) {
+            flat.splitPoints[index] = splitPoint
+            flat.leftChildren[index] = children[SPLIT_LEFT]!!.flattenInto(flat, cursor)
+            flat.rightChildren[index] = children[SPLIT_RIGHT]!!.flattenInto(flat, cursor)
+        } else {
+            normalisedClassDistribution?.let {
+                val offset = cursor.nextDistributionOffset
+                System.arraycopy(it, 0, flat.distributions, offset, it.size)
+                flat.distributionOffsets[index] = offset
+                cursor.nextDistributionOffset += flat.numClasses
+            }
+        }
+
+        return index
+    }
+
+    /**
+     * Reads the subtree rooted at node of a flat tree into this node.
+     */
+    private fun unflattenFrom(flat: FlatTree, node: Int) {
+        splitAttribute = flat.splitAttributes[node]
+
+        if (splitAttribute > -1) {
+            splitPoint = flat.splitPoints[node]
+            children[SPLIT_LEFT] = RandomTree(randomForest).also { it.unflattenFrom(flat, flat.leftChildren[node]) }
+            children[SPLIT_RIGHT] = RandomTree(randomForest).also { it.unflattenFrom(flat, flat.rightChildren[node]) }
+        } else {
+            val offset = flat.distributionOffsets[node]
+
+            if (offset >= 0) {
+                normalisedClassDistribution = flat.distributions.copyOfRange(offset, offset + flat.numClasses)
+                classDistribution = normalisedClassDistribution!!.clone()
+            }
+        }
+    }
+
+    /**
+     * Builds the tree from a bag of instances given as the number of times each instance was drawn. Each instance is
+     * visited once per node and weighted by its count.
+     *
+     * @param bagCounts the number of times each instance is in the bag, indexed by instance
+     */
+    fun buildTree(data: FeatureReader, bagCounts: IntArray, randomSeed: Long) {
+        val instanceIndices = bagIndices(bagCounts)
         val rand = Random(randomSeed)
 
         // Create the attribute indices windowF
         val attIndicesWindow = (0 until data.numFeatures)
-                .shuffled()
+                .shuffled(rand)
                 .filter { it != data.classIndex }
                 .take(randomForest.numAttributes)
                 .toIntArray()
@@ -84,27 +194,38 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
         // Compute initial class counts
         val classProbs = DoubleArray(randomForest.numClasses)
         for (i in instanceIndices) {
-            classProbs[data.getClassValue(i)] += data.getWeight(i)
+            classProbs[data.getClassValue(i)] += weight(data, bagCounts, i)
         }
 
-        buildTree(data, instanceIndices, classProbs, attIndicesWindow, rand, 0)
+        val sortedOrders = if (randomForest.splitFinder == SplitFinder.PRESORTED)
+            SortedOrders(data.numFeatures, instanceIndices.size, data.numInstances)
+        else
+            null
+
+        buildTree(data, instanceIndices, 0, instanceIndices.size, bagCounts, classProbs, attIndicesWindow, rand, 0,
+                sortedOrders)
     }
 
     /**
-     * Recursively builds a tree.
+     * Recursively builds a tree. The node's instances are partitioned in place into the ranges of its children.
      *
      * @param data             the data to work with
-     * @param classProbs       the class distribution
+     * @param instanceIndices  the distinct instances of the tree, holding this node's from (inclusive) to to
+     *                         (exclusive)
+     * @param bagCounts        the weight of each instance, indexed by instance
+     * @param classProbs       the class distribution, kept by this node
      * @param attIndicesWindow the attribute window to choose attributes from
      * @param random           random number generator for choosing random attributes
      * @param depth            the current depth
+     * @param sortedOrders     the sorted orders of the tree's instances, or null if each node sorts its own
      * @throws Exception if generation fails
      */
-    protected fun buildTree(data: FeatureReader, instanceIndices: IntArray, classProbs: DoubleArray,
-                            attIndicesWindow: IntArray, random: Random, depth: Int) {
+    private fun buildTree(data: FeatureReader, instanceIndices: IntArray, from: Int, to: Int, bagCounts: IntArray,
+                          classProbs: DoubleArray, attIndicesWindow: IntArray, random: Random, depth: Int,
+                          sortedOrders: SortedOrders?) {
 
         // Make leaf if there are no training instances
-        if (instanceIndices.size == 0) {
+        if (from == to) {
             splitAttribute = -1
             classDistribution = null
             normalisedClassDistribution = null
@@ -119,23 +240,21 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
                 || randomForest.maxDepth > 0 && depth >= randomForest.maxDepth) {
             // Make leaf
             splitAttribute = -1
-            classDistribution = classProbs.clone()
+            classDistribution = classProbs
             normalisedClassDistribution = classProbs.clone()
             UtilityJava.normalize(normalisedClassDistribution!!)
 
             return
         }
 
+        val workspace = TrainingWorkspace.forCurrentThread(randomForest.numClasses)
+
         // Compute class distributions and value of splitting
         // criterion for each attribute
         var `val` = -java.lang.Double.MAX_VALUE
         var split = -java.lang.Double.MAX_VALUE
-        var bestDists: Array<DoubleArray>? = null
         var bestIndex = 0
 
-        // Handles to get arrays out of distribution method
-        val dists = Array(1) { Array(0) { DoubleArray(0) } }
-
         // Investigate K random attributes
         var attIndex = 0
         var windowSize = attIndicesWindow.size
@@ -151,9 +270,14 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
             attIndicesWindow[windowSize - 1] = attIndex
             windowSize--
 
-            val currSplit = distribution(dists, attIndex, data, instanceIndices)
+            val currSplit = if (sortedOrders == null)
+                distribution(workspace, attIndex, data, instanceIndices, from, to, bagCounts)
+            else
+                sortedDistribution(workspace, attIndex, data,
+                        sortedOrders.sortedIndices(data, attIndex, instanceIndices, from, to, depth),
+                        from, to, bagCounts)
 
-            val currVal = gain(dists[0], priorVal(dists[0]))
+            val currVal = gain(workspace.attributeDist, priorVal(workspace.attributeDist))
 
             if (UtilityJava.gr(currVal, 0.0)) {
                 gainFound = true
@@ -163,7 +287,7 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
                 `val` = currVal
                 bestIndex = attIndex
                 split = currSplit
-                bestDists = dists[0]
+                workspace.keepAttributeDist()
             }
         }
 
@@ -175,145 +299,307 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
 
             // Build subtrees
             splitPoint = split
-            val subsets = splitData(data, instanceIndices)
-            children = arrayOfNulls(bestDists!!.size)
-
-            for (i in bestDists.indices) {
-                children!![i] = RandomTree(randomForest)
-                children!![i] = RandomTree(randomForest)
-                children!![i]!!.buildTree(data, subsets[i], bestDists[i], attIndicesWindow,
-                        random, depth + 1)
+            val middle = partition(workspace, data, instanceIndices, from, to)
+            val childRanges = intArrayOf(from, middle, to)
+
+            // The children keep their class distributions, so they are copied out of the workspace before it is
+            // reused by the subtrees
+            val childClassProbs = Array(N_SPLIT_DIRECTIONS) { workspace.bestDist[it].clone() }
+            children = arrayOfNulls(N_SPLIT_DIRECTIONS)
+
+            sortedOrders?.partition(workspace, instanceIndices, from, middle, to)
+
+            if (to - from >= randomForest.parallelThreshold) {
+                randomForest.numParallelNodes.incrementAndGet()
+
+                // Large nodes build their subtrees as separate tasks, each with its own random number generator,
+                // attribute window and path through the sorted orders, so the tree is the same however the tasks
+                // are scheduled
+                val tasks = SPLIT_DIRECTIONS.map { i ->
+                    val child = RandomTree(randomForest).also { children!![i] = it }
+                    val childRandom = Random(random.nextLong())
+                    val childWindow = attIndicesWindow.clone()
+                    val childSortedOrders = sortedOrders?.fork()
+
+                    ForkJoinTask.adapt {
+                        child.buildTree(data, instanceIndices, childRanges[i], childRanges[i + 1], bagCounts,
+                                childClassProbs[i], childWindow, childRandom, depth + 1, childSortedOrders)
+                    }
+                }
+
+                if (ForkJoinTask.inForkJoinPool())
+                    ForkJoinTask.invokeAll(tasks)
+                else
+                    tasks.forEach { it.invoke() }
+            } else {
+                for (i in SPLIT_DIRECTIONS) {
+                    children!![i] = RandomTree(randomForest)
+                    children!![i]!!.buildTree(data, instanceIndices, childRanges[i], childRanges[i + 1], bagCounts,
+                            childClassProbs[i], attIndicesWindow, random, depth + 1, sortedOrders)
+                }
             }
 
             // If all successors are non-empty, we don't need to store the class
             // distribution
             var emptySuccessor = false
-            for (i in subsets.indices) {
+            for (i in SPLIT_DIRECTIONS) {
                 if (children!![i]!!.classDistribution == null) {
                     emptySuccessor = true
                     break
                 }
             }
             if (emptySuccessor) {
-                classDistribution = classProbs.clone()
+                classDistribution = classProbs
             }
         } else {
 
             // Make leaf
             splitAttribute = -1
-            classDistribution = classProbs.clone()
+            classDistribution = classProbs
         }
 
         if (classDistribution != null) {
             normalisedClassDistribution = classProbs.clone()
             UtilityJava.normalize(normalisedClassDistribution!!)
         }
+
+        sortedOrders?.release(depth)
     }
 
     /**
-     * Splits instances into subsets based on the given split.
+     * Stably partitions a node's instances in place by the node's split, left then right.
      *
-     * @param data the data to work with
-     * @return the subsets of instances
-     * @throws Exception if something goes wrong
+     * @return the end of the left instances and start of the right instances
      */
-    protected fun splitData(data: FeatureReader, instanceIndices: IntArray): Array<IntArray> {
-        val subsetCounts = IntArray(N_SPLIT_DIRECTIONS)
-        val subsets = Array(N_SPLIT_DIRECTIONS) { IntArray(instanceIndices.size) }
+    private fun partition(workspace: TrainingWorkspace, data: FeatureReader, instanceIndices: IntArray,
+                          from: Int, to: Int): Int {
+        val right = workspace.partitionScratch(to - from)
+        var numLeft = from
+        var numRight = 0
 
-        for (i in instanceIndices) {
-            val splitDirection = if (data.getValue(i, splitAttribute) < splitPoint) SPLIT_LEFT else SPLIT_RIGHT
-            subsets[splitDirection][subsetCounts[splitDirection]++] = i
+        for (k in from until to) {
+            val i = instanceIndices[k]
+
+            if (data.getValue(i, splitAttribute) < splitPoint)
+                instanceIndices[numLeft++] = i
+            else
+                right[numRight++] = i
         }
 
-        for (splitDirection in SPLIT_DIRECTIONS)
-            subsets[splitDirection] = subsets[splitDirection].copyOf(subsetCounts[splitDirection])
+        System.arraycopy(right, 0, instanceIndices, numLeft, numRight)
 
-        return subsets
+        return numLeft
     }
 
     /**
-     * Computes class distribution for an attribute.
+     * Computes class distribution for an attribute, leaving the distribution at the best split point in
+     * [TrainingWorkspace.attributeDist].
      *
-     * @param dists
      * @param att   the attribute index
      * @param data  the data to work with
+     * @param instanceIndices holds the node's instances from (inclusive) to to (exclusive)
+     * @param bagCounts the weight of each instance, indexed by instance
      * @throws Exception if something goes wrong
      */
-    protected fun distribution(dists: Array<Array<DoubleArray>>,
-                               att: Int, data: FeatureReader, instanceIndices: IntArray): Double {
+    private fun distribution(workspace: TrainingWorkspace, att: Int, data: FeatureReader,
+                             instanceIndices: IntArray, from: Int, to: Int, bagCounts: IntArray): Double {
+
+        if (randomForest.splitFinder == SplitFinder.HISTOGRAM && data is BinnedFeatureReader)
+            return histogramDistribution(workspace, att, data, instanceIndices, from, to, bagCounts)
+
+        val sortedIndices = workspace.sortedIndices(to - from)
+        data.sortIndices(att, instanceIndices, from, to, sortedIndices, 0)
+
+        return sortedDistribution(workspace, att, data, sortedIndices, 0, to - from, bagCounts)
+    }
+
+    /**
+     * Computes class distribution for an attribute from instances already sorted by it, leaving the distribution at
+     * the best split point in [TrainingWorkspace.attributeDist].
+     *
+     * @param att           the attribute index
+     * @param data          the data to work with
+     * @param sortedIndices holds the instances sorted by the attribute from index from (inclusive) to to (exclusive)
+     * @param bagCounts     the weight of each instance, indexed by instance
+     */
+    private fun sortedDistribution(workspace: TrainingWorkspace, att: Int, data: FeatureReader,
+                                   sortedIndices: IntArray, from: Int, to: Int, bagCounts: IntArray): Double {
 
         var splitPoint = java.lang.Double.NaN
-        var dist: Array<DoubleArray> = Array(2) { DoubleArray(randomForest.numClasses) }.apply {
+        val dist = workspace.attributeDist
 
+        // For numeric attributes
+        val currDist = workspace.currDist
+        currDist[0].fill(0.0)
+        currDist[1].fill(0.0)
 
-            // For numeric attributes
-            val currDist = Array(2) { DoubleArray(randomForest.numClasses) }
+        // Move all instances into second subset
+        for (k in from until to) {
+            val j = sortedIndices[k]
+            currDist[1][data.getClassValue(j)] += weight(data, bagCounts, j)
+        }
 
-            val sortedIndices = data.getSortedIndices(att, instanceIndices)
+        // Value before splitting
+        val priorVal = priorVal(currDist)
+        val gini = workspace.giniSums(randomForest.splitCriterion, currDist)
 
-            // Move all instances into second subset
-            for (j in sortedIndices) {
-                currDist[1][data.getClassValue(j)] += data.getWeight(j)
-            }
+        // Save initial distribution
+        for (j in currDist.indices) {
+            System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].size)
+        }
+
+        // Try all possible split points
+        var currSplit = data.getValue(sortedIndices[from], att)
+        var currVal: Double
+        var bestVal = -java.lang.Double.MAX_VALUE
+        for (k in from until to) {
+            val i = sortedIndices[k]
+            val attVal = data.getValue(i, att)
+
+            // Can we place a sensible split point here?
+            if (attVal > currSplit) {
+
+                // Compute gain for split point
+                currVal = gini?.gain(priorVal) ?: gain(currDist, priorVal)
+
+                // Is the current split point the best point so far?
+                if (currVal > bestVal) {
+
+                    // Store value of current point
+                    bestVal = currVal
 
-            // Value before splitting
-            val priorVal = priorVal(currDist)
+                    // Save split point
+                    splitPoint = (attVal + currSplit) / 2.0
 
-            // Save initial distribution
-            for (j in currDist.indices) {
-                System.arraycopy(currDist[j], 0, this[j], 0, this[j].size)
+                    // Check for numeric precision problems
+                    if (splitPoint <= currSplit) {
+                        splitPoint = attVal
+                    }
+
+                    // Save distribution
+                    for (j in currDist.indices) {
+                        System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].size)
+                    }
+                }
+
+                // Update value
+                currSplit = attVal
             }
 
-            // Try all possible split points
-            var currSplit = data.getValue(sortedIndices[0], att)
-            var currVal: Double
-            var bestVal = -java.lang.Double.MAX_VALUE
-            for (i in sortedIndices) {
-                val attVal = data.getValue(i, att)
+            // Shift over the weight
+            val classVal = data.getClassValue(i)
+            val weight = weight(data, bagCounts, i)
+            gini?.shift(currDist, classVal, weight)
+            currDist[0][classVal] += weight
+            currDist[1][classVal] -= weight
+        }
 
-                // Can we place a sensible split point here?
-                if (attVal > currSplit) {
+        // Return split point
+        return splitPoint
+    }
 
-                    // Compute gain for split point
-                    currVal = gain(currDist, priorVal)
+    /**
+     * Computes class distribution for an attribute from per-bin class counts, scanning the bins in order instead of
+     * sorting the instances. A split is tried at each boundary between non-empty bins, halfway between the largest
+     * value of the lower bin and the smallest value of the upper bin, so the split points and distributions match
+     * [distribution] when each bin holds a single value.
+     *
+     * @param att   the attribute index
+     * @param data  the data to work with
+     * @param instanceIndices holds the node's instances from (inclusive) to to (exclusive)
+     * @param bagCounts the weight of each instance, indexed by instance
+     */
+    private fun histogramDistribution(workspace: TrainingWorkspace, att: Int, data: BinnedFeatureReader,
+                                      instanceIndices: IntArray, from: Int, to: Int, bagCounts: IntArray): Double {
+
+        val numClasses = randomForest.numClasses
+        val numBins = data.numBins
+        val binCounts = workspace.binCounts(numBins, numClasses)
+        val binMin = workspace.binMin(numBins)
+        val binMax = workspace.binMax(numBins)
+
+        // Move all instances into second subset, counting them by bin
+        val currDist = workspace.currDist
+        currDist[0].fill(0.0)
+        currDist[1].fill(0.0)
+
+        for (k in from until to) {
+            val i = instanceIndices[k]
+            val bin = data.getBin(i, att)
+            val attVal = data.getValue(i, att)
+            val classVal = data.getClassValue(i)
+            val weight = weight(data, bagCounts, i)
+
+            binCounts[bin * numClasses + classVal] += weight
+            currDist[1][classVal] += weight
+
+            if (attVal < binMin[bin])
+                binMin[bin] = attVal
+            if (attVal > binMax[bin])
+                binMax[bin] = attVal
+        }
 
-                    // Is the current split point the best point so far?
-                    if (currVal > bestVal) {
+        // Value before splitting
+        val priorVal = priorVal(currDist)
+        val gini = workspace.giniSums(randomForest.splitCriterion, currDist)
 
-                        // Store value of current point
-                        bestVal = currVal
+        // Save initial distribution
+        val dist = workspace.attributeDist
+        for (j in currDist.indices) {
+            System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].size)
+        }
 
-                        // Save split point
-                        splitPoint = (attVal + currSplit) / 2.0
+        var splitPoint = java.lang.Double.NaN
+        var bestVal = -java.lang.Double.MAX_VALUE
+        var currSplit = java.lang.Double.NaN
 
-                        // Check for numeric precision problems
-                        if (splitPoint <= currSplit) {
-                            splitPoint = attVal
-                        }
+        for (bin in 0 until numBins) {
+            // Skip empty bins
+            if (binMin[bin] > binMax[bin])
+                continue
 
-                        // Save distribution
-                        for (j in currDist.indices) {
-                            System.arraycopy(currDist[j], 0, this!![j], 0, this!![j].size)
-                        }
+            val attVal = binMin[bin]
+
+            // Every bin after the first non-empty one is a sensible split point
+            if (!currSplit.isNaN()) {
+                val currVal = gini?.gain(priorVal) ?: gain(currDist, priorVal)
+
+                if (currVal > bestVal) {
+                    bestVal = currVal
+
+                    splitPoint = (attVal + currSplit) / 2.0
+
+                    // Check for numeric precision problems
+                    if (splitPoint <= currSplit) {
+                        splitPoint = attVal
                     }
 
-                    // Update value
-                    currSplit = attVal
+                    for (j in currDist.indices) {
+                        System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].size)
+                    }
                 }
+            }
 
-                // Shift over the weight
-                val classVal = data.getClassValue(i)
-                currDist[0][classVal] += data.getWeight(i)
-                currDist[1][classVal] -= data.getWeight(i)
+            currSplit = binMax[bin]
+
+            // Shift over the bin's weight
+            val offset = bin * numClasses
+            for (c in 0 until numClasses) {
+                gini?.shift(currDist, c, binCounts[offset + c])
+                currDist[0][c] += binCounts[offset + c]
+                currDist[1][c] -= binCounts[offset + c]
             }
         }
 
-        // Return distribution and split point
-        dists[0] = dist
         return splitPoint
     }
 
+    /**
+     * The weight of an instance: its weight in the data times the number of times it is in the bag.
+     */
+    private fun weight(data: FeatureReader, bagCounts: IntArray, instanceIndex: Int): Double =
+            bagCounts[instanceIndex] * data.getWeight(instanceIndex)
+
     /**
      * Computes value of splitting criterion before split.
      *
@@ -322,7 +608,7 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
      */
     protected fun priorVal(dist: Array<DoubleArray>): Double {
 
-        return UtilityJava.entropyOverColumns(dist)
+        return randomForest.splitCriterion.priorVal(dist)
     }
 
     /**
@@ -334,15 +620,120 @@ class RandomTree(val randomForest: RandomForest) : Serializable {
      */
     protected fun gain(dist: Array<DoubleArray>, priorVal: Double): Double {
 
-        return priorVal - UtilityJava.entropyConditionedOnRows(dist)
+        return randomForest.splitCriterion.gain(dist, priorVal)
+    }
+
+    /**
+     * The tree's instances sorted by each attribute, for [SplitFinder.PRESORTED]. Each attribute has one array over
+     * the whole bag in which every node owns a contiguous range. An attribute is sorted for a node's range the first
+     * time it is evaluated on the path from the root; splits then stably partition every sorted attribute into the
+     * children's ranges, so descendants read their sorted instances without sorting again.
+     *
+     * Subtrees built in parallel each [fork] their own path; the orders are shared, as sibling subtrees only touch
+     * their own ranges.
+     */
+    private class SortedOrders private constructor(
+            private val orders: Array<IntArray?>,
+            private val bagSize: Int,
+            private val goesLeft: BooleanArray,
+            /**
+             * The depth of the node that sorted each attribute for the current path, or [UNSORTED].
+             */
+            private val sortedAtDepth: IntArray
+    ) {
+        constructor(numFeatures: Int, bagSize: Int, numInstances: Int) : this(arrayOfNulls(numFeatures), bagSize,
+                BooleanArray(numInstances), IntArray(numFeatures) { UNSORTED })
+
+        /**
+         * A path for a subtree, starting from the attributes sorted on this path.
+         */
+        fun fork(): SortedOrders = SortedOrders(orders, bagSize, goesLeft, sortedAtDepth.clone())
+
+        /**
+         * Gets the order of an attribute, sorting the node's range from (inclusive) to to (exclusive) first if no
+         * ancestor has. The range of each order is the node's range in the tree's instances.
+         */
+        fun sortedIndices(data: FeatureReader, att: Int, instanceIndices: IntArray, from: Int, to: Int, depth: Int): IntArray {
+            val order = synchronized(orders) { orders[att] ?: IntArray(bagSize).also { orders[att] = it } }
+
+            if (sortedAtDepth[att] == UNSORTED) {
+                data.sortIndices(att, instanceIndices, from, to, order, from)
+                sortedAtDepth[att] = depth
+            }
+
+            return order
+        }
+
+        /**
+         * Stably partitions the node's range of every sorted attribute into its left then right child, as the node's
+         * instances were partitioned into from until middle and middle until to.
+         */
+        fun partition(workspace: TrainingWorkspace, instanceIndices: IntArray, from: Int, middle: Int, to: Int) {
+            for (k in from until to)
+                goesLeft[instanceIndices[k]] = k < middle
+
+            val rightScratch = workspace.partitionScratch(to - from)
+
+            for (att in orders.indices) {
+                if (sortedAtDepth[att] == UNSORTED)
+                    continue
+
+                val order = orders[att]!!
+                var numLeft = from
+                var numRight = 0
+
+                for (k in from until to) {
+                    val i = order[k]
+                    if (goesLeft[i])
+                        order[numLeft++] = i
+                    else
+                        rightScratch[numRight++] = i
+                }
+
+                System.arraycopy(rightScratch, 0, order, numLeft, numRight)
+            }
+        }
+
+        /**
+         * Forgets the attributes sorted by a node once its subtree is built, as its siblings' ranges were not sorted.
+         */
+        fun release(depth: Int) {
+            for (att in sortedAtDepth.indices)
+                if (sortedAtDepth[att] == depth)
+                    sortedAtDepth[att] = UNSORTED
+        }
+
+        companion object {
+            private const val UNSORTED = -1
+        }
     }
 
     companion object {
         internal const val serialVersionUID = 42L
 
+        /**
+         * The instances with a non-zero bag count, in ascending order.
+         */
+        private fun bagIndices(bagCounts: IntArray): IntArray {
+            val indices = IntArray(bagCounts.count { it > 0 })
+            var next = 0
+
+            for (i in bagCounts.indices)
+                if (bagCounts[i] > 0)
+                    indices[next++] = i
+
+            return indices
+        }
+
         private val SPLIT_LEFT = 0
         private val SPLIT_RIGHT = 1
         private val N_SPLIT_DIRECTIONS = 2
         private val SPLIT_DIRECTIONS = intArrayOf(SPLIT_LEFT, SPLIT_RIGHT)
+
+        /**
+         * Rebuilds the node objects of a flattened tree.
+         */
+        internal fun unflatten(randomForest: RandomForest, flat: FlatTree): RandomTree =
+                RandomTree(randomForest).also { it.unflattenFrom(flat, 0) }
     }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+import util.UtilityJava
+
+/**
+ * How [RandomTree] scores candidate splits while training. Both criteria give the reduction in impurity per instance,
+ * so a split is only made when its gain is positive.
+ */
+enum class SplitCriterion(val description: String) {
+    /**
+     * Information gain: the reduction in class entropy.
+     */
+    ENTROPY("Entropy") {
+        override fun priorVal(dist: Array<DoubleArray>): Double = UtilityJava.entropyOverColumns(dist)
+
+        override fun gain(dist: Array<DoubleArray>, priorVal: Double): Double =
+                priorVal - UtilityJava.entropyConditionedOnRows(dist)
+    },
+
+    /**
+     * The reduction in Gini impurity. Scored from sums of squared class counts, which are updated incrementally as
+     * instances cross the split point, so scanning an attribute takes no logarithms and divides only once per
+     * candidate split.
+     */
+    GINI("Gini") {
+        override fun priorVal(dist: Array<DoubleArray>): Double {
+            var squares = 0.0
+            var total = 0.0
+
+            for (c in dist[0].indices) {
+                val count = dist[0][c] + dist[1][c]
+                squares += count * count
+                total += count
+            }
+
+            return if (total > 0) squares / total else 0.0
+        }
+
+        override fun gain(dist: Array<DoubleArray>, priorVal: Double): Double {
+            var leftSquares = 0.0
+            var leftTotal = 0.0
+            var rightSquares = 0.0
+            var rightTotal = 0.0
+
+            for (c in dist[0].indices) {
+                leftSquares += dist[0][c] * dist[0][c]
+                leftTotal += dist[0][c]
+                rightSquares += dist[1][c] * dist[1][c]
+                rightTotal += dist[1][c]
+            }
+
+            return giniGain(leftSquares, leftTotal, rightSquares, rightTotal, priorVal)
+        }
+    };
+
+    /**
+     * The criterion's value for the instances of a node before it is split.
+     *
+     * @param dist class counts either side of a split, indexed by side then class
+     */
+    internal abstract fun priorVal(dist: Array<DoubleArray>): Double
+
+    /**
+     * The gain of splitting a node's instances as in dist.
+     *
+     * @param dist     class counts either side of the split, indexed by side then class
+     * @param priorVal the criterion's value before splitting, from [priorVal]
+     */
+    internal abstract fun gain(dist: Array<DoubleArray>, priorVal: Double): Double
+
+    companion object {
+        @JvmStatic
+        fun fromDescription(description: String?): SplitCriterion =
+                values().firstOrNull { it.description == description } ?: ENTROPY
+
+        /**
+         * The reduction in Gini impurity per instance from the sums of squared class counts and total counts either
+         * side of a split. Gini impurity weighted by count is total - squares / total on each side, so the reduction
+         * is the sum of squares / total over both sides less its value before splitting.
+         */
+        internal fun giniGain(leftSquares: Double, leftTotal: Double, rightSquares: Double, rightTotal: Double,
+                              priorVal: Double): Double {
+            val total = leftTotal + rightTotal
+
+            if (total <= 0)
+                return 0.0
+
+            val left = if (leftTotal > 0) leftSquares / leftTotal else 0.0
+            val right = if (rightTotal > 0) rightSquares / rightTotal else 0.0
+
+            return (left + right - priorVal) / total
+        }
+    }
+}
+
+/**
+ * Sums of squared class counts and total counts either side of the split point being tried, updated as each instance
+ * or bin crosses it so that [SplitCriterion.GINI] scores each candidate in constant time.
+ */
+internal class GiniSums {
+    private var leftSquares = 0.0
+    private var leftTotal = 0.0
+    private var rightSquares = 0.0
+    private var rightTotal = 0.0
+
+    /**
+     * Sets the sums for class counts either side of a split, indexed by side then class.
+     */
+    fun reset(dist: Array<DoubleArray>) {
+        leftSquares = 0.0
+        leftTotal = 0.0
+        rightSquares = 0.0
+        rightTotal = 0.0
+
+        for (c in dist[0].indices) {
+            leftSquares += dist[0][c] * dist[0][c]
+            leftTotal += dist[0][c]
+            rightSquares += dist[1][c] * dist[1][c]
+            rightTotal += dist[1][c]
+        }
+    }
+
+    fun gain(priorVal: Double): Double =
+            SplitCriterion.giniGain(leftSquares, leftTotal, rightSquares, rightTotal, priorVal)
+
+    /**
+     * Accounts for weight of a class moving from the right of the split to the left, before dist is updated.
+     */
+    fun shift(dist: Array<DoubleArray>, classVal: Int, weight: Double) {
+        leftSquares += weight * (2 * dist[0][classVal] + weight)
+        rightSquares -= weight * (2 * dist[1][classVal] - weight)
+        leftTotal += weight
+        rightTotal -= weight
+    }
+}
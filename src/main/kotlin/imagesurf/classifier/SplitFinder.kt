@@ -0,0 +1,54 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+/**
+ * How [RandomTree] finds the best split point of an attribute while training.
+ */
+enum class SplitFinder(val description: String) {
+    /**
+     * Sort the node's instances by the attribute and try a split between each pair of distinct values.
+     */
+    SORTED("Sorted"),
+
+    /**
+     * Count classes per value bin of a [imagesurf.reader.BinnedFeatureReader] and try a split at each bin boundary.
+     * Each bin of the 8 and 16-bit readers holds a single value, so splits are identical to [SORTED]. Falls back to
+     * [SORTED] for other readers.
+     */
+    HISTOGRAM("Histogram"),
+
+    /**
+     * As [SORTED], but each attribute is sorted once for a node and its descendants get their sorted instances by
+     * partitioning the node's order. Splits are identical to [SORTED]; uses one int per bagged instance and attribute
+     * for each tree being built.
+     */
+    PRESORTED("Presorted");
+
+    companion object {
+        /**
+         * The split finder used unless another is chosen, by [RandomForest.Builder] and the training settings.
+         */
+        @JvmField
+        val DEFAULT = HISTOGRAM
+
+        @JvmStatic
+        fun fromDescription(description: String?): SplitFinder =
+                values().firstOrNull { it.description == description } ?: DEFAULT
+    }
+}
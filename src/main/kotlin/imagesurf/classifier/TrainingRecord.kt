@@ -0,0 +1,69 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+import java.io.Serializable
+
+/**
+ * One round of training in the lineage of an [ImageSurfClassifier]. With the same training images and settings, and
+ * the classifier identified by [parentFingerprint] for a retrained forest, the round can be repeated exactly.
+ */
+class TrainingRecord(
+        /**
+         * The seed the forest was trained with.
+         */
+        val randomSeed: Int,
+        val numExamples: Int,
+        val numTrees: Int,
+        /**
+         * The number of trees kept from the parent forest with their leaves refitted, or 0 if every tree was trained.
+         */
+        val numRetainedTrees: Int,
+        /**
+         * The [RandomForest.fingerprint] of the forest retrained from, or 0 if the forest was trained from scratch.
+         */
+        val parentFingerprint: Long,
+        /**
+         * The [RandomForest.fingerprint] of the forest trained in this round.
+         */
+        val fingerprint: Long,
+        val timestamp: Long
+) : Serializable {
+
+    val retrained: Boolean
+        get() = parentFingerprint != 0L
+
+    companion object {
+        internal const val serialVersionUID = 1L
+
+        /**
+         * Records the training of a forest, from a parent forest if it was retrained.
+         */
+        @JvmStatic
+        fun of(randomForest: RandomForest, numExamples: Int, parent: RandomForest?): TrainingRecord =
+                TrainingRecord(
+                        randomSeed = randomForest.randomSeed,
+                        numExamples = numExamples,
+                        numTrees = randomForest.numTrees,
+                        numRetainedTrees = randomForest.numRetainedTrees,
+                        parentFingerprint = parent?.fingerprint() ?: 0L,
+                        fingerprint = randomForest.fingerprint(),
+                        timestamp = System.currentTimeMillis()
+                )
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *     This file is part of ImageSURF.
+ *
+ *     ImageSURF is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     ImageSURF is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with ImageSURF.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package imagesurf.classifier
+
+/**
+ * Scratch buffers for building [RandomTree]s, kept per thread so that finding and applying splits allocates nothing
+ * but the nodes themselves. Buffers grow to the largest size requested and are reused by every tree the thread
+ * builds.
+ *
+ * Buffers only hold data while a single node is being split. Nothing is kept while child subtrees are built, so a
+ * thread waiting for subtrees built in parallel can safely build other subtrees with the same workspace.
+ */
+internal class TrainingWorkspace private constructor() {
+
+    /**
+     * Class weights below and above the split point being tried.
+     */
+    var currDist: Array<DoubleArray> = emptyDist()
+        private set
+
+    /**
+     * Class weights either side of the best split point of the attribute last evaluated.
+     */
+    var attributeDist: Array<DoubleArray> = emptyDist()
+        private set
+
+    /**
+     * Class weights either side of the best split found so far at the node.
+     */
+    var bestDist: Array<DoubleArray> = emptyDist()
+        private set
+
+    private val giniSums = GiniSums()
+
+    private var sortedIndices = IntArray(0)
+    private var partitionScratch = IntArray(0)
+    private var binCounts = DoubleArray(0)
+    private var binMin = DoubleArray(0)
+    private var binMax = DoubleArray(0)
+
+    /**
+     * Keeps [attributeDist] as the best split so far, reusing the previous best's arrays for the next attribute.
+     */
+    fun keepAttributeDist() {
+        val previousBest = bestDist
+        bestDist = attributeDist
+        attributeDist = previousBest
+    }
+
+    /**
+     * Gini sums set from a distribution if the criterion is [SplitCriterion.GINI], otherwise null.
+     */
+    fun giniSums(criterion: SplitCriterion, dist: Array<DoubleArray>): GiniSums? =
+            if (criterion == SplitCriterion.GINI) giniSums.also { it.reset(dist) } else null
+
+    /**
+     * A buffer of at least size instance indices for sorting a node's instances.
+     */
+    fun sortedIndices(size: Int): IntArray =
+            if (sortedIndices.size >= size) sortedIndices else IntArray(size).also { sortedIndices = it }
+
+    /**
+     * A buffer of at least size instance indices for partitioning a node's instances.
+     */
+    fun partitionScratch(size: Int): IntArray =
+            if (partitionScratch.size >= size) partitionScratch else IntArray(size).also { partitionScratch = it }
+
+    /**
+     * Zeroed per-bin class weights for numBins bins of numClasses classes.
+     */
+    fun binCounts(numBins: Int, numClasses: Int): DoubleArray {
+        val size = numBins * numClasses
+
+        if (binCounts.size < size)
+            binCounts = DoubleArray(size)
+        else
+            binCounts.fill(0.0, 0, size)
+
+        return binCounts
+    }
+
+    /**
+     * Per-bin smallest values, each set to positive infinity.
+     */
+    fun binMin(numBins: Int): DoubleArray {
+        if (binMin.size < numBins)
+            binMin = DoubleArray(numBins)
+
+        return binMin.also { it.fill(java.lang.Double.POSITIVE_INFINITY, 0, numBins) }
+    }
+
+    /**
+     * Per-bin largest values, each set to negative infinity.
+     */
+    fun binMax(numBins: Int): DoubleArray {
+        if (binMax.size < numBins)
+            binMax = DoubleArray(numBins)
+
+        return binMax.also { it.fill(java.lang.Double.NEGATIVE_INFINITY, 0, numBins) }
+    }
+
+    private fun prepare(numClasses: Int) {
+        if (currDist[0].size == numClasses)
+            return
+
+        currDist = Array(2) { DoubleArray(numClasses) }
+        attributeDist = Array(2) { DoubleArray(numClasses) }
+        bestDist = Array(2) { DoubleArray(numClasses) }
+    }
+
+    companion object {
+        private val workspaces = ThreadLocal.withInitial { TrainingWorkspace() }
+
+        private fun emptyDist(): Array<DoubleArray> = Array(2) { DoubleArray(0) }
+
+        /**
+         * The calling thread's workspace, with distributions sized for numClasses classes.
+         */
+        fun forCurrentThread(numClasses: Int): TrainingWorkspace =
+                workspaces.get().also { it.prepare(numClasses) }
+    }
+}
@@ -0,0 +1,18 @@
+package imagesurf.feature.importance
+
+import imagesurf.classifier.Classifier
+import imagesurf.classifier.RandomForest
+import imagesurf.feature.FeatureReader
+
+/**
+ * Reads the out-of-bag permutation importance that a [RandomForest] estimated while it was built, so no further
+ * classification passes are needed. The forest must have been built from the reader with
+ * [RandomForest.Builder.withOutOfBagEstimates] and importance enabled; instanceIndices are ignored, as importance
+ * was estimated on the out-of-bag instances of each tree.
+ */
+class OutOfBagFeatureImportanceCalculator : FeatureImportanceCalculator {
+
+    override fun calculateFeatureImportance(classifier: Classifier, reader: FeatureReader, instanceIndices: IntArray): DoubleArray =
+            (classifier as? RandomForest)?.outOfBagEstimate?.featureImportance
+                    ?: throw IllegalArgumentException("Classifier was not built with out-of-bag feature importance")
+}
@@ -0,0 +1,274 @@
+package imagesurf.feature.importance
+
+import imagesurf.classifier.FlatTree
+import imagesurf.classifier.RandomForest
+import imagesurf.feature.FeatureReader
+import imagesurf.util.ChunkScheduler
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.RecursiveTask
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+
+/**
+ * Classifies instances as if one attribute's values were permuted, re-evaluating only what the permutation can
+ * change.
+ *
+ * The forest's summed votes for each instance are computed once. For a permuted attribute only the trees that split
+ * on it are revisited, and each walk stops as soon as it reaches a subtree with no such split, as the instance then
+ * reaches the same leaf as before. Where an instance reaches a different leaf, that tree's old vote is replaced with
+ * the new one. If the two leading classes are then too close for the adjusted sums to be trusted, the instance is
+ * summed again over every tree in order, so classes are identical to classifying the permuted data with
+ * [RandomForest.classForInstances].
+ */
+internal class PermutedForestClassifier(
+        randomForest: RandomForest,
+        private val reader: FeatureReader,
+        private val instanceIndices: IntArray,
+        private val pool: ForkJoinPool
+) {
+    private val trees: Array<FlatTree> = randomForest.getFlatTrees()
+    private val numClasses = randomForest.numClasses
+    private val numInstances = instanceIndices.size
+
+    private val numChunks = (numInstances + CHUNK_SIZE - 1) / CHUNK_SIZE
+
+    private val sums = DoubleArray(numInstances * numClasses)
+    private val classes = IntArray(numInstances)
+    private val baseErrors: Int
+
+    init {
+        ChunkScheduler(pool, CHUNK_SIZE).forEachChunk(numInstances, null) { from, to ->
+            for (k in from until to) {
+                val offset = k * numClasses
+                for (tree in trees)
+                    addVote(tree, tree.leafFor(reader, instanceIndices[k]), sums, offset)
+
+                classes[k] = maxClass(sums, offset)
+            }
+        }
+
+        baseErrors = instanceIndices.indices.count { classes[it] != reader.getClassValue(instanceIndices[it]) }
+    }
+
+    /**
+     * The number of instances misclassified with each attribute's values permuted. A fork-join task is scheduled for
+     * every attribute and, within it, for every chunk of instances, so idle workers steal chunks of other attributes
+     * rather than waiting for one attribute to finish. If the calling thread is interrupted while waiting, tasks that
+     * have not started are skipped and an [InterruptedException] is thrown.
+     *
+     * @param permutation creates the permutation of an attribute, where an instance's value is read from
+     * permutation[instanceIndex]; called once for each attribute, possibly concurrently
+     * @param onAttributeDone called after each attribute with the number of attributes completed and the number of
+     * attributes
+     */
+    @Throws(InterruptedException::class, ExecutionException::class)
+    fun errorsWithPermuted(attributes: IntArray, permutation: (attribute: Int) -> IntArray,
+                           onAttributeDone: ((attributesDone: Int, numAttributes: Int) -> Unit)?): IntArray {
+        val run = Run(attributes, permutation, onAttributeDone)
+        val task = pool.submit(run.AttributesTask())
+
+        try {
+            task.get()
+        } catch (e: InterruptedException) {
+            run.cancelled.set(true)
+            task.cancel(true)
+            throw e
+        }
+
+        return run.errors
+    }
+
+    private inner class Run(
+            val attributes: IntArray,
+            val permutation: (Int) -> IntArray,
+            val onAttributeDone: ((Int, Int) -> Unit)?
+    ) {
+        val errors = IntArray(attributes.size)
+        val cancelled = AtomicBoolean(false)
+        val attributesDone = AtomicInteger(0)
+
+        inner class AttributesTask : RecursiveAction() {
+            override fun compute() {
+                invokeAll(attributes.indices.map { AttributeTask(it) })
+            }
+        }
+
+        inner class AttributeTask(private val index: Int) : RecursiveAction() {
+            override fun compute() {
+                if (cancelled.get())
+                    return
+
+                val attribute = attributes[index]
+                val treesSplitting = trees.indices
+                        .map { it to trees[it].splitsBelow(attribute) }
+                        .filter { (_, splitsBelow) -> splitsBelow[0] }
+
+                errors[index] = if (treesSplitting.isEmpty())
+                    baseErrors
+                else
+                    ChunkTask(Permuted(attribute, permutation(attribute), treesSplitting), 0, numChunks).invoke()
+
+                onAttributeDone?.invoke(attributesDone.incrementAndGet(), attributes.size)
+            }
+        }
+
+        /**
+         * Counts the errors in a range of chunks, splitting it in half until a single chunk is left.
+         */
+        inner class ChunkTask(private val permuted: Permuted, private val firstChunk: Int, private val endChunk: Int) : RecursiveTask<Int>() {
+            override fun compute(): Int {
+                if (endChunk - firstChunk > 1) {
+                    val middle = (firstChunk + endChunk) ushr 1
+                    val right = ChunkTask(permuted, middle, endChunk).fork()
+                    return ChunkTask(permuted, firstChunk, middle).compute() + right.join()
+                }
+
+                if (cancelled.get())
+                    return 0
+
+                val from = firstChunk * CHUNK_SIZE
+                return permuted.countErrors(from, min(from + CHUNK_SIZE, numInstances))
+            }
+        }
+    }
+
+    /**
+     * An attribute, its permutation and the trees that split on it.
+     */
+    private inner class Permuted(
+            val attribute: Int,
+            val permutation: IntArray,
+            val treesSplitting: List<Pair<Int, BooleanArray>>
+    ) {
+        fun countErrors(from: Int, to: Int): Int {
+            val adjusted = DoubleArray(numClasses)
+            var errors = 0
+
+            for (k in from until to) {
+                val instanceIndex = instanceIndices[k]
+                val permutedClass = classWithPermuted(k, instanceIndex, permutation[instanceIndex], adjusted)
+
+                if (permutedClass != reader.getClassValue(instanceIndex))
+                    errors++
+            }
+
+            return errors
+        }
+
+        private fun classWithPermuted(k: Int, instanceIndex: Int, permutedIndex: Int, adjusted: DoubleArray): Int {
+            val offset = k * numClasses
+            var changed = false
+
+            System.arraycopy(sums, offset, adjusted, 0, numClasses)
+
+            for ((t, splitsBelow) in treesSplitting) {
+                val tree = trees[t]
+                val node = firstSplitOn(tree, splitsBelow, attribute, instanceIndex)
+
+                if (node < 0)
+                    continue
+
+                val leaf = tree.leafFor(reader, instanceIndex, node, NO_ATTRIBUTE, instanceIndex)
+                val permutedLeaf = tree.leafFor(reader, instanceIndex, node, attribute, permutedIndex)
+
+                if (leaf != permutedLeaf) {
+                    removeVote(tree, leaf, adjusted)
+                    addVote(tree, permutedLeaf, adjusted, 0)
+                    changed = true
+                }
+            }
+
+            if (!changed)
+                return classes[k]
+
+            if (isClose(adjusted)) {
+                adjusted.fill(0.0)
+                for (tree in trees)
+                    addVote(tree, tree.leafFor(reader, instanceIndex, 0, attribute, permutedIndex), adjusted, 0)
+            }
+
+            return maxClass(adjusted, 0)
+        }
+    }
+
+    /**
+     * Follows an instance down a tree until it reaches a node splitting on attribute.
+     *
+     * @return the node, or -1 if the instance's path leaves every subtree that splits on attribute first
+     */
+    private fun firstSplitOn(tree: FlatTree, splitsBelow: BooleanArray, attribute: Int, instanceIndex: Int): Int {
+        var node = 0
+
+        while (splitsBelow[node]) {
+            val splitAttribute = tree.splitAttributes[node]
+
+            if (splitAttribute == attribute)
+                return node
+
+            node = if (reader.getValue(instanceIndex, splitAttribute) < tree.splitPoints[node])
+                tree.leftChildren[node]
+            else
+                tree.rightChildren[node]
+        }
+
+        return -1
+    }
+
+    private fun addVote(tree: FlatTree, leaf: Int, sums: DoubleArray, sumsOffset: Int) {
+        val offset = tree.distributionOffsets[leaf]
+
+        if (offset >= 0)
+            for (c in 0 until numClasses)
+                sums[sumsOffset + c] += tree.distributions[offset + c]
+    }
+
+    private fun removeVote(tree: FlatTree, leaf: Int, sums: DoubleArray) {
+        val offset = tree.distributionOffsets[leaf]
+
+        if (offset >= 0)
+            for (c in 0 until numClasses)
+                sums[c] -= tree.distributions[offset + c]
+    }
+
+    private fun maxClass(sums: DoubleArray, offset: Int): Int {
+        var maxClass = 0
+
+        for (c in 1 until numClasses)
+            if (sums[offset + c] > sums[offset + maxClass])
+                maxClass = c
+
+        return maxClass
+    }
+
+    /**
+     * Whether the two leading classes are within rounding error of each other.
+     */
+    private fun isClose(sums: DoubleArray): Boolean {
+        var first = java.lang.Double.NEGATIVE_INFINITY
+        var second = java.lang.Double.NEGATIVE_INFINITY
+
+        for (sum in sums) {
+            if (sum > first) {
+                second = first
+                first = sum
+            } else if (sum > second) {
+                second = sum
+            }
+        }
+
+        return first - second <= TOLERANCE
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 4096
+        private const val NO_ATTRIBUTE = -1
+
+        /**
+         * Margin for rounding error in votes adjusted by removing and adding tree distributions.
+         */
+        private const val TOLERANCE = 1e-9
+    }
+}
@@ -1,7 +1,11 @@
 package imagesurf.feature.importance
 
 import imagesurf.classifier.Classifier
+import imagesurf.classifier.RandomForest
 import imagesurf.feature.FeatureReader
+import imagesurf.util.BasicProgressNotifier
+import imagesurf.util.ImageSurfEnvironment
+import imagesurf.util.ProgressNotifier
 import imagesurf.util.UtilityKt
 import util.UtilityJava
 import java.util.*
@@ -9,29 +13,59 @@ import java.util.stream.IntStream
 
 class ScrambleFeatureImportanceCalculator(
         val random: Random
-) : FeatureImportanceCalculator {
+) : FeatureImportanceCalculator, ProgressNotifier by BasicProgressNotifier() {
 
     constructor(randomSeed: Long) : this(Random(randomSeed))
 
-    override fun calculateFeatureImportance(classifier: Classifier, reader: FeatureReader, instanceIndices: IntArray): DoubleArray =
-            (0 until reader.numFeatures).map { attributeIndex ->
-                if (attributeIndex == reader.classIndex) java.lang.Double.NaN
-                else ScrambledFeatureReader(reader, attributeIndex, random.nextLong())
+    /**
+     * The fraction of instances misclassified when each attribute's values are scrambled. Each attribute is scrambled
+     * with its own seed, drawn from random in attribute order, so results do not depend on the order in which
+     * attributes are evaluated. Random forests are evaluated incrementally, revisiting only the parts of trees that
+     * split on the scrambled attribute, with every attribute and chunk of instances scheduled on one work-stealing
+     * pool; results are the same as classifying the scrambled data with the whole forest. Progress is reported as
+     * attributes complete.
+     */
+    override fun calculateFeatureImportance(classifier: Classifier, reader: FeatureReader, instanceIndices: IntArray): DoubleArray {
+        val attributes = (0 until reader.numFeatures).filter { it != reader.classIndex }.toIntArray()
+        val randomSeeds = LongArray(reader.numFeatures).also { seeds -> attributes.forEach { seeds[it] = random.nextLong() } }
+
+        val errors = if (classifier is RandomForest)
+            errorsWithScrambled(classifier, reader, instanceIndices, attributes, randomSeeds)
+        else
+            attributes.mapIndexed { i, attributeIndex ->
+                ScrambledFeatureReader(reader, attributeIndex, randomSeeds[attributeIndex])
                         .let{ classifier.classForInstances(it, instanceIndices) }
                         .mapIndexed {index, predictedClass -> predictedClass == reader.getClassValue(instanceIndices[index])}
                         .filterNot { it }
                         .size
-                        .toDouble()
-                        .div(instanceIndices.size)
-            }.toDoubleArray()
+                        .also { onAttributeDone(i + 1, attributes.size) }
+            }.toIntArray()
+
+        return DoubleArray(reader.numFeatures) { java.lang.Double.NaN }.also { importance ->
+            attributes.forEachIndexed { index, attributeIndex ->
+                importance[attributeIndex] = errors[index].toDouble() / instanceIndices.size
+            }
+        }
+    }
+
+    private fun errorsWithScrambled(randomForest: RandomForest, reader: FeatureReader, instanceIndices: IntArray,
+                                    attributes: IntArray, randomSeeds: LongArray): IntArray {
+        //TODO remove dependency on ImageSurfEnvironment and pass executors around
+        val pool = ImageSurfEnvironment.getSegmentationExecutor(randomForest.numThreads)
+
+        return PermutedForestClassifier(randomForest, reader, instanceIndices, pool)
+                .errorsWithPermuted(attributes, { scrambledIndices(reader, randomSeeds[it]) }, this::onAttributeDone)
+    }
+
+    private fun onAttributeDone(attributesDone: Int, numAttributes: Int) =
+            onProgress(attributesDone, numAttributes, "Calculated importance of $attributesDone/$numAttributes features")
 
     private class ScrambledFeatureReader constructor(
             val reader: FeatureReader,
             val scrambledIndex: Int,
             val randomSeed: Long) : FeatureReader {
 
-        val scrambledIndices: IntArray = IntStream.range(0, reader.numInstances).toArray()
-                .also { UtilityJava.shuffleArray(it, Random(randomSeed)) }
+        val scrambledIndices: IntArray = scrambledIndices(reader, randomSeed)
 
         override fun getClassValue(instanceIndex: Int): Int {
             return reader.getClassValue(instanceIndex)
@@ -51,4 +85,14 @@ class ScrambleFeatureImportanceCalculator(
 
         override fun getNumClasses(): Int = reader.numClasses
     }
+
+    companion object {
+        /**
+         * A random permutation of the reader's instances: scrambled values of instance i are read from instance
+         * scrambledIndices[i].
+         */
+        private fun scrambledIndices(reader: FeatureReader, randomSeed: Long): IntArray =
+                IntStream.range(0, reader.numInstances).toArray()
+                        .also { UtilityJava.shuffleArray(it, Random(randomSeed)) }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package imagesurf.reader
+
+import imagesurf.feature.FeatureReader
+
+/**
+ * A [FeatureReader] whose feature values fall into a bounded number of ordered bins, so that splits can be found
+ * from per-bin class counts instead of by sorting instances.
+ */
+interface BinnedFeatureReader : FeatureReader {
+
+    /**
+     * The number of bins. Bins are numbered from 0 in order of value: every value in a bin is less than every value
+     * in a later bin.
+     */
+    val numBins: Int
+
+    /**
+     * The bin holding the value of an instance's attribute.
+     */
+    fun getBin(instanceIndex: Int, attributeIndex: Int): Int
+}
@@ -1,9 +1,8 @@
 package imagesurf.reader
 
 import imagesurf.feature.FeatureReader
-import net.mintern.primitive.Primitive
 
-class ByteReader(private val values: Array<ByteArray>, private val classIndex: Int) : FeatureReader {
+class ByteReader(private val values: Array<ByteArray>, private val classIndex: Int) : BinnedFeatureReader {
 
     constructor(values: List<Any?>, classIndex: Int) : this(toBytes(values), classIndex)
 
@@ -21,15 +20,28 @@ class ByteReader(private val values: Array<ByteArray>, private val classIndex: I
         return (values[attributeIndex][instanceIndex].toInt() and BIT_MASK).toDouble()
     }
 
-    override fun getSortedIndices(attributeIndex: Int, instanceIndices: IntArray): IntArray {
-        val attributeArray = values[attributeIndex]
-        return instanceIndices.copyOf(instanceIndices.size)
-                .also {
-                    Primitive.sort(it) {
-                        i1, i2 -> (attributeArray[i1].toInt() and BIT_MASK).compareTo((attributeArray[i2].toInt() and BIT_MASK))
-                    }
-                }
-    }
+    override fun getSortedIndices(attributeIndex: Int, instanceIndices: IntArray): IntArray =
+            IndexSort.sortByUnsignedBytes(values[attributeIndex], instanceIndices)
+
+    override fun sortIndices(attributeIndex: Int, instanceIndices: IntArray, from: Int, to: Int,
+                             sorted: IntArray, sortedFrom: Int) =
+            IndexSort.sortByUnsignedBytes(values[attributeIndex], instanceIndices, from, to, sorted, sortedFrom)
+
+    /**
+     * One bin per unsigned byte. Masking sign-extends bytes from 128 upwards to high values, so unsigned byte order
+     * is also the order of [getValue].
+     */
+    override val numBins: Int
+        get() = 0x100
+
+    override fun getBin(instanceIndex: Int, attributeIndex: Int): Int =
+            values[attributeIndex][instanceIndex].toInt() and 0xff
+
+    /**
+     * The raw feature columns, indexed by attribute then instance.
+     */
+    internal val columns: Array<ByteArray>
+        get() = values
 
     override fun getNumInstances(): Int = values[classIndex].size
 
@@ -38,8 +50,30 @@ class ByteReader(private val values: Array<ByteArray>, private val classIndex: I
     override fun getClassIndex(): Int = classIndex
 
     companion object {
+        // Bytes from 128 upwards have always been read sign-extended. Saved classifiers hold split points on these
+        // values, so narrowing the mask would change how they classify
         private const val BIT_MASK: Int = 0xffff
 
+        /**
+         * Converts a split point on [getValue] to a threshold on unsigned raw values: the smallest unsigned byte
+         * whose value is at least splitPoint, or 256 if there is none. `(b & 0xff) < threshold` exactly when
+         * `getValue` for b is less than splitPoint.
+         */
+        internal fun quantiseSplitPoint(splitPoint: Double): Int {
+            var low = 0
+            var high = 0x100
+
+            while (low < high) {
+                val mid = (low + high) ushr 1
+                if ((mid.toByte().toInt() and BIT_MASK) < splitPoint)
+                    low = mid + 1
+                else
+                    high = mid
+            }
+
+            return low
+        }
+
         private fun toBytes(byteArrays: Any): Array<ByteArray> = when (byteArrays) {
             is List<*> -> byteArrays.map { it as ByteArray }.toTypedArray()
             is Array<*> -> byteArrays.map { it as ByteArray }.toTypedArray()
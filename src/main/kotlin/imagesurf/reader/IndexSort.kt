@@ -0,0 +1,111 @@
+package imagesurf.reader
+
+/**
+ * Stable linear-time sorts of instance indices by the raw values of a feature column, used by the readers'
+ * getSortedIndices instead of a comparison sort. Equal values keep the order of the input, as with the stable
+ * comparison sort they replace.
+ *
+ * Counts and the intermediate index array of multi-pass radix sorts are kept per thread and reused between calls, so
+ * sorting into a caller's array allocates nothing.
+ */
+internal object IndexSort {
+
+    private const val RADIX_BITS = 8
+    private const val RADIX = 1 shl RADIX_BITS
+    private const val DIGIT_MASK = RADIX - 1
+
+    private class Scratch {
+        val counts = IntArray(RADIX)
+        private var indices = IntArray(0)
+
+        fun indices(size: Int): IntArray =
+                if (indices.size >= size) indices else IntArray(size).also { indices = it }
+    }
+
+    private val scratch = ThreadLocal.withInitial { Scratch() }
+
+    /**
+     * Sorts instance indices by the unsigned byte values of a column with a counting sort.
+     */
+    fun sortByUnsignedBytes(column: ByteArray, instanceIndices: IntArray): IntArray =
+            IntArray(instanceIndices.size).also { sortByUnsignedBytes(column, instanceIndices, 0, instanceIndices.size, it, 0) }
+
+    /**
+     * Sorts instanceIndices from (inclusive) to to (exclusive) by the unsigned byte values of a column with a
+     * counting sort, writing them to sorted starting at sortedFrom.
+     */
+    fun sortByUnsignedBytes(column: ByteArray, instanceIndices: IntArray, from: Int, to: Int,
+                            sorted: IntArray, sortedFrom: Int) {
+        val counts = scratch.get().counts
+
+        counts.fill(0)
+        for (k in from until to)
+            counts[column[instanceIndices[k]].toInt() and 0xff]++
+
+        toOffsets(counts, sortedFrom)
+
+        for (k in from until to) {
+            val i = instanceIndices[k]
+            sorted[counts[column[i].toInt() and 0xff]++] = i
+        }
+    }
+
+    /**
+     * Sorts instance indices by the masked values of a column: a counting sort if the mask fits in one 8-bit digit,
+     * otherwise a least-significant-digit radix sort with one counting pass per digit.
+     */
+    fun sortByMaskedShorts(column: ShortArray, mask: Int, instanceIndices: IntArray): IntArray =
+            IntArray(instanceIndices.size).also { sortByMaskedShorts(column, mask, instanceIndices, 0, instanceIndices.size, it, 0) }
+
+    /**
+     * Sorts instanceIndices from (inclusive) to to (exclusive) by the masked values of a column, writing them to
+     * sorted starting at sortedFrom; see [sortByMaskedShorts].
+     */
+    fun sortByMaskedShorts(column: ShortArray, mask: Int, instanceIndices: IntArray, from: Int, to: Int,
+                           sorted: IntArray, sortedFrom: Int) {
+        val scratch = scratch.get()
+        val counts = scratch.counts
+        val numInstances = to - from
+        val numDigits = maxOf(1, (32 - Integer.numberOfLeadingZeros(mask) + RADIX_BITS - 1) / RADIX_BITS)
+
+        val intermediate = if (numDigits > 1) scratch.indices(numInstances) else sorted
+        var source = instanceIndices
+        var sourceFrom = from
+
+        for (digit in 0 until numDigits) {
+            val shift = digit * RADIX_BITS
+
+            // Alternate between the intermediate array and the result so that the last pass writes the result
+            val toResult = (numDigits - 1 - digit) % 2 == 0
+            val target = if (toResult) sorted else intermediate
+            val targetFrom = if (toResult) sortedFrom else 0
+
+            counts.fill(0)
+            for (k in sourceFrom until sourceFrom + numInstances)
+                counts[((column[source[k]].toInt() and mask) ushr shift) and DIGIT_MASK]++
+
+            toOffsets(counts, targetFrom)
+
+            for (k in sourceFrom until sourceFrom + numInstances) {
+                val i = source[k]
+                target[counts[((column[i].toInt() and mask) ushr shift) and DIGIT_MASK]++] = i
+            }
+
+            source = target
+            sourceFrom = targetFrom
+        }
+    }
+
+    /**
+     * Replaces counts with the index of the first instance of each key in the sorted output, which starts at start.
+     */
+    private fun toOffsets(counts: IntArray, start: Int) {
+        var total = start
+
+        for (key in counts.indices) {
+            val count = counts[key]
+            counts[key] = total
+            total += count
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package imagesurf.reader
 
 import imagesurf.feature.FeatureReader
-import net.mintern.primitive.Primitive
+import kotlin.math.ceil
 
-class ShortReader(private val values: Array<ShortArray>, private val classIndex: Int) : FeatureReader {
+class ShortReader(private val values: Array<ShortArray>, private val classIndex: Int) : BinnedFeatureReader {
 
     constructor(values: List<Any?>, classIndex: Int) : this(toShorts(values), classIndex)
 
@@ -21,15 +21,27 @@ class ShortReader(private val values: Array<ShortArray>, private val classIndex:
         return (values[attributeIndex][instanceIndex].toInt() and BIT_MASK).toDouble()
     }
 
-    override fun getSortedIndices(attributeIndex: Int, instanceIndices: IntArray): IntArray {
-        val attributeArray = values[attributeIndex]
-        return instanceIndices.copyOf(instanceIndices.size)
-                .also {
-                    Primitive.sort(it) {
-                        i1, i2 -> (attributeArray[i1].toInt() and BIT_MASK).compareTo((attributeArray[i2].toInt() and BIT_MASK))
-                    }
-                }
-    }
+    override fun getSortedIndices(attributeIndex: Int, instanceIndices: IntArray): IntArray =
+            IndexSort.sortByMaskedShorts(values[attributeIndex], BIT_MASK, instanceIndices)
+
+    override fun sortIndices(attributeIndex: Int, instanceIndices: IntArray, from: Int, to: Int,
+                             sorted: IntArray, sortedFrom: Int) =
+            IndexSort.sortByMaskedShorts(values[attributeIndex], BIT_MASK, instanceIndices, from, to, sorted, sortedFrom)
+
+    /**
+     * One bin per masked value.
+     */
+    override val numBins: Int
+        get() = BIT_MASK + 1
+
+    override fun getBin(instanceIndex: Int, attributeIndex: Int): Int =
+            values[attributeIndex][instanceIndex].toInt() and BIT_MASK
+
+    /**
+     * The raw feature columns, indexed by attribute then instance.
+     */
+    internal val columns: Array<ShortArray>
+        get() = values
 
     override fun getNumInstances(): Int = values[classIndex].size
 
@@ -38,7 +50,20 @@ class ShortReader(private val values: Array<ShortArray>, private val classIndex:
     override fun getClassIndex(): Int = classIndex
 
     companion object {
-        private const val BIT_MASK: Int = 0xff
+        // Only the low byte of each value has ever been read. Saved classifiers hold split points on these values,
+        // so widening the mask would change how they classify
+        internal const val BIT_MASK: Int = 0xff
+
+        /**
+         * Converts a split point on [getValue] to a threshold on masked raw values: the smallest masked value
+         * that is at least splitPoint, or one past the largest if there is none. `(s & BIT_MASK) < threshold` exactly
+         * when `getValue` for s is less than splitPoint.
+         */
+        internal fun quantiseSplitPoint(splitPoint: Double): Int = when {
+            splitPoint <= 0 -> 0
+            splitPoint > BIT_MASK -> BIT_MASK + 1
+            else -> ceil(splitPoint).toInt()
+        }
 
         private fun toShorts(shortArrays: Any): Array<ShortArray> = when (shortArrays) {
             is List<*> -> shortArrays.map { it as ShortArray }.toTypedArray()
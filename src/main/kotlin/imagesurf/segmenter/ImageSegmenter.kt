@@ -3,6 +3,7 @@ package imagesurf.segmenter
 import ij.ImageStack
 import ij.Prefs
 import imagesurf.classifier.ImageSurfClassifier
+import imagesurf.feature.PixelType
 import imagesurf.feature.SurfImage
 import imagesurf.util.UtilityKt
 import org.scijava.app.StatusService
@@ -11,7 +12,9 @@ import java.util.concurrent.ExecutionException
 interface ImageSegmenter {
     fun segmentImage(imageSurfClassifier: ImageSurfClassifier, image: SurfImage, statusService: StatusService): ImageStack
 
-    class SimpleImageSegmenter : ImageSegmenter {
+    class SimpleImageSegmenter @JvmOverloads constructor(
+            private val output: SegmentationOutput = SegmentationOutput.CLASSES
+    ) : ImageSegmenter {
         @Throws(ExecutionException::class, InterruptedException::class)
         override fun segmentImage(imageSurfClassifier: ImageSurfClassifier, image: SurfImage, statusService: StatusService): ImageStack {
             if (imageSurfClassifier.pixelType != image.pixelType)
@@ -21,7 +24,10 @@ interface ImageSegmenter {
             if (imageSurfClassifier.numChannels != image.numChannels)
                 throw RuntimeException("Classifier trained for " + imageSurfClassifier.numChannels + " channels. Image has " + image.numChannels + " - cannot segment.")
 
-            val randomForest = imageSurfClassifier.randomForest.apply { numThreads = Prefs.getThreads() }
+            val randomForest = imageSurfClassifier.randomForest.apply {
+                numThreads = Prefs.getThreads()
+                earlyExit = true
+            }
             val classColors = UtilityKt.getClassColors(randomForest.numClasses)
 
             val featuresProgress = UtilityKt.MessageProgress(statusService)
@@ -30,6 +36,8 @@ interface ImageSegmenter {
             val segmentProgress = UtilityKt.MessageProgress(statusService)
             randomForest.addProgressListener(segmentProgress)
 
+            val numPixels = image.width * image.height
+
             return image.getSliceCalculations(imageSurfClassifier.features)
                     .mapIndexed { currentSlice, calculation ->
 
@@ -38,10 +46,19 @@ interface ImageSegmenter {
                         segmentProgress.message = "Segmenting plane " +
                                 "$currentSlice/${image.numChannels * image.numSlices * image.numFrames}"
 
-                        calculation.calculate()
-                                .let { randomForest.classForInstances(it) }
-                                .map(classColors::get).toByteArray()
-                    }.fold(ImageStack(image.width, image.height)) { stack, bytes -> stack.apply { addSlice("", bytes) } }
+                        val reader = calculation.calculate()
+
+                        when (output.probabilityPixelType) {
+                            null -> randomForest.classForAllInstances(reader)
+                                    .let { classes -> listOf(ByteArray(numPixels) { classColors[classes[it]] }) }
+                            PixelType.GRAY_8_BIT -> List(randomForest.numClasses) { ByteArray(numPixels) }
+                                    .also { randomForest.probabilitiesForAllInstances(reader, it) }
+                            PixelType.GRAY_16_BIT -> List(randomForest.numClasses) { ShortArray(numPixels) }
+                                    .also { randomForest.probabilitiesForAllInstances(reader, it) }
+                        }
+                    }.fold(ImageStack(image.width, image.height)) { stack, planes ->
+                        stack.apply { planes.forEach { addSlice("", it) } }
+                    }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package imagesurf.segmenter
+
+import imagesurf.feature.PixelType
+
+/**
+ * What a segmenter writes for each plane of an image.
+ */
+enum class SegmentationOutput(
+        val description: String,
+        /**
+         * The pixel type of probability planes, or null if one plane of class colours is written.
+         */
+        val probabilityPixelType: PixelType?
+) {
+    CLASSES("Classes", null),
+    PROBABILITIES_8_BIT("Class probabilities (8-bit)", PixelType.GRAY_8_BIT),
+    PROBABILITIES_16_BIT("Class probabilities (16-bit)", PixelType.GRAY_16_BIT);
+
+    /**
+     * The number of output slices written for each plane of the input image.
+     */
+    fun slicesPerPlane(numClasses: Int): Int = if (probabilityPixelType == null) 1 else numClasses
+
+    companion object {
+        @JvmStatic
+        fun fromDescription(description: String?): SegmentationOutput =
+                values().firstOrNull { it.description == description } ?: CLASSES
+    }
+}
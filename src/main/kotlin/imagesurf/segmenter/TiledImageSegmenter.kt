@@ -7,11 +7,12 @@ import imagesurf.feature.SurfImage
 import org.scijava.app.StatusService
 import java.util.concurrent.ExecutionException
 
-class TiledImageSegmenter(
-        val tileSize: Int
+class TiledImageSegmenter @JvmOverloads constructor(
+        val tileSize: Int,
+        val output: SegmentationOutput = SegmentationOutput.CLASSES
 ) : ImageSegmenter {
 
-    private val simpleImageSegmenter = ImageSegmenter.SimpleImageSegmenter()
+    private val simpleImageSegmenter = ImageSegmenter.SimpleImageSegmenter(output)
 
     @Throws(ExecutionException::class, InterruptedException::class)
     override fun segmentImage(imageSurfClassifier: ImageSurfClassifier, surfImage: SurfImage, statusService: StatusService): ImageStack {
@@ -24,7 +25,10 @@ class TiledImageSegmenter(
 
         val processor = TiledProcessor(roiSize, buffer)
 
-        return processor.process(surfImage, PixelType.GRAY_8_BIT, tiledStatus) {
+        val outputPixelType = output.probabilityPixelType ?: PixelType.GRAY_8_BIT
+        val slicesPerPlane = output.slicesPerPlane(imageSurfClassifier.randomForest.numClasses)
+
+        return processor.process(surfImage, outputPixelType, slicesPerPlane, tiledStatus) {
             simpleImageSegmenter.segmentImage(imageSurfClassifier, it, statusService).toPixels()
         }
     }
@@ -12,7 +12,13 @@ class TiledProcessor(
         private val buffer: Int = 0
 ) {
 
-    fun process(surfImage: SurfImage, outputPixelType: PixelType = surfImage.pixelType, progressCallback: ((CurrentIndex, Total) -> Unit)?, process: (SurfImage) -> List<Any>): ImageStack {
+    fun process(surfImage: SurfImage, outputPixelType: PixelType = surfImage.pixelType, progressCallback: ((CurrentIndex, Total) -> Unit)?, process: (SurfImage) -> List<Any>): ImageStack =
+            process(surfImage, outputPixelType, 1, progressCallback, process)
+
+    /**
+     * @param slicesPerPlane the number of output slices process returns for each plane of the image
+     */
+    fun process(surfImage: SurfImage, outputPixelType: PixelType, slicesPerPlane: Int, progressCallback: ((CurrentIndex, Total) -> Unit)?, process: (SurfImage) -> List<Any>): ImageStack {
 
         val nCols = (surfImage.width / roiSize).let { if(surfImage.width%roiSize > 0) it + 1 else it }
         val nRows = (surfImage.height / roiSize).let { if(surfImage.height%roiSize > 0) it + 1 else it }
@@ -33,7 +39,7 @@ class TiledProcessor(
                     }
                 }
 
-        val outputStack = (0 until surfImage.totalMergedSlices).map {
+        val outputStack = (0 until surfImage.totalMergedSlices * slicesPerPlane).map {
             when(outputPixelType) {
                 PixelType.GRAY_8_BIT -> ByteArray(surfImage.width * surfImage.height)
                 PixelType.GRAY_16_BIT -> ShortArray(surfImage.width * surfImage.height)
@@ -0,0 +1,65 @@
+package imagesurf.util
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.min
+
+/**
+ * Processes the range 0 until size in fixed-size chunks on a fork-join pool.
+ *
+ * The chunks are split recursively into fork-join tasks, so idle workers steal chunks from busy ones rather than
+ * waiting on a fixed share of the range. Every index is covered, including a final partial chunk. If the calling
+ * thread is interrupted while waiting, chunks that have not started are skipped and an [InterruptedException] is
+ * thrown.
+ */
+class ChunkScheduler(private val pool: ForkJoinPool, private val chunkSize: Int) {
+
+    /**
+     * @param onChunkDone called after each chunk with the number of chunks completed and the total number of chunks
+     * @param process called with the start (inclusive) and end (exclusive) of each chunk
+     */
+    @Throws(InterruptedException::class, ExecutionException::class)
+    fun forEachChunk(size: Int, onChunkDone: ((chunksDone: Int, numChunks: Int) -> Unit)?, process: (from: Int, to: Int) -> Unit) {
+        val numChunks = (size + chunkSize - 1) / chunkSize
+
+        if (numChunks == 0)
+            return
+
+        val run = Run(size, numChunks, onChunkDone, process)
+        val task = pool.submit(run.ChunkTask(0, numChunks))
+
+        try {
+            task.get()
+        } catch (e: InterruptedException) {
+            run.cancelled.set(true)
+            task.cancel(true)
+            throw e
+        }
+    }
+
+    private inner class Run(
+            val size: Int,
+            val numChunks: Int,
+            val onChunkDone: ((Int, Int) -> Unit)?,
+            val process: (Int, Int) -> Unit
+    ) {
+        val cancelled = AtomicBoolean(false)
+        val chunksDone = AtomicInteger(0)
+
+        inner class ChunkTask(private val firstChunk: Int, private val endChunk: Int) : RecursiveAction() {
+            override fun compute() {
+                if (endChunk - firstChunk > 1) {
+                    val middle = (firstChunk + endChunk) ushr 1
+                    invokeAll(ChunkTask(firstChunk, middle), ChunkTask(middle, endChunk))
+                } else if (!cancelled.get()) {
+                    val from = firstChunk * chunkSize
+                    process(from, min(from + chunkSize, size))
+                    onChunkDone?.invoke(chunksDone.incrementAndGet(), numChunks)
+                }
+            }
+        }
+    }
+}
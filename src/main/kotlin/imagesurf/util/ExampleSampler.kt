@@ -0,0 +1,156 @@
+package imagesurf.util
+
+import java.util.*
+
+/**
+ * How training examples are selected from the labelled pixels.
+ */
+enum class ExampleSampling(val description: String) {
+    /**
+     * The example portion of all labelled pixels, regardless of class.
+     */
+    UNIFORM("Uniform"),
+
+    /**
+     * The example portion of the labelled pixels of each class, so the class proportions of the labels are kept
+     * exactly.
+     */
+    STRATIFIED("Stratified"),
+
+    /**
+     * The same number of examples from each class: the example portion of all labelled pixels divided equally between
+     * the classes, but no more than the number of labelled pixels of the smallest class. Applies even when the example
+     * portion is 100%, so a dominant background class is cut down to the size of the other classes.
+     */
+    BALANCED("Class balanced");
+
+    companion object {
+        @JvmStatic
+        fun fromDescription(description: String?): ExampleSampling =
+                values().firstOrNull { it.description == description } ?: UNIFORM
+    }
+}
+
+/**
+ * Selects training examples from the labelled pixels of each image in a single pass, without holding the pixels of
+ * more than one image.
+ *
+ * The labelled pixels of every image are first passed to [count], which keeps only the number of pixels of each label
+ * colour. Each image is then passed to [select] in the same order, which streams through its labelled pixels and
+ * selects each with probability (examples still needed)/(pixels still to come) for the pixel's class quota
+ * (Knuth's selection sampling). This gives exactly the quota of each class, chosen uniformly without replacement,
+ * while holding only two counters per class.
+ */
+class ExampleSampler(private val sampling: ExampleSampling, private val examplePortion: Int, private val random: Random) {
+
+    private var colours = IntArray(8)
+    private var available = LongArray(8)
+    private var needed = LongArray(8)
+    private var numClasses = 0
+    private var totalLabelled = 0L
+    private var quotasSet = false
+
+    private var lastColour = 0
+    private var lastClass = -1
+
+    /**
+     * Whether every labelled pixel is selected, so that images can be passed to [select] without their label pixels.
+     */
+    val selectsAll: Boolean
+        get() = examplePortion >= 100 && sampling != ExampleSampling.BALANCED
+
+    /**
+     * Counts the labelled pixels of an image by class. Must be called for every image before [select].
+     */
+    fun count(labelledPixelIndices: IntArray, labelImagePixels: IntArray) {
+        if (quotasSet)
+            throw IllegalStateException("Images must all be counted before examples are selected")
+
+        for (pixelIndex in labelledPixelIndices)
+            available[classIndex(labelImagePixels[pixelIndex], true)]++
+
+        totalLabelled += labelledPixelIndices.size
+    }
+
+    /**
+     * Selects the examples of an image.
+     *
+     * @return the selected pixel indices, in ascending order if the labelled pixel indices are
+     */
+    fun select(labelledPixelIndices: IntArray, labelImagePixels: IntArray): IntArray {
+        if (selectsAll)
+            return labelledPixelIndices
+
+        if (!quotasSet)
+            setQuotas()
+
+        val selected = IntArray(labelledPixelIndices.size)
+        var numSelected = 0
+
+        for (pixelIndex in labelledPixelIndices) {
+            val stream = if (sampling == ExampleSampling.UNIFORM) 0 else classIndex(labelImagePixels[pixelIndex], false)
+
+            if (available[stream] <= 0)
+                throw IllegalStateException("More labelled pixels selected from than were counted")
+
+            if (random.nextDouble() * available[stream] < needed[stream]) {
+                selected[numSelected++] = pixelIndex
+                needed[stream]--
+            }
+
+            available[stream]--
+        }
+
+        return if (numSelected == selected.size) selected else selected.copyOf(numSelected)
+    }
+
+    private fun setQuotas() {
+        if (totalLabelled == 0L)
+            throw RuntimeException("No labels found in label files")
+
+        val totalQuota = totalLabelled * examplePortion / 100
+
+        when (sampling) {
+            ExampleSampling.UNIFORM -> {
+                available[0] = totalLabelled
+                needed[0] = totalQuota
+            }
+            ExampleSampling.STRATIFIED -> for (c in 0 until numClasses)
+                needed[c] = available[c] * examplePortion / 100
+            ExampleSampling.BALANCED -> {
+                val classQuota = minOf(totalQuota / numClasses, (0 until numClasses).fold(Long.MAX_VALUE) { min, c -> minOf(min, available[c]) })
+
+                for (c in 0 until numClasses)
+                    needed[c] = classQuota
+            }
+        }
+
+        quotasSet = true
+    }
+
+    private fun classIndex(colour: Int, add: Boolean): Int {
+        if (lastClass >= 0 && colour == lastColour)
+            return lastClass
+
+        var c = 0
+        while (c < numClasses && colours[c] != colour)
+            c++
+
+        if (c == numClasses) {
+            if (!add)
+                throw IllegalStateException("Label colour $colour was not counted")
+
+            if (numClasses == colours.size) {
+                colours = colours.copyOf(numClasses * 2)
+                available = available.copyOf(numClasses * 2)
+                needed = needed.copyOf(numClasses * 2)
+            }
+
+            colours[numClasses++] = colour
+        }
+
+        lastColour = colour
+        lastClass = c
+        return c
+    }
+}
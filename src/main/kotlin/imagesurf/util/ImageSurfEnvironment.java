@@ -2,34 +2,43 @@ package imagesurf.util;
 
 import ij.Prefs;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 
 public class ImageSurfEnvironment {
 
     static int numThreads = Prefs.getThreads();
-    static ExecutorService featureExecutor = new ForkJoinPool(numThreads);
-    static ExecutorService segmentationExecutor = new ForkJoinPool(numThreads);
-    static ExecutorService trainingExecutor = new ForkJoinPool(numThreads);
 
+    // One pool is kept per parallelism for each kind of work, so a classifier with a thread count other than
+    // numThreads reuses its pool on every plane instead of starting a new one. Idle pool threads exit on their own.
+    private static final Map<Integer, ForkJoinPool> featurePools = new ConcurrentHashMap<>();
+    private static final Map<Integer, ForkJoinPool> segmentationPools = new ConcurrentHashMap<>();
+    private static final Map<Integer, ForkJoinPool> trainingPools = new ConcurrentHashMap<>();
 
     public static void setNumThreads(int numThreads) {
-        featureExecutor.shutdown();
-
         ImageSurfEnvironment.numThreads = numThreads;
-        featureExecutor = new ForkJoinPool(numThreads);
     }
 
     public static ExecutorService getFeatureExecutor() {
-        return featureExecutor;
+        return featurePools.computeIfAbsent(numThreads, ForkJoinPool::new);
     }
 
     public static ExecutorService getSegmentationExecutor() {
-        return segmentationExecutor;
+        return getSegmentationExecutor(numThreads);
+    }
+
+    public static ForkJoinPool getSegmentationExecutor(int parallelism) {
+        return segmentationPools.computeIfAbsent(parallelism, ForkJoinPool::new);
     }
 
     public static ExecutorService getTrainingExecutor() {
-        return trainingExecutor;
+        return getTrainingExecutor(numThreads);
+    }
+
+    public static ForkJoinPool getTrainingExecutor(int parallelism) {
+        return trainingPools.computeIfAbsent(parallelism, ForkJoinPool::new);
     }
 
     public static int getNumThreads() {
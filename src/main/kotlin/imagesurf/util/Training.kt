@@ -3,10 +3,12 @@ package imagesurf.util
 import ij.CompositeImage
 import ij.ImagePlus
 import ij.io.FileSaver
+import ij.io.Opener
 import imagesurf.ApplyImageSurf
 import imagesurf.ImageSurfSettings
 import imagesurf.TrainImageSurfMultiClass
 import imagesurf.classifier.ImageSurfClassifier
+import imagesurf.classifier.OutOfBagEstimate
 import imagesurf.classifier.RandomForest
 import imagesurf.feature.FeatureReader
 import imagesurf.feature.PixelType
@@ -18,11 +20,25 @@ import org.scijava.prefs.PrefService
 import util.UtilityJava
 import java.io.File
 import java.io.FileFilter
+import java.io.IOException
 import java.nio.file.Files
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
 import java.util.stream.IntStream
+import javax.imageio.ImageIO
+import kotlin.concurrent.withLock
 
 object Training {
+
+    /**
+     * The fraction of the maximum heap that images being loaded for training may take.
+     */
+    private const val MEMORY_CEILING = 0.5
+
     data class Paths(
             val labelPath: File,
             val rawImagePath: File,
@@ -60,7 +76,11 @@ object Training {
     class Verification(
             val expectedCounts: IntArray,
             val actualCounts: IntArray,
-            val correct: Int
+            val correct: Int,
+            /**
+             * Whether each pixel was classified only by trees that were not trained on it.
+             */
+            val outOfBag: Boolean = false
     ) {
         val totalPixels: Int = expectedCounts.sum()
         val numClasses = expectedCounts.size
@@ -71,8 +91,12 @@ object Training {
             for (i in 0 until numClasses) info.append(i.toString() + ": " + actualCounts[i] + "\t")
             info.append("\nClasses in verification set - ")
             for (i in 0 until numClasses) info.append(i.toString() + ": " + expectedCounts[i] + "\t")
-            info.append("""\nSegmenter classifies $correct/$totalPixels """ + (correct.toDouble()
-                    / totalPixels) * 100 + "%) of the training pixels correctly.")
+            if (outOfBag)
+                info.append("""\nTrees not trained on each pixel classify $correct/$totalPixels """ + (correct.toDouble()
+                        / totalPixels) * 100 + "%) of the training pixels correctly.")
+            else
+                info.append("""\nSegmenter classifies $correct/$totalPixels """ + (correct.toDouble()
+                        / totalPixels) * 100 + "%) of the training pixels correctly.")
 
             return info.toString()
         }
@@ -127,16 +151,65 @@ object Training {
         )
     }
 
+    /**
+     * Describes a forest's out-of-bag estimate in the same form as [verifySegmentation], without classifying the
+     * training set again. Pixels that were in every tree's bag are not counted.
+     */
+    fun verifyOutOfBag(reader: FeatureReader, numClasses: Int, outOfBagEstimate: OutOfBagEstimate): Verification {
+        val expectedClassCount = IntArray(numClasses)
+        val actualClassCount = IntArray(numClasses)
+
+        var correct = 0
+        outOfBagEstimate.classes.forEachIndexed { i, expectedClass ->
+            if (expectedClass < 0)
+                return@forEachIndexed
+
+            if (expectedClass == reader.getClassValue(i)) correct++
+            expectedClassCount[expectedClass]++
+            actualClassCount[reader.getClassValue(i)]++
+        }
+
+        return Verification(
+                expectedCounts = expectedClassCount,
+                actualCounts = actualClassCount,
+                correct = correct,
+                outOfBag = true
+        )
+    }
+
     fun getSelectedFeaturesReader(optimalFeatures: Array<FeatureCalculator>, allFeatures: Array<FeatureCalculator>,
                                   reader: FeatureReader): FeatureReader =
             optimalFeatures.map { allFeatures.indexOf(it) }
                     .filter { it != -1 }
                     .let { reader.withFeatures(it) }
 
+    @JvmOverloads
     fun getTrainingExamples(paths: Paths, random: Random, trainingProgressListener: TrainingProgressListener?,
                             examplePortion: Int, saveCalculatedFeatures: Boolean,
-                            pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>) =
-            getTrainingExamples(
+                            pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>,
+                            exampleSampling: ExampleSampling = ExampleSampling.UNIFORM): Array<Any> =
+            getTrainingData(paths, random, trainingProgressListener, examplePortion, saveCalculatedFeatures, pixelType,
+                    selectedFeatures, exampleSampling).examples
+
+    @JvmOverloads
+    fun getTrainingExamples(labelFiles: List<File>, unlabelledFiles: List<File>, rawImageFiles: List<File>, featureFiles: List<File>?, random: Random, trainingProgressListener: TrainingProgressListener?,
+                            examplePortion: Int, saveCalculatedFeatures: Boolean,
+                            pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>,
+                            exampleSampling: ExampleSampling = ExampleSampling.UNIFORM): Array<Any> =
+            getTrainingData(labelFiles, unlabelledFiles, rawImageFiles, featureFiles, random, trainingProgressListener,
+                    examplePortion, saveCalculatedFeatures, pixelType, selectedFeatures, exampleSampling).examples
+
+    /**
+     * The training examples, one array per feature followed by the class values, and the label colour of each class.
+     */
+    class TrainingData(val examples: Array<Any>, val classColors: IntArray)
+
+    @JvmOverloads
+    fun getTrainingData(paths: Paths, random: Random, trainingProgressListener: TrainingProgressListener?,
+                        examplePortion: Int, saveCalculatedFeatures: Boolean,
+                        pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>,
+                        exampleSampling: ExampleSampling = ExampleSampling.UNIFORM): TrainingData =
+            getTrainingData(
                     paths.labelFiles,
                     paths.unlabelledFiles,
                     paths.rawImageFiles,
@@ -146,81 +219,221 @@ object Training {
                     examplePortion,
                     saveCalculatedFeatures,
                     pixelType,
-                    selectedFeatures
+                    selectedFeatures,
+                    exampleSampling
             )
 
-    fun getTrainingExamples(labelFiles: List<File>, unlabelledFiles: List<File>, rawImageFiles: List<File>, featureFiles: List<File>?, random: Random, trainingProgressListener: TrainingProgressListener?,
-                            examplePortion: Int, saveCalculatedFeatures: Boolean,
-                            pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>): Array<Any> {
+    @JvmOverloads
+    fun getTrainingData(labelFiles: List<File>, unlabelledFiles: List<File>, rawImageFiles: List<File>, featureFiles: List<File>?, random: Random, trainingProgressListener: TrainingProgressListener?,
+                        examplePortion: Int, saveCalculatedFeatures: Boolean,
+                        pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>,
+                        exampleSampling: ExampleSampling = ExampleSampling.UNIFORM): TrainingData =
+            getTrainingData(labelFiles, unlabelledFiles, rawImageFiles, featureFiles, random, trainingProgressListener,
+                    examplePortion, saveCalculatedFeatures, pixelType, selectedFeatures, exampleSampling,
+                    numLoaders(rawImageFiles, pixelType, selectedFeatures.size))
+
+    /**
+     * Gets the training examples, loading up to numLoaders images at once.
+     */
+    internal fun getTrainingData(labelFiles: List<File>, unlabelledFiles: List<File>, rawImageFiles: List<File>, featureFiles: List<File>?, random: Random, trainingProgressListener: TrainingProgressListener?,
+                                 examplePortion: Int, saveCalculatedFeatures: Boolean,
+                                 pixelType: PixelType, selectedFeatures: Array<FeatureCalculator>,
+                                 exampleSampling: ExampleSampling, numLoaders: Int): TrainingData {
 
         val progressListener = trainingProgressListener ?: TrainingProgressListener.dummy
 
         val numImages = labelFiles.size
-        val examplePixelIndices = selectExamplePixelIndices(
-                getLabelledPixelIndices(labelFiles, unlabelledFiles, progressListener),
-                random,
-                examplePortion
-        )
-
-        val classColors = emptyList<Int>().toMutableList()
+        val sampler = ExampleSampler(exampleSampling, examplePortion, random)
+        val labelledPixelIndices = getLabelledPixelIndices(labelFiles, unlabelledFiles, progressListener, sampler, numLoaders)
 
-        val expectedNumChannels: Int = rawImageFiles.filterIndexed { index, _ -> examplePixelIndices[index].isNotEmpty() }
+        val expectedNumChannels: Int = rawImageFiles.filterIndexed { index, _ -> labelledPixelIndices[index].isNotEmpty() }
                 .first().let { getImagePlus(it).nChannels }
 
-        val examples: List<List<FeatureImage<Any>>> = rawImageFiles.indices
-                .map { imageIndex ->
-                    val rawImage = getRawTrainingImage(rawImageFiles[imageIndex], expectedNumChannels)
+        val selectionOrder = ImageOrder()
 
-                    val (surfImage: SurfImage, savedFeatures: Collection<FeatureCalculator>) =
-                            getImageFeatures(featureFiles, imageIndex, progressListener, numImages, rawImage, pixelType)
+        val examples: List<ImageExamples> = mapImagesInParallel(numImages, numLoaders) { imageIndex ->
+            // Select first, so that images wait for each other only while their examples are selected
+            val labelImagePixels = getLabelImagePixels(labelFiles[imageIndex])
+            val labelPixelIndices = selectionOrder.inOrder(imageIndex) {
+                sampler.select(labelledPixelIndices[imageIndex], labelImagePixels)
+            }
+            val labelPixels = UtilityJava.selectInts(labelPixelIndices, labelImagePixels)
 
-                    val calculatedFeatures =
-                            calculateFeatures(progressListener, imageIndex, numImages, surfImage, selectedFeatures)
+            val rawImage = getRawTrainingImage(rawImageFiles[imageIndex], expectedNumChannels)
 
-                    if (featureFiles != null && calculatedFeatures && saveCalculatedFeatures && !savedFeatures.containsAll(surfImage.easilyComputedFeatures)) {
-                        writeFeatures(progressListener, imageIndex, numImages, featureFiles, surfImage)
-                    }
+            val (surfImage: SurfImage, savedFeatures: Collection<FeatureCalculator>) =
+                    getImageFeatures(featureFiles, imageIndex, progressListener, numImages, rawImage, pixelType)
 
-                    progressListener.showStatus("Extracting examples from image " + (imageIndex + 1) + "/" + numImages)
+            val calculatedFeatures =
+                    calculateFeatures(progressListener, imageIndex, numImages, surfImage, selectedFeatures)
 
-                    val labelPixelIndices = examplePixelIndices[imageIndex]
-                    val labelImagePixels = getLabelImagePixels(labelFiles[imageIndex])
-                    val labelPixels =  UtilityJava.selectInts(labelPixelIndices, labelImagePixels)
+            if (featureFiles != null && calculatedFeatures && saveCalculatedFeatures && !savedFeatures.containsAll(surfImage.easilyComputedFeatures)) {
+                writeFeatures(progressListener, imageIndex, numImages, featureFiles, surfImage)
+            }
 
-                    //Add label colours to classColors list if not yet there
-                    classColors.addAll(labelPixels
-                            .groupBy { pixelValue -> pixelValue }
-                            .keys.filter { !classColors.contains(it) })
+            progressListener.showStatus("Extracting examples from image " + (imageIndex + 1) + "/" + numImages)
 
-                    (selectedFeatures.map { featureCalculator ->
-                        // TODO: Assumes each feature calculate only produces one feature image, but future ones may produce more.
-                        val featurePixels = (surfImage.getFeaturePixels(0, 0, featureCalculator) as Array<Any>)[0]
+            ImageExamples(selectedFeatures.map { featureCalculator ->
+                // TODO: Assumes each feature calculate only produces one feature image, but future ones may produce more.
+                val featurePixels = (surfImage.getFeaturePixels(0, 0, featureCalculator) as Array<Any>)[0]
 
-                        when (pixelType) {
-                            PixelType.GRAY_8_BIT -> ByteFeatureImage(UtilityJava.selectBytes(labelPixelIndices, featurePixels as ByteArray))
-                            PixelType.GRAY_16_BIT -> ShortFeatureImage(UtilityJava.selectShorts(labelPixelIndices, featurePixels as ShortArray))
-                        }
-                    } + when (pixelType) {
-                        PixelType.GRAY_8_BIT -> {
-                            val classMap = classColors.mapIndexed { index, rgb -> rgb to index.toByte() }.toMap()
-                            ByteFeatureImage(UtilityJava.mapSelectedBytes(labelPixelIndices, labelImagePixels, classMap))
-                        }
-                        PixelType.GRAY_16_BIT -> {
-                            val classMap = classColors.mapIndexed { index, rgb -> rgb to index.toShort() }.toMap()
-                            ShortFeatureImage(UtilityJava.mapSelectedShorts(labelPixelIndices, labelImagePixels, classMap))
-                        }
-                    }) as List<FeatureImage<Any>>
+                when (pixelType) {
+                    PixelType.GRAY_8_BIT -> ByteFeatureImage(UtilityJava.selectBytes(labelPixelIndices, featurePixels as ByteArray))
+                    PixelType.GRAY_16_BIT -> ShortFeatureImage(UtilityJava.selectShorts(labelPixelIndices, featurePixels as ShortArray))
                 }
+            } as List<FeatureImage<Any>>, labelPixels)
+        }
+
+        // Classes are numbered in order of label colour, whichever image each colour was first seen in
+        val classColors = examples.flatMap { it.labelColours() }.distinct().sorted().toIntArray()
 
         if (classColors.size > 127)
             throw RuntimeException("Detected ${classColors.size} classes. Maximum allowed is 128. Is there a" +
                     " discrepancy between pixel values in the annotated and un-annotated images?" +
                     " This may be caused by differing colour profiles.")
-        return examples
-                .mapClassValues(pixelType, classColors)
+        return TrainingData(examples
+                .map { it.features + it.classValues(pixelType, classColors) }
                 .collapseFeatures(pixelType, selectedFeatures.size)
                 .map { it.pixels }
-                .toTypedArray()
+                .toTypedArray(), classColors)
+    }
+
+    /**
+     * The number of images to load at once: one per thread, but no more than fit in half of the maximum heap with the
+     * decoded raw image and one feature image of the training pixel type per feature. Images are sized from the
+     * dimensions and bit depth in their headers, or from their file lengths if a header cannot be read.
+     */
+    private fun numLoaders(rawImageFiles: List<File>, pixelType: PixelType, numFeatures: Int): Int {
+        val bytesPerFeaturePixel = if (pixelType == PixelType.GRAY_8_BIT) 1L else 2L
+
+        val largestImage = rawImageFiles
+                .map { file ->
+                    readImageHeader(file)
+                            ?.let { it.width * it.height * (it.numPlanes * it.bytesPerSample + numFeatures * bytesPerFeaturePixel) }
+                            ?: file.length() * (numFeatures + 1)
+                }
+                .fold(1L) { max, size -> maxOf(max, size) }
+        val imagesInMemory = (Runtime.getRuntime().maxMemory() * MEMORY_CEILING / largestImage).toLong()
+
+        return minOf(ImageSurfEnvironment.getNumThreads().toLong(), rawImageFiles.size.toLong(), imagesInMemory)
+                .toInt()
+                .coerceAtLeast(1)
+    }
+
+    /**
+     * The dimensions and bit depth of an image, read from its header without decoding its pixels.
+     */
+    private class ImageHeader(val width: Long, val height: Long, val numPlanes: Long, val bytesPerSample: Long)
+
+    /**
+     * Reads the header of a TIFF image with ImageJ's decoder, or of any other image with an ImageIO reader. Null if
+     * the file cannot be read or no reader recognises its format.
+     */
+    private fun readImageHeader(file: File): ImageHeader? = try {
+        if (!file.canRead())
+            null
+        else if (Opener.getFileType(file.absolutePath) == Opener.TIFF)
+            Opener.getTiffFileInfo(file.absolutePath)?.let { infos ->
+                ImageHeader(infos[0].width.toLong(), infos[0].height.toLong(),
+                        infos.fold(0L) { sum, info -> sum + info.nImages }, infos[0].bytesPerPixel.toLong())
+            }
+        else
+            ImageIO.createImageInputStream(file)?.use { input ->
+                ImageIO.getImageReaders(input).asSequence().firstOrNull()?.let { reader ->
+                    try {
+                        reader.input = input
+                        val bitsPerPixel = reader.getRawImageType(0)?.colorModel?.pixelSize ?: 8
+
+                        ImageHeader(reader.getWidth(0).toLong(), reader.getHeight(0).toLong(),
+                                reader.getNumImages(true).toLong(), (bitsPerPixel + 7) / 8L)
+                    } finally {
+                        reader.dispose()
+                    }
+                }
+            }
+    } catch (e: IOException) {
+        null
+    }
+
+    /**
+     * Runs a task for each image on a pool of loader threads, returning the results in image order. Feature
+     * calculation for each image still runs on the feature executor, so while one image's features are calculated
+     * other loaders decode images, read labels and extract examples. If a task fails, the remaining tasks are
+     * cancelled and the failure is rethrown.
+     */
+    private fun <T> mapImagesInParallel(numImages: Int, numLoaders: Int, task: (imageIndex: Int) -> T): List<T> {
+        if (numLoaders <= 1)
+            return (0 until numImages).map(task)
+
+        val executor = Executors.newFixedThreadPool(numLoaders)
+
+        try {
+            return (0 until numImages)
+                    .map { imageIndex -> executor.submit(Callable { task(imageIndex) }) }
+                    .map { future ->
+                        try {
+                            future.get()
+                        } catch (e: ExecutionException) {
+                            when (val cause = e.cause) {
+                                is RuntimeException -> throw cause
+                                is Error -> throw cause
+                                else -> throw RuntimeException(cause)
+                            }
+                        }
+                    }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * Lets an action through for one image at a time, in image order. Loader threads start images in order, so an
+     * image only waits for images already being loaded.
+     */
+    private class ImageOrder {
+        private val lock = ReentrantLock()
+        private val turn = lock.newCondition()
+        private var next = 0
+
+        fun <T> inOrder(imageIndex: Int, action: () -> T): T = lock.withLock {
+            while (next < imageIndex)
+                turn.await()
+
+            try {
+                action()
+            } finally {
+                next = imageIndex + 1
+                turn.signalAll()
+            }
+        }
+    }
+
+    /**
+     * The examples extracted from one image, with the colour of each example's label.
+     */
+    private class ImageExamples(val features: List<FeatureImage<Any>>, val labelPixels: IntArray) {
+        fun labelColours(): List<Int> {
+            val colours = mutableListOf<Int>()
+            var lastColour = 0
+
+            labelPixels.forEachIndexed { i, colour ->
+                if ((i == 0 || colour != lastColour) && !colours.contains(colour))
+                    colours.add(colour)
+
+                lastColour = colour
+            }
+
+            return colours
+        }
+
+        fun classValues(pixelType: PixelType, classColors: IntArray): FeatureImage<Any> = when (pixelType) {
+            PixelType.GRAY_8_BIT -> ByteFeatureImage(ByteArray(labelPixels.size) { i ->
+                Arrays.binarySearch(classColors, labelPixels[i]).toByte()
+            })
+            PixelType.GRAY_16_BIT -> ShortFeatureImage(ShortArray(labelPixels.size) { i ->
+                Arrays.binarySearch(classColors, labelPixels[i]).toShort()
+            })
+        } as FeatureImage<Any>
     }
 
     private fun writeFeatures(progressListener: TrainingProgressListener, imageIndex: Int, numImages: Int, featureFiles: List<File>, surfImage: SurfImage) {
@@ -308,15 +521,15 @@ object Training {
         return imagePlus
     }
 
-    private fun getLabelledPixelIndices(labelledFiles: List<File>, unlabelledFiles: List<File>, progressListener: TrainingProgressListener?): List<IntArray> {
+    private fun getLabelledPixelIndices(labelledFiles: List<File>, unlabelledFiles: List<File>, progressListener: TrainingProgressListener?,
+                                        sampler: ExampleSampler, numLoaders: Int): List<IntArray> {
         var progressListener = progressListener
         if (progressListener == null)
             progressListener = TrainingProgressListener.dummy
 
+        val numScanned = AtomicInteger(0)
 
-        return labelledFiles.indices.map { imageIndex ->
-            progressListener.showStatus(imageIndex + 1, labelledFiles.size,
-                    "Scanning image labels ${imageIndex + 1}/${labelledFiles.size}")
+        return mapImagesInParallel(labelledFiles.size, numLoaders) { imageIndex ->
 
             val unlabelledImagePixels = getLabelImagePixels(unlabelledFiles[imageIndex])
             val labelImagePixels = getLabelImagePixels(labelledFiles[imageIndex])
@@ -326,7 +539,14 @@ object Training {
                         " differ in size")
             }
 
-            UtilityJava.differentIndices(labelImagePixels, unlabelledImagePixels)
+            UtilityJava.differentIndices(labelImagePixels, unlabelledImagePixels).also {
+                if (!sampler.selectsAll)
+                    synchronized(sampler) { sampler.count(it, labelImagePixels) }
+
+                val scanned = numScanned.incrementAndGet()
+                progressListener.showStatus(scanned, labelledFiles.size,
+                        "Scanned image labels $scanned/${labelledFiles.size}")
+            }
         }
     }
 
@@ -339,33 +559,6 @@ object Training {
                 .processor.convertToRGB().pixels as IntArray
     }
 
-    private fun selectExamplePixelIndices(labelledPixels: List<IntArray>, random: Random, examplePortion: Int): List<IntArray> {
-        if (examplePortion >= 100)
-            return labelledPixels
-
-        val totalLabelledPixels = labelledPixels.map { it.size }.fold(0) { acc, i -> acc + i }
-
-        if (totalLabelledPixels == 0)
-            throw RuntimeException("No labels found in label files")
-
-        val selectedPixelIndices = IntArray(totalLabelledPixels * examplePortion / 100) { random.nextInt(totalLabelledPixels) }.sortedArray()
-
-        var cur = 0
-        val numberedPixels = labelledPixels.mapIndexed { imageIndex, labelledPixelIndices ->
-            imageIndex
-            labelledPixelIndices.map { pixelIndex -> cur++ to Pair(imageIndex, pixelIndex) }
-        }.flatten().toMap()
-
-        return selectedPixelIndices
-                .map { numberedPixels[it] }
-                .groupBy { it!!.first }
-                .let {
-                    it.keys.sorted().map { imageIndex ->
-                        it[imageIndex]!!.map { pair -> pair!!.second }.toIntArray()
-                    }
-                }
-    }
-
     interface TrainingProgressListener {
         fun logInfo(Message: String)
         fun logError(message: String)
@@ -419,21 +612,3 @@ private fun List<List<Training.FeatureImage<Any>>>.collapseFeatures(pixelType: P
         (cur[index] + accumulatedFeatures as Training.FeatureImage<Any>)
     }
 }
-
-private fun List<List<Training.FeatureImage<Any>>>.mapClassValues(pixelType: PixelType, classColors: List<Int>): List<List<Training.FeatureImage<Any>>> = map { imageFeatures ->
-    imageFeatures.mapIndexed { index, feature ->
-        if (index == imageFeatures.size - 1) {
-            val unordered = classColors.mapIndexed { classIndex, classRgb -> classRgb to classIndex }.toMap()
-            val classMap = classColors.sorted().mapIndexed { classIndex, classRgb ->
-                unordered[classRgb] to classIndex
-            }.toMap()
-
-            when (pixelType) {
-                PixelType.GRAY_8_BIT -> Training.ByteFeatureImage(UtilityJava.mapBytes(feature.pixels as ByteArray, classMap)) as Training.FeatureImage<Any>
-                PixelType.GRAY_16_BIT -> Training.ShortFeatureImage(UtilityJava.mapShorts(feature.pixels as ShortArray, classMap)) as Training.FeatureImage<Any>
-            }
-        } else {
-            feature
-        }
-    }
-}
\ No newline at end of file
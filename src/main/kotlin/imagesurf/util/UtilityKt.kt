@@ -79,7 +79,18 @@ object UtilityKt {
                 .append(randomForest.maxDepth)
                 .append(" nodes, considering ")
                 .append(numAttributes)
-                .append(" features at each decision node.")
+                .append(" features at each decision node with the ")
+                .append(randomForest.splitCriterion.description)
+                .append(" split criterion.")
+
+        classifier.lineage.takeIf { it.size > 1 }?.let { lineage ->
+            sb.append(" Retrained ")
+                    .append(lineage.size - 1)
+                    .append(if (lineage.size == 2) " time" else " times")
+                    .append(", most recently keeping ")
+                    .append(lineage.last().numRetainedTrees)
+                    .append(" trees with updated leaves.")
+        }
 
         sb.append("\n\nFeatures used:\n")
 
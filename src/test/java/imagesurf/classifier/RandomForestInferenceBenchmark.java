@@ -0,0 +1,131 @@
+package imagesurf.classifier;
+
+import imagesurf.feature.FeatureReader;
+import imagesurf.feature.PixelType;
+import imagesurf.feature.SurfImage;
+import imagesurf.feature.calculator.FeatureCalculator;
+import imagesurf.reader.ByteReader;
+import imagesurf.util.Training;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares classification of a whole Nomarski plane using the flattened trees against walking the
+ * {@link RandomTree} node objects.
+ *
+ * Run the main method with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1024m", "-Xmx4096m"})
+public class RandomForestInferenceBenchmark {
+
+    @Param({"100"})
+    public int numTrees;
+
+    @Param({"30"})
+    public int maxDepth;
+
+    @Param({"false", "true"})
+    public boolean quantised;
+
+    private RandomForest randomForest;
+    private FeatureReader reader;
+
+    @Setup
+    public void setUp() throws Exception {
+        final File labelImageFile = resource("/nomarski/annotated-2-fixed/Nomarski-7DIV.png");
+        final File rawImageFile = resource("/nomarski/raw-unannotated/Nomarski-7DIV.png");
+        final FeatureCalculator[] features = PixelType.GRAY_8_BIT.getAllFeatureCalculators(0, 25, 1);
+
+        final List<File> labelImageFiles = Collections.singletonList(labelImageFile);
+        final List<File> rawImageFiles = Collections.singletonList(rawImageFile);
+        final Object[] trainingExamples = Training.INSTANCE.getTrainingExamples(labelImageFiles, rawImageFiles,
+                rawImageFiles, null, new Random(42), null, 30, false, PixelType.GRAY_8_BIT, features);
+
+        final byte[][] examples = new byte[trainingExamples.length][];
+        for (int i = 0; i < examples.length; i++)
+            examples[i] = (byte[]) trainingExamples[i];
+
+        randomForest = new RandomForest.Builder()
+                .withNumTrees(numTrees)
+                .withMaxDepth(maxDepth)
+                .withNumAttributes(0)
+                .withBagSize(30)
+                .withRandomSeed(42)
+                .withQuantisation(quantised)
+                .withData(new ByteReader(examples, examples.length - 1))
+                .build();
+        randomForest.setNumThreads(1);
+
+        reader = new SurfImage(new ImagePlus(rawImageFile.getAbsolutePath())).getReader(0, 0, features);
+    }
+
+    @Benchmark
+    public int[] flattened() throws InterruptedException {
+        return randomForest.classForInstances(reader, allInstances());
+    }
+
+    @Benchmark
+    public int[] blocked() throws Exception {
+        return randomForest.classForAllInstances(reader);
+    }
+
+    @Benchmark
+    public void nodeWalking(Blackhole blackhole) {
+        final int numClasses = randomForest.getNumClasses();
+        final int numInstances = reader.getNumInstances();
+
+        for (int instance = 0; instance < numInstances; instance++) {
+            final double[] sums = new double[numClasses];
+
+            for (int t = 0; t < randomForest.getNumTrees(); t++) {
+                final double[] distribution = randomForest.getTree(t).distributionForInstance(reader, instance);
+                if (distribution != null)
+                    for (int c = 0; c < numClasses; c++)
+                        sums[c] += distribution[c];
+            }
+
+            int maxClass = 0;
+            for (int c = 1; c < numClasses; c++)
+                if (sums[c] > sums[maxClass])
+                    maxClass = c;
+
+            blackhole.consume(maxClass);
+        }
+    }
+
+    private int[] allInstances() {
+        final int[] instances = new int[reader.getNumInstances()];
+        for (int i = 0; i < instances.length; i++)
+            instances[i] = i;
+
+        return instances;
+    }
+
+    private File resource(String path) {
+        return new File(getClass().getResource(path).getFile());
+    }
+
+    public static void main(String... args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(RandomForestInferenceBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
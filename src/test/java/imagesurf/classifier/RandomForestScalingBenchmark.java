@@ -0,0 +1,101 @@
+package imagesurf.classifier;
+
+import imagesurf.feature.FeatureReader;
+import imagesurf.feature.PixelType;
+import imagesurf.feature.SurfImage;
+import imagesurf.feature.calculator.FeatureCalculator;
+import imagesurf.reader.ByteReader;
+import imagesurf.util.Training;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how classification of a whole Nomarski plane scales with the number of threads used by
+ * {@link RandomForest}.
+ *
+ * Run the main method with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1024m", "-Xmx4096m"})
+public class RandomForestScalingBenchmark {
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int numThreads;
+
+    private RandomForest randomForest;
+    private FeatureReader reader;
+    private int[] allInstances;
+
+    @Setup
+    public void setUp() throws Exception {
+        final File labelImageFile = resource("/nomarski/annotated-2-fixed/Nomarski-7DIV.png");
+        final File rawImageFile = resource("/nomarski/raw-unannotated/Nomarski-7DIV.png");
+        final FeatureCalculator[] features = PixelType.GRAY_8_BIT.getAllFeatureCalculators(0, 25, 1);
+
+        final List<File> labelImageFiles = Collections.singletonList(labelImageFile);
+        final List<File> rawImageFiles = Collections.singletonList(rawImageFile);
+        final Object[] trainingExamples = Training.INSTANCE.getTrainingExamples(labelImageFiles, rawImageFiles,
+                rawImageFiles, null, new Random(42), null, 30, false, PixelType.GRAY_8_BIT, features);
+
+        final byte[][] examples = new byte[trainingExamples.length][];
+        for (int i = 0; i < examples.length; i++)
+            examples[i] = (byte[]) trainingExamples[i];
+
+        randomForest = new RandomForest.Builder()
+                .withNumTrees(100)
+                .withMaxDepth(30)
+                .withNumAttributes(0)
+                .withBagSize(30)
+                .withRandomSeed(42)
+                .withData(new ByteReader(examples, examples.length - 1))
+                .build();
+        randomForest.setNumThreads(numThreads);
+
+        reader = new SurfImage(new ImagePlus(rawImageFile.getAbsolutePath())).getReader(0, 0, features);
+
+        allInstances = new int[reader.getNumInstances()];
+        for (int i = 0; i < allInstances.length; i++)
+            allInstances[i] = i;
+    }
+
+    @Benchmark
+    public int[] classForInstances() throws Exception {
+        return randomForest.classForInstances(reader, allInstances);
+    }
+
+    @Benchmark
+    public int[] classForAllInstances() throws Exception {
+        return randomForest.classForAllInstances(reader);
+    }
+
+    @Benchmark
+    public double[][] distributionForInstances() throws Exception {
+        return randomForest.distributionForInstances(reader);
+    }
+
+    private File resource(String path) {
+        return new File(getClass().getResource(path).getFile());
+    }
+
+    public static void main(String... args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(RandomForestScalingBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,92 @@
+package imagesurf.classifier;
+
+import imagesurf.feature.PixelType;
+import imagesurf.feature.calculator.FeatureCalculator;
+import imagesurf.reader.ByteReader;
+import imagesurf.util.Training;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and memory allocated to build a single {@link RandomTree} from Nomarski training pixels with
+ * each {@link SplitFinder}. The GC profiler reports the bytes allocated per tree as gc.alloc.rate.norm, which is
+ * mostly the tree's own nodes once split evaluation reuses the per-thread training workspace.
+ *
+ * Run the main method with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1024m", "-Xmx4096m"})
+public class RandomTreeTrainingBenchmark {
+
+    @Param({"Sorted", "Histogram", "Presorted"})
+    public String splitFinder;
+
+    private RandomForest randomForest;
+    private ByteReader reader;
+    private int[] bagCounts;
+
+    @Setup
+    public void setUp() throws Exception {
+        final File labelImageFile = resource("/nomarski/annotated-2-fixed/Nomarski-7DIV.png");
+        final File rawImageFile = resource("/nomarski/raw-unannotated/Nomarski-7DIV.png");
+        final FeatureCalculator[] features = PixelType.GRAY_8_BIT.getAllFeatureCalculators(0, 25, 1);
+
+        final List<File> labelImageFiles = Collections.singletonList(labelImageFile);
+        final List<File> rawImageFiles = Collections.singletonList(rawImageFile);
+        final Object[] trainingExamples = Training.INSTANCE.getTrainingExamples(labelImageFiles, rawImageFiles,
+                rawImageFiles, null, new Random(42), null, 100, false, PixelType.GRAY_8_BIT, features);
+
+        final byte[][] examples = new byte[trainingExamples.length][];
+        for (int i = 0; i < examples.length; i++)
+            examples[i] = (byte[]) trainingExamples[i];
+
+        reader = new ByteReader(examples, examples.length - 1);
+
+        randomForest = new RandomForest.Builder()
+                .withNumTrees(1)
+                .withMaxDepth(0)
+                .withNumAttributes(0)
+                .withRandomSeed(42)
+                .withSplitFinder(SplitFinder.fromDescription(splitFinder))
+                .withData(reader)
+                .build();
+
+        bagCounts = new int[reader.getNumInstances()];
+        Arrays.fill(bagCounts, 1);
+    }
+
+    @Benchmark
+    public RandomTree buildTree() {
+        final RandomTree tree = new RandomTree(randomForest);
+        tree.buildTree(reader, bagCounts, 42);
+        return tree;
+    }
+
+    private File resource(String path) {
+        return new File(getClass().getResource(path).getFile());
+    }
+
+    public static void main(String... args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(RandomTreeTrainingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+}
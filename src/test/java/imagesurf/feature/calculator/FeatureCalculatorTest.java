@@ -17,6 +17,7 @@
 
 package imagesurf.feature.calculator;
 
+import imagesurf.feature.calculator.histogram.Histogram;
 import imagesurf.feature.calculator.histogram.MultipleFeatureCalculator;
 import imagesurf.feature.calculator.histogram.NeighbourhoodHistogramCalculator;
 import io.scif.img.ImgOpener;
@@ -31,6 +32,7 @@ import java.net.URL;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertArrayEquals;
 
@@ -178,6 +180,47 @@ public class FeatureCalculatorTest {
         }
     }
 
+    @Test
+    public void testCalculateMultiRadius() throws Exception {
+        FeatureCalculator featureCalculator = new MultipleFeatureCalculator(
+                Arrays.stream(radii)
+                        .boxed()
+                        .flatMap(i -> Stream.of(new Entropy(i), new Median(i), new Mean(i)))
+                        .toArray(NeighbourhoodHistogramCalculator[]::new));
+        testFeatureCalculator(featureCalculator);
+    }
+
+    @Test
+    public void testCalculateMultiRadiusWithoutCache() throws Exception {
+        FeatureCalculator featureCalculator = new MultipleFeatureCalculator(
+                Arrays.stream(radii)
+                        .boxed()
+                        .flatMap(i -> Stream.of(new Entropy(i), new Median(i), new Mean(i)))
+                        .toArray(NeighbourhoodHistogramCalculator[]::new));
+
+        byte[][] result = featureCalculator.calculate(bytePixels, byteWidth, byteHeight, (Map<FeatureCalculator, byte[][]>) null);
+
+        String[] resultDescriptions = featureCalculator.getResultDescriptions();
+        for (int i = 0; i < featureCalculator.getNumImagesReturned(); i++)
+            assertArrayEquals(resultDescriptions[i] + " should match pre-calculated result", getBytes(resultDescriptions[i]), result[i]);
+    }
+
+    @Test
+    public void testCalculateMultiWithSkipList() throws Exception {
+        for (int i : radii) {
+            NeighbourhoodHistogramCalculator[] features = new NeighbourhoodHistogramCalculator[]{new Entropy(i), new Median(i)};
+
+            byte[][] byteResult = NeighbourhoodHistogramCalculator.calculateMultiple(bytePixels, features, byteWidth, byteHeight, null, Histogram.Index.SKIP_LIST);
+            short[][] shortResult = NeighbourhoodHistogramCalculator.calculateMultiple(shortPixels, features, shortWidth, shortHeight, null, Histogram.Index.SKIP_LIST);
+
+            for (int f = 0; f < features.length; f++) {
+                String resultDescription = features[f].getResultDescriptions()[0];
+                assertArrayEquals(resultDescription + " should match pre-calculated result", getBytes(resultDescription), byteResult[f]);
+                assertArrayEquals(resultDescription + " should match pre-calculated result", getShorts(resultDescription), shortResult[f]);
+            }
+        }
+    }
+
     private void testFeatureCalculator(FeatureCalculator featureCalculator) throws Exception {
         testByteFeatureCalculator(featureCalculator);
         testShortFeatureCalculator(featureCalculator);
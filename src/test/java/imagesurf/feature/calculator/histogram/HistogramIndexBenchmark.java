@@ -0,0 +1,96 @@
+package imagesurf.feature.calculator.histogram;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares keeping the non-empty bins of a sliding {@link Histogram} in a {@link SkipList} against a
+ * {@link BitmapValueSet}. Each step removes the oldest value of a window, adds a new one and reads the minimum and
+ * maximum, as PixelWindow and the extrema calculators do.
+ *
+ * Run the main method with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms1024m", "-Xmx4096m"})
+public class HistogramIndexBenchmark {
+
+    private static final int NUM_PIXELS = 1 << 20;
+
+    @Param({"8", "16"})
+    public int numBits;
+
+    @Param({"SKIP_LIST", "BITMAP"})
+    public Histogram.Index index;
+
+    // The number of pixels in a neighbourhood of radius 3, 9 and 33
+    @Param({"37", "297", "3597"})
+    public int windowSize;
+
+    private int[] values;
+    private Histogram histogram;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        values = new int[NUM_PIXELS];
+        for (int i = 0; i < values.length; i++)
+            values[i] = random.nextInt(1 << numBits);
+
+        histogram = new Histogram(new PixelReader() {
+            @Override
+            public int get(int index) {
+                return values[index];
+            }
+
+            @Override
+            public int numPixels() {
+                return values.length;
+            }
+
+            @Override
+            public int numBits() {
+                return numBits;
+            }
+
+            @Override
+            public int maxValue() {
+                return (1 << numBits) - 1;
+            }
+        }, index);
+    }
+
+    @Benchmark
+    public long slide() {
+        histogram.reset();
+
+        for (int i = 0; i < windowSize; i++)
+            histogram.increment(values[i]);
+
+        long sum = 0;
+        for (int i = windowSize; i < values.length; i++) {
+            histogram.decrement(values[i - windowSize]);
+            histogram.increment(values[i]);
+            sum += histogram.min().value + histogram.max().value;
+        }
+
+        return sum;
+    }
+
+    public static void main(String... args) throws RunnerException {
+        final Options options = new OptionsBuilder()
+                .include(HistogramIndexBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
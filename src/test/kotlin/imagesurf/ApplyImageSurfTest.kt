@@ -6,6 +6,7 @@ import imagesurf.classifier.RandomForest
 import imagesurf.feature.PixelType
 import imagesurf.feature.calculator.FeatureCalculator
 import imagesurf.reader.ByteReader
+import imagesurf.segmenter.SegmentationOutput
 import imagesurf.util.ProgressListener
 import imagesurf.util.Training
 import org.assertj.core.api.Assertions.assertThat
@@ -71,6 +72,39 @@ class ApplyImageSurfTest {
         )
     }
 
+    @Test
+    fun `writes a probability plane for each class`() {
+
+        val labelImageFile = File(javaClass.getResource("/nomarski/annotated-2-fixed/Nomarski-7DIV.png").file)
+        val rawImageFile = File(javaClass.getResource("/nomarski/raw-unannotated/Nomarski-7DIV.png").file)
+
+        val trainingExamples = Training.getTrainingExamples(listOf(labelImageFile), listOf(rawImageFile),
+                listOf(rawImageFile), null, random, null, examplePortion, false, pixelType,
+                selectedFeaturesSingleChannel).map { it as ByteArray }.toTypedArray()
+
+        val reader = ByteReader(trainingExamples, trainingExamples.size - 1)
+        val randomForest = randomForest(reader, null)
+
+        val output = ApplyImageSurf.run(ImageSurfClassifier(
+                randomForest,
+                selectedFeaturesSingleChannel,
+                pixelType,
+                1
+        ), ImagePlus(rawImageFile.absolutePath),
+                DUMMY_STATUS_SERVICE,
+                300,
+                SegmentationOutput.PROBABILITIES_16_BIT
+        )
+
+        assertThat(output.size).isEqualTo(randomForest.numClasses)
+
+        val planes = (1..output.size).map { output.getPixels(it) as ShortArray }
+        planes[0].indices.forEach { index ->
+            val total = planes.sumBy { it[index].toInt() and 0xffff }
+            assertThat(total).isBetween(0xffff - planes.size, 0xffff + planes.size)
+        }
+    }
+
     private fun `classifies image accurately`(
             labelImageFile: File,
             unlabelledImageFile: File? = null,
@@ -1,6 +1,7 @@
 package imagesurf
 
 import ij.ImagePlus
+import imagesurf.classifier.ImageSurfClassifierFile
 import imagesurf.util.ProgressListener
 import org.junit.Test
 import org.scijava.Context
@@ -37,6 +38,31 @@ class BatchApplyImageSurfTest {
         }
     }
 
+    @Test
+    fun `classifies pixels identically with binary classifier`() {
+        val serializedClassifierFile = File(javaClass.getResource("/batch-apply/ImageSURF.classifier").file)
+        val imageFolder = File(javaClass.getResource("/batch-apply/input").file)
+
+        val outputFolder = Files.createTempDirectory("imagesurf-" + System.nanoTime()).toFile()
+        val classifierFile = File(outputFolder, "ImageSURF" + ImageSurfClassifierFile.EXTENSION)
+
+        ImageSurfClassifierFile.convert(serializedClassifierFile, classifierFile)
+        assertThat(ImageSurfClassifierFile.isBinary(classifierFile)).isTrue()
+
+        val expectedOutputFolder = File(javaClass.getResource("/batch-apply/output").file)
+
+        val outputFiles = BatchApplyImageSurf.batchApplyImageSurf(classifierFile, outputFolder, imageFolder, null, 500, DUMMY_PROGRESS_LISTENER, DUMMY_LOG_SERVICE, DUMMY_STATUS_SERVICE)
+
+        assertThat(outputFiles).isNotEmpty
+
+        outputFiles.forEach {
+            val actual = ImagePlus(it.absolutePath).processor.pixels as ByteArray
+            val expected = ImagePlus(File(expectedOutputFolder, it.name).absolutePath).processor.pixels as ByteArray
+
+            assertThat(actual).isEqualTo(expected)
+        }
+    }
+
     companion object {
 
         val DUMMY_PROGRESS_LISTENER = object : ProgressListener {
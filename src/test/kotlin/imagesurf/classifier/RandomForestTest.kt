@@ -1,6 +1,7 @@
 package imagesurf.classifier
 
 import imagesurf.feature.PixelType
+import imagesurf.feature.importance.OutOfBagFeatureImportanceCalculator
 import imagesurf.feature.importance.ScrambleFeatureImportanceCalculator
 import imagesurf.feature.calculator.FeatureCalculator
 import imagesurf.reader.ByteReader
@@ -46,6 +47,20 @@ class RandomForestTest {
         `classifies training pixels accurately`(trainingExamples)
     }
 
+    /**
+     * Reads the examples of the single channel Nomarski image with the given annotations.
+     */
+    private fun nomarskiReader(annotations: String = "annotated-2-fixed"): ByteReader {
+        val labelImageFile = listOf(File(javaClass.getResource("/nomarski/$annotations/Nomarski-7DIV.png").file))
+        val rawImageFile = listOf(File(javaClass.getResource("/nomarski/raw-unannotated/Nomarski-7DIV.png").file))
+
+        val trainingExamples = Training.getTrainingExamples(labelImageFile, rawImageFile, rawImageFile, null,
+                random, null, examplePortion, false, pixelType,
+                selectedFeaturesSingleChannel).map { it as ByteArray }.toTypedArray()
+
+        return ByteReader(trainingExamples, trainingExamples.size - 1)
+    }
+
     private fun `classifies training pixels accurately`(trainingExamples: Array<ByteArray>) {
         val reader = ByteReader(trainingExamples, trainingExamples.size - 1)
         val randomForest = randomForest(reader)
@@ -59,6 +74,222 @@ class RandomForestTest {
         assertThat(correct).isCloseTo(classifications.size, Percentage.withPercentage(1.0))
     }
 
+    @Test
+    fun `block classification matches per instance classification`() {
+        val reader = nomarskiReader()
+        val randomForest = randomForest(reader, null)
+
+        val expected = (0 until reader.numInstances).map { index ->
+            randomForest.distributionForInstance(reader, index).let { distribution ->
+                distribution.indices.fold(0) { maxClass, c -> if (distribution[c] > distribution[maxClass]) c else maxClass }
+            }
+        }
+
+        assertThat(randomForest.classForAllInstances(reader).toList()).isEqualTo(expected)
+    }
+
+    @Test
+    fun `early exit does not change classification`() {
+        val reader = nomarskiReader()
+        val randomForest = randomForest(reader, null)
+
+        val expected = randomForest.classForAllInstances(reader)
+
+        val skippedMessages = mutableListOf<String>()
+        randomForest.addProgressListener(object : ProgressListener {
+            override fun onProgress(current: Int, max: Int, message: String) {
+                if (message.startsWith("Skipped"))
+                    skippedMessages.add(message)
+            }
+        })
+        randomForest.earlyExit = true
+
+        assertThat(randomForest.classForAllInstances(reader)).isEqualTo(expected)
+        assertThat(skippedMessages).hasSize(1)
+    }
+
+    @Test
+    fun `quantised thresholds do not change classification`() {
+        val reader = nomarskiReader()
+        val randomForest = RandomForest.Builder()
+                .withNumTrees(100)
+                .withMaxDepth(50)
+                .withBagSize(30)
+                .withRandomSeed(random.nextInt())
+                .withQuantisation(true)
+                .withData(reader)
+                .build()
+
+        assertThat(randomForest.quantisation).isEqualTo(PixelType.GRAY_8_BIT)
+
+        val expected = (0 until reader.numInstances).map { index ->
+            DoubleArray(randomForest.numClasses).also { sums ->
+                (0 until randomForest.numTrees)
+                        .mapNotNull { randomForest.getTree(it).distributionForInstance(reader, index) }
+                        .forEach { distribution -> distribution.forEachIndexed { c, p -> sums[c] += p } }
+            }.let { sums -> sums.indices.fold(0) { maxClass, c -> if (sums[c] > sums[maxClass]) c else maxClass } }
+        }
+
+        assertThat(randomForest.classForAllInstances(reader).toList()).isEqualTo(expected)
+    }
+
+    @Test
+    fun `same random seed builds the same forest`() {
+        val reader = nomarskiReader()
+        val randomSeed = random.nextInt()
+
+        val (first, second) = (0 until 2).map {
+            RandomForest.Builder()
+                    .withNumTrees(20)
+                    .withMaxDepth(50)
+                    .withBagSize(100)
+                    .withRandomSeed(randomSeed)
+                    .withData(reader)
+                    .build()
+        }
+
+        assertThat(second.distributionForInstances(reader)).isEqualTo(first.distributionForInstances(reader))
+    }
+
+    @Test
+    fun `number of threads does not affect the forest built`() {
+        val reader = nomarskiReader()
+        val randomSeed = random.nextInt()
+
+        val (singleThreaded, multiThreaded) = listOf(1, 4).map { numThreads ->
+            RandomForest.Builder()
+                    .withNumTrees(2)
+                    .withMaxDepth(50)
+                    .withBagSize(100)
+                    .withRandomSeed(randomSeed)
+                    .onNumThreads(numThreads)
+                    .withParallelThreshold(64)
+                    .withData(reader)
+                    .build()
+        }
+
+        assertThat(multiThreaded.numParallelNodes.get()).isGreaterThan(0)
+        assertThat(multiThreaded.distributionForInstances(reader)).isEqualTo(singleThreaded.distributionForInstances(reader))
+    }
+
+    @Test
+    fun `histogram split finder builds the same forest as sorted split finder`() {
+        val reader = nomarskiReader()
+        val randomSeed = random.nextInt()
+
+        val (sorted, histogram) = listOf(SplitFinder.SORTED, SplitFinder.HISTOGRAM).map { splitFinder ->
+            RandomForest.Builder()
+                    .withNumTrees(20)
+                    .withMaxDepth(50)
+                    .withBagSize(30)
+                    .withRandomSeed(randomSeed)
+                    .withSplitFinder(splitFinder)
+                    .withData(reader)
+                    .build()
+        }
+
+        assertThat(histogram.distributionForInstances(reader)).isEqualTo(sorted.distributionForInstances(reader))
+    }
+
+    @Test
+    fun `presorted split finder builds the same forest as sorted split finder`() {
+        val reader = nomarskiReader()
+        val randomSeed = random.nextInt()
+
+        val (sorted, presorted) = listOf(SplitFinder.SORTED, SplitFinder.PRESORTED).map { splitFinder ->
+            RandomForest.Builder()
+                    .withNumTrees(20)
+                    .withMaxDepth(50)
+                    .withBagSize(30)
+                    .withRandomSeed(randomSeed)
+                    .withSplitFinder(splitFinder)
+                    .withData(reader)
+                    .build()
+        }
+
+        assertThat(presorted.distributionForInstances(reader)).isEqualTo(sorted.distributionForInstances(reader))
+    }
+
+    @Test
+    fun `gini split criterion builds the same forest with every split finder`() {
+        val reader = nomarskiReader()
+        val randomSeed = random.nextInt()
+
+        val (sorted, histogram, presorted) = SplitFinder.values().map { splitFinder ->
+            RandomForest.Builder()
+                    .withNumTrees(20)
+                    .withMaxDepth(50)
+                    .withBagSize(30)
+                    .withRandomSeed(randomSeed)
+                    .withSplitFinder(splitFinder)
+                    .withSplitCriterion(SplitCriterion.GINI)
+                    .withData(reader)
+                    .build()
+        }
+
+        assertThat(sorted.splitCriterion).isEqualTo(SplitCriterion.GINI)
+        assertThat(histogram.distributionForInstances(reader)).isEqualTo(sorted.distributionForInstances(reader))
+        assertThat(presorted.distributionForInstances(reader)).isEqualTo(sorted.distributionForInstances(reader))
+
+        val classes = sorted.classForInstances(reader)
+        val numCorrect = classes.indices.count { classes[it] == reader.getClassValue(it) }
+        assertThat(numCorrect.toDouble() / classes.size).isGreaterThan(0.8)
+    }
+
+    @Test
+    fun `retraining keeps trees of the previous forest and trains the rest`() {
+        val (previousReader, reader) = listOf("annotated-1", "annotated-2-fixed").map { nomarskiReader(it) }
+
+        fun builder(randomSeed: Int) = RandomForest.Builder()
+                .withNumTrees(20)
+                .withMaxDepth(50)
+                .withBagSize(30)
+                .withRandomSeed(randomSeed)
+
+        val previous = builder(random.nextInt()).withData(previousReader).build()
+        val randomSeed = random.nextInt()
+
+        val retrained = builder(randomSeed).withPreviousForest(previous, 25).withData(reader).build()
+
+        assertThat(retrained.numRetainedTrees).isEqualTo(15)
+        for (t in 0 until retrained.numRetainedTrees) {
+            val splitPoints = retrained.getFlatTrees()[t].splitPoints
+            assertThat(previous.getFlatTrees().filter { it.splitPoints.contentEquals(splitPoints) }).isNotEmpty
+        }
+
+        val classes = retrained.classForInstances(reader)
+        val numCorrect = classes.indices.count { classes[it] == reader.getClassValue(it) }
+        assertThat(numCorrect.toDouble() / classes.size).isGreaterThan(0.8)
+
+        val replacedAll = builder(randomSeed).withPreviousForest(previous, 100).withData(reader).build()
+        val trainedAgain = builder(randomSeed).withData(reader).build()
+
+        assertThat(replacedAll.numRetainedTrees).isZero()
+        assertThat(replacedAll.fingerprint()).isEqualTo(trainedAgain.fingerprint())
+    }
+
+    @Test
+    fun `out-of-bag estimate is computed while training`() {
+        val reader = nomarskiReader()
+        val randomForest = RandomForest.Builder()
+                .withNumTrees(50)
+                .withMaxDepth(50)
+                .withBagSize(30)
+                .withRandomSeed(random.nextInt())
+                .withOutOfBagEstimates(true, true)
+                .withData(reader)
+                .build()
+
+        val outOfBagEstimate = randomForest.outOfBagEstimate!!
+        val featureImportance = OutOfBagFeatureImportanceCalculator().calculateFeatureImportance(randomForest, reader)
+
+        assertThat(outOfBagEstimate.classes.count { it >= 0 }).isGreaterThan(reader.numInstances / 2)
+        assertThat(outOfBagEstimate.accuracy).isGreaterThan(0.5)
+        assertThat(featureImportance).hasSize(reader.numFeatures)
+        assertThat(featureImportance[reader.classIndex]).isNaN()
+        assertThat(featureImportance.filterNot { it.isNaN() }.max()).isGreaterThan(0.0)
+    }
+
     @Test
     fun `feature order does not affect importance calculation in single channel image`() {
 
@@ -0,0 +1,64 @@
+package imagesurf.feature.calculator.histogram
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+import java.util.*
+import kotlin.random.Random
+
+class BitmapValueSetTest {
+
+    @Test
+    fun `matches a sorted set through random additions and removals`() {
+        val random = Random(42)
+
+        listOf(1, 37, 256, 4097, 65536).forEach { numValues ->
+            val set = BitmapValueSet(numValues)
+            val expected = TreeSet<Int>()
+
+            repeat(5000) {
+                val value = random.nextInt(numValues)
+
+                if (value in expected) {
+                    set.remove(value)
+                    expected.remove(value)
+                } else {
+                    set.add(value)
+                    expected.add(value)
+                }
+
+                assertThat(set.size()).isEqualTo(expected.size)
+
+                if (expected.isNotEmpty()) {
+                    assertThat(set.firstValue()).isEqualTo(expected.first())
+                    assertThat(set.lastValue()).isEqualTo(expected.last())
+                }
+            }
+
+            assertThat(set.ascending().asSequence().toList()).isEqualTo(expected.toList())
+            assertThat(set.descending().asSequence().toList()).isEqualTo(expected.descendingSet().toList())
+        }
+    }
+
+    @Test
+    fun `clear empties the set`() {
+        val set = BitmapValueSet(65536)
+        listOf(0, 63, 64, 4095, 4096, 65535).forEach { set.add(it) }
+
+        set.clear()
+
+        assertThat(set.size()).isEqualTo(0)
+        assertThat(set.ascending().hasNext()).isFalse()
+        assertThatThrownBy { set.firstValue() }.isInstanceOf(NoSuchElementException::class.java)
+
+        set.add(100)
+        assertThat(set.ascending().asSequence().toList()).containsExactly(100)
+    }
+
+    @Test
+    fun `removing a missing value fails`() {
+        val set = BitmapValueSet(256)
+        set.add(3)
+
+        assertThatThrownBy { set.remove(4) }.isInstanceOf(NoSuchElementException::class.java).hasMessageContaining("4")
+    }
+}
@@ -0,0 +1,46 @@
+package imagesurf.feature.calculator.histogram
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+import kotlin.random.Random
+
+class ExtremaFilterTest {
+
+    private val radii = listOf(1, 2, 3, 5, 9, 17, 33)
+
+    private val random = Random(42)
+
+    @Test
+    fun `byte minima and maxima match the neighbourhood`() {
+        listOf(1 to 1, 7 to 5, 64 to 3, 123 to 97).forEach { (width, height) ->
+            val pixels = IntArray(width * height) { random.nextInt(256) }
+            val bytes = ByteArray(pixels.size) { pixels[it].toByte() }
+
+            radii.forEach { radius ->
+                val neighbourhoods = neighbourhoods(pixels, width, height, radius)
+
+                assertThat(ExtremaFilter.min(bytes, width, height, radius).map { it.toInt() and 0xff })
+                        .isEqualTo(neighbourhoods.map { it.min()!! })
+                assertThat(ExtremaFilter.max(bytes, width, height, radius).map { it.toInt() and 0xff })
+                        .isEqualTo(neighbourhoods.map { it.max()!! })
+            }
+        }
+    }
+
+    @Test
+    fun `short minima and maxima match the neighbourhood`() {
+        listOf(5 to 40, 123 to 97).forEach { (width, height) ->
+            val pixels = IntArray(width * height) { random.nextInt(65536) }
+            val shorts = ShortArray(pixels.size) { pixels[it].toShort() }
+
+            radii.forEach { radius ->
+                val neighbourhoods = neighbourhoods(pixels, width, height, radius)
+
+                assertThat(ExtremaFilter.min(shorts, width, height, radius).map { it.toInt() and 0xffff })
+                        .isEqualTo(neighbourhoods.map { it.min()!! })
+                assertThat(ExtremaFilter.max(shorts, width, height, radius).map { it.toInt() and 0xffff })
+                        .isEqualTo(neighbourhoods.map { it.max()!! })
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package imagesurf.feature.calculator.histogram
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+
+class MaskTest {
+
+    private val radii = listOf(1, 2, 3, 5, 9, 17, 33)
+
+    @Test
+    fun `covering rectangles cover the mask exactly`() {
+        radii.forEach { radius ->
+            val mask = Mask.get(radius)
+            assertThat(coverage(mask, mask.coveringRectangles(), radius)).isEqualTo(pixels(mask))
+        }
+    }
+
+    @Test
+    fun `disjoint rectangles cover each pixel of the mask once`() {
+        radii.forEach { radius ->
+            val mask = Mask.get(radius)
+            val rectangles = mask.disjointRectangles()
+
+            assertThat(coverage(mask, rectangles, radius)).isEqualTo(pixels(mask))
+            assertThat(rectangles.sumBy { it.width * it.height }).isEqualTo(mask.numPixels)
+        }
+    }
+
+    private fun pixels(mask: Mask): List<List<Boolean>> = mask.rows.map { row ->
+        List(mask.rows.size) { x -> x >= row.offset && x < row.offset + row.width }
+    }
+
+    private fun coverage(mask: Mask, rectangles: List<Mask.Rectangle>, radius: Int): List<List<Boolean>> {
+        val covered = Array(mask.rows.size) { BooleanArray(mask.rows.size) }
+
+        rectangles.forEach { rectangle ->
+            for (y in rectangle.top until rectangle.top + rectangle.height)
+                for (x in rectangle.left until rectangle.left + rectangle.width)
+                    covered[y + radius][x + radius] = true
+        }
+
+        return covered.map { it.toList() }
+    }
+}
@@ -0,0 +1,45 @@
+package imagesurf.feature.calculator.histogram
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+import kotlin.random.Random
+
+class MedianFilterTest {
+
+    private val radii = listOf(0, 1, 2, 3, 5, 9, 17, 33)
+
+    private val random = Random(42)
+
+    @Test
+    fun `byte medians match the neighbourhood`() {
+        listOf(1 to 1, 7 to 5, 64 to 3, 123 to 97).forEach { (width, height) ->
+            listOf(3, 256).forEach { numValues ->
+                val pixels = IntArray(width * height) { random.nextInt(numValues) }
+                val bytes = ByteArray(pixels.size) { pixels[it].toByte() }
+
+                radii.forEach { radius ->
+                    assertThat(MedianFilter.median(bytes, width, height, radius).map { it.toInt() and 0xff })
+                            .isEqualTo(neighbourhoods(pixels, width, height, radius).map { median(it) })
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `short medians match the neighbourhood`() {
+        listOf(5 to 40, 123 to 97).forEach { (width, height) ->
+            listOf(1000, 65536).forEach { numValues ->
+                val pixels = IntArray(width * height) { random.nextInt(numValues) }
+                val shorts = ShortArray(pixels.size) { pixels[it].toShort() }
+
+                radii.forEach { radius ->
+                    assertThat(MedianFilter.median(shorts, width, height, radius).map { it.toInt() and 0xffff })
+                            .isEqualTo(neighbourhoods(pixels, width, height, radius).map { median(it) })
+                }
+            }
+        }
+    }
+
+    // The lowest value at which the cumulative count reaches half the number of pixels, as Median calculates it
+    private fun median(values: List<Int>): Int = values.sorted().let { it[maxOf(1, it.size / 2) - 1] }
+}
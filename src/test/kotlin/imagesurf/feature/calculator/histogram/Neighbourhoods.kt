@@ -0,0 +1,22 @@
+package imagesurf.feature.calculator.histogram
+
+/**
+ * The values in each pixel's circular neighbourhood, found by walking the mask for every pixel, for checking filters
+ * against. Pixels outside the image are left out, as they are by [PixelWindow].
+ */
+internal fun neighbourhoods(pixels: IntArray, width: Int, height: Int, radius: Int): List<List<Int>> {
+    val rows = Mask.get(radius).rows
+
+    return (0 until width * height).map { index ->
+        val x = index % width
+        val y = index / width
+
+        rows.indices.flatMap { i ->
+            val currentY = y + i - radius
+            (0 until rows[i].width)
+                    .map { j -> x + j + rows[i].offset - radius }
+                    .filter { currentX -> currentY in 0 until height && currentX in 0 until width }
+                    .map { currentX -> pixels[currentY * width + currentX] }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package imagesurf.feature.calculator.histogram
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+import kotlin.random.Random
+
+class SummedAreaTableTest {
+
+    private val radii = listOf(1, 2, 3, 5, 9, 17, 33)
+
+    private val random = Random(42)
+
+    @Test
+    fun `neighbourhood sums match the neighbourhood`() {
+        listOf(1 to 1, 7 to 5, 5 to 40, 123 to 97).forEach { (width, height) ->
+            val pixels = IntArray(width * height) { random.nextInt(65536) }
+            val table = SummedAreaTable.of(ShortArray(pixels.size) { pixels[it].toShort() }, width, height)
+
+            radii.forEach { radius ->
+                val neighbourhoods = neighbourhoods(pixels, width, height, radius)
+
+                assertThat(table.calculate(radius) { numPixels, _, _ -> numPixels }.toList())
+                        .isEqualTo(neighbourhoods.map { it.size })
+                assertThat(table.calculate(radius) { _, sum, _ -> (sum % 1000003).toInt() }.toList())
+                        .isEqualTo(neighbourhoods.map { values -> (values.sumByLong { it } % 1000003).toInt() })
+                assertThat(table.calculate(radius) { _, _, sumOfSquares -> (sumOfSquares % 1000003).toInt() }.toList())
+                        .isEqualTo(neighbourhoods.map { values -> (values.sumByLong { it * it } % 1000003).toInt() })
+            }
+        }
+    }
+
+    @Test
+    fun `feature images have the type of the pixels`() {
+        val pixels = IntArray(100) { random.nextInt(256) }
+        val statistic = SummedAreaTable.Statistic { numPixels, sum, _ -> (sum / numPixels).toInt() }
+
+        val bytes = SummedAreaTable.of(ByteArray(pixels.size) { pixels[it].toByte() }, 10, 10).calculateImages(3, statistic)
+        val shorts = SummedAreaTable.of(ShortArray(pixels.size) { pixels[it].toShort() }, 10, 10).calculateImages(3, statistic)
+
+        assertThat(bytes).isInstanceOf(Array<ByteArray>::class.java)
+        assertThat(shorts).isInstanceOf(Array<ShortArray>::class.java)
+        assertThat((bytes as Array<ByteArray>)[0].map { it.toInt() and 0xff })
+                .isEqualTo((shorts as Array<ShortArray>)[0].map { it.toInt() and 0xffff })
+    }
+
+    private fun List<Int>.sumByLong(selector: (Long) -> Long): Long = fold(0L) { sum, value -> sum + selector(value.toLong()) }
+}
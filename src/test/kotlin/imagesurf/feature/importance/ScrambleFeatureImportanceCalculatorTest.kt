@@ -1,9 +1,12 @@
 package imagesurf.feature.importance
 
 import imagesurf.classifier.Classifier
+import imagesurf.classifier.RandomForest
 import imagesurf.feature.FeatureReader
 import imagesurf.reader.ByteReader
+import imagesurf.util.ProgressListener
 import org.junit.Test
+import java.util.*
 
 import org.assertj.core.api.Assertions.*
 
@@ -38,4 +41,63 @@ class ScrambleFeatureImportanceCalculatorTest {
         //Classifier only looks at feature 1 so accuracy should drop if feature 1 is randomised
         assertThat(importance[0]).isGreaterThan(importance[1])
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `random forest importance matches classifying scrambled data`() {
+        val random = Random(7)
+        val numInstances = 2000
+        val features = Array(4) { ByteArray(numInstances) { random.nextInt(256).toByte() } }
+        val classes = ByteArray(numInstances) {
+            ((features[0][it].toInt() and 0xff) / 100 + if (random.nextInt(10) == 0) 1 else 0).toByte()
+        }
+        val data = ByteReader(features.plus(classes), features.size)
+
+        val randomForest = RandomForest.Builder()
+                .withNumTrees(20)
+                .withNumAttributes(2)
+                .withRandomSeed(42)
+                .withData(data)
+                .build()
+
+        // Hide the forest's type so that importance is calculated by classifying scrambled copies of the data
+        val wrapped = object : Classifier by randomForest {}
+
+        val instanceIndices = (0 until numInstances).filter { it % 2 == 0 }.toIntArray()
+
+        val expected = ScrambleFeatureImportanceCalculator(42).calculateFeatureImportance(wrapped, data, instanceIndices)
+        val actual = ScrambleFeatureImportanceCalculator(42).calculateFeatureImportance(randomForest, data, instanceIndices)
+
+        assertThat(actual).containsExactly(*expected)
+        assertThat(actual[0]).isGreaterThan(actual[1])
+    }
+
+    @Test
+    fun `reports progress as features complete`() {
+        val random = Random(3)
+        val numInstances = 500
+        val features = Array(5) { ByteArray(numInstances) { random.nextInt(256).toByte() } }
+        val classes = ByteArray(numInstances) { ((features[1][it].toInt() and 0xff) / 128).toByte() }
+        val data = ByteReader(features.plus(classes), features.size)
+
+        val randomForest = RandomForest.Builder()
+                .withNumTrees(10)
+                .withRandomSeed(42)
+                .withData(data)
+                .build()
+
+        val progress = Collections.synchronizedList(ArrayList<Pair<Int, Int>>())
+        val importanceCalculator = ScrambleFeatureImportanceCalculator(42).apply {
+            addProgressListener(object : ProgressListener {
+                override fun onProgress(current: Int, max: Int, message: String) {
+                    progress.add(current to max)
+                }
+            })
+        }
+
+        val importance = importanceCalculator.calculateFeatureImportance(randomForest, data)
+
+        assertThat(progress.map { it.first }).containsExactlyInAnyOrder(1, 2, 3, 4, 5)
+        assertThat(progress.map { it.second }).containsOnly(5)
+        assertThat(importance).isEqualTo(ScrambleFeatureImportanceCalculator(42).calculateFeatureImportance(randomForest, data))
+    }
+}
@@ -0,0 +1,69 @@
+package imagesurf.reader
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+import kotlin.random.Random
+
+class IndexSortTest {
+
+    private val random = Random(42)
+    private val numInstances = 10000
+
+    // Repeated indices, as in a bag sampled with replacement
+    private val instanceIndices = IntArray(numInstances) { random.nextInt(numInstances) }
+
+    @Test
+    fun `byte reader sorts stably by value`() {
+        val values = ByteArray(numInstances) { random.nextInt(256).toByte() }
+        val reader = ByteReader(arrayOf(values, ByteArray(numInstances)), 1)
+
+        val expected = instanceIndices.sortedBy { reader.getValue(it, 0) }
+
+        assertThat(reader.getSortedIndices(0, instanceIndices).toList()).isEqualTo(expected)
+    }
+
+    @Test
+    fun `short reader sorts stably by value`() {
+        val values = ShortArray(numInstances) { random.nextInt(65536).toShort() }
+        val reader = ShortReader(arrayOf(values, ShortArray(numInstances)), 1)
+
+        val expected = instanceIndices.sortedBy { reader.getValue(it, 0) }
+
+        assertThat(reader.getSortedIndices(0, instanceIndices).toList()).isEqualTo(expected)
+    }
+
+    @Test
+    fun `radix sort over two digits sorts stably by masked value`() {
+        val values = ShortArray(numInstances) { random.nextInt(65536).toShort() }
+
+        val expected = instanceIndices.sortedBy { values[it].toInt() and 0xffff }
+
+        assertThat(IndexSort.sortByMaskedShorts(values, 0xffff, instanceIndices).toList()).isEqualTo(expected)
+    }
+
+    @Test
+    fun `reader with selected features sorts by the selected feature`() {
+        val values = Array(3) { ByteArray(numInstances) { random.nextInt(256).toByte() } }
+        val reader = ByteReader(values, 2)
+
+        assertThat(reader.withFeatures(listOf(1)).getSortedIndices(0, instanceIndices))
+                .isEqualTo(reader.getSortedIndices(1, instanceIndices))
+    }
+
+    @Test
+    fun `sorts a range into another array`() {
+        val values = ShortArray(numInstances) { random.nextInt(65536).toShort() }
+        val from = 1000
+        val to = 7000
+        val sortedFrom = 500
+        val sorted = IntArray(numInstances) { -1 }
+
+        IndexSort.sortByMaskedShorts(values, 0xffff, instanceIndices, from, to, sorted, sortedFrom)
+
+        val expected = instanceIndices.copyOfRange(from, to).sortedBy { values[it].toInt() and 0xffff }
+
+        assertThat(sorted.copyOfRange(sortedFrom, sortedFrom + to - from).toList()).isEqualTo(expected)
+        assertThat(sorted.copyOfRange(0, sortedFrom)).containsOnly(-1)
+        assertThat(sorted.copyOfRange(sortedFrom + to - from, numInstances)).containsOnly(-1)
+    }
+}
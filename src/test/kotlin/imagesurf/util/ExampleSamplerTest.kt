@@ -0,0 +1,84 @@
+package imagesurf.util
+
+import org.assertj.core.api.Assertions.*
+import org.junit.Test
+import java.util.*
+
+class ExampleSamplerTest {
+
+    private val background = 0xffffff
+    private val foreground = 0xff0000
+    private val edge = 0x00ff00
+
+    private val random = Random(42)
+
+    private val labelImages = List(3) { imageIndex ->
+        IntArray(20000 + imageIndex * 1000) {
+            when (random.nextInt(10)) {
+                0 -> foreground
+                1 -> edge
+                else -> background
+            }
+        }
+    }
+
+    // Unlabelled pixels are skipped, so the sampler only sees a subset of each image
+    private val labelledPixelIndices = labelImages.map { pixels -> pixels.indices.filter { it % 4 != 0 }.toIntArray() }
+
+    @Test
+    fun `uniform sampling selects the example portion of all labelled pixels`() {
+        val selected = sample(ExampleSampling.UNIFORM, 25)
+
+        val numLabelled = labelledPixelIndices.sumBy { it.size }
+        assertThat(selected.sumBy { it.size }).isEqualTo(numLabelled * 25 / 100)
+        assertSelectedFromLabelled(selected)
+    }
+
+    @Test
+    fun `stratified sampling selects the example portion of each class`() {
+        val selected = sample(ExampleSampling.STRATIFIED, 25)
+
+        val labelled = classCounts(labelledPixelIndices)
+        assertThat(classCounts(selected)).isEqualTo(labelled.mapValues { it.value * 25 / 100 })
+        assertSelectedFromLabelled(selected)
+    }
+
+    @Test
+    fun `balanced sampling selects the same number of each class`() {
+        val selected = sample(ExampleSampling.BALANCED, 100)
+
+        val smallestClass = classCounts(labelledPixelIndices).values.min()
+        assertThat(classCounts(selected)).isEqualTo(mapOf(background to smallestClass, foreground to smallestClass,
+                edge to smallestClass))
+        assertSelectedFromLabelled(selected)
+    }
+
+    @Test
+    fun `all labelled pixels are selected at 100 percent`() {
+        assertThat(sample(ExampleSampling.UNIFORM, 100)).isEqualTo(labelledPixelIndices)
+        assertThat(sample(ExampleSampling.STRATIFIED, 100)).isEqualTo(labelledPixelIndices)
+    }
+
+    private fun sample(sampling: ExampleSampling, examplePortion: Int): List<IntArray> {
+        val sampler = ExampleSampler(sampling, examplePortion, Random(7))
+
+        if (!sampler.selectsAll)
+            labelImages.indices.forEach { sampler.count(labelledPixelIndices[it], labelImages[it]) }
+
+        return labelImages.indices.map { sampler.select(labelledPixelIndices[it], labelImages[it]) }
+    }
+
+    private fun classCounts(pixelIndices: List<IntArray>): Map<Int, Int> =
+            pixelIndices.indices.flatMap { imageIndex -> pixelIndices[imageIndex].map { labelImages[imageIndex][it] } }
+                    .groupingBy { it }
+                    .eachCount()
+
+    private fun assertSelectedFromLabelled(selected: List<IntArray>) {
+        assertThat(selected).hasSameSizeAs(labelledPixelIndices)
+
+        selected.forEachIndexed { imageIndex, indices ->
+            assertThat(indices).isSorted().doesNotHaveDuplicates()
+            assertThat(labelledPixelIndices[imageIndex]).contains(*indices)
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package imagesurf.util
+
+import imagesurf.feature.PixelType
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Test
+import java.io.File
+import java.util.*
+
+class TrainingTest {
+
+    @Test
+    fun `loading images in parallel gives the same examples as loading them one at a time`() {
+        val serial = trainingData(numLoaders = 1)
+        val parallel = trainingData(numLoaders = 2)
+
+        assertThat(parallel.classColors).isEqualTo(serial.classColors)
+        assertThat(parallel.examples.size).isEqualTo(serial.examples.size)
+
+        // The last array holds the class value of each example
+        serial.examples.indices.forEach {
+            assertThat(parallel.examples[it] as ByteArray).isEqualTo(serial.examples[it] as ByteArray)
+        }
+    }
+
+    private fun trainingData(numLoaders: Int): Training.TrainingData {
+        val labelFiles = imageNames.map { File(javaClass.getResource("/nomarski/annotated-2-fixed/$it").file) }
+        val rawImageFiles = imageNames.map { File(javaClass.getResource("/nomarski/raw-unannotated/$it").file) }
+
+        return Training.getTrainingData(labelFiles, rawImageFiles, rawImageFiles, null, Random(42), null,
+                examplePortion, false, pixelType, selectedFeatures, ExampleSampling.UNIFORM, numLoaders)
+    }
+
+    companion object {
+        private val imageNames = listOf("Nomarski-7DIV.png", "Nomarski-14DIV.png")
+        private const val examplePortion = 30
+        private val pixelType = PixelType.GRAY_8_BIT
+        private val selectedFeatures = PixelType.GRAY_8_BIT.getAllFeatureCalculators(0, 5, 1)
+    }
+}